@@ -29,24 +29,19 @@ import android.view.View.OnClickListener;
 import android.view.View.OnLongClickListener;
 import android.view.ViewGroup;
 
-import org.thoughtcrime.redphone.util.Conversions;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.BodyPrefetcher;
 import org.thoughtcrime.securesms.database.CursorRecyclerViewAdapter;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessageRecordCache;
 import org.thoughtcrime.securesms.database.MmsSmsColumns;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
-import org.thoughtcrime.securesms.database.SmsDatabase;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.recipients.Recipients;
-import org.thoughtcrime.securesms.util.LRUCache;
 
-import java.lang.ref.SoftReference;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Set;
 
 import org.thoughtcrime.securesms.util.ViewUtil;
@@ -64,23 +59,20 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     extends CursorRecyclerViewAdapter<ConversationAdapter.ViewHolder>
 {
 
-  private static final int MAX_CACHE_SIZE = 40;
-  private final Map<String,SoftReference<MessageRecord>> messageRecordCache =
-      Collections.synchronizedMap(new LRUCache<String, SoftReference<MessageRecord>>(MAX_CACHE_SIZE));
-
   public static final int MESSAGE_TYPE_OUTGOING = 0;
   public static final int MESSAGE_TYPE_INCOMING = 1;
   public static final int MESSAGE_TYPE_UPDATE   = 2;
 
   private final Set<MessageRecord> batchSelected = Collections.synchronizedSet(new HashSet<MessageRecord>());
 
-  private final @Nullable ItemClickListener clickListener;
-  private final @NonNull  MasterSecret      masterSecret;
-  private final @NonNull  Locale            locale;
-  private final @NonNull  Recipients        recipients;
-  private final @NonNull  MmsSmsDatabase    db;
-  private final @NonNull  LayoutInflater    inflater;
-  private final @NonNull  MessageDigest     digest;
+  private final @Nullable ItemClickListener  clickListener;
+  private final @NonNull  MasterSecret       masterSecret;
+  private final @NonNull  Locale             locale;
+  private final @NonNull  Recipients         recipients;
+  private final @NonNull  MmsSmsDatabase     db;
+  private final @NonNull  MessageRecordCache recordCache;
+  private final @NonNull  LayoutInflater     inflater;
+  private final @NonNull  BodyPrefetcher     bodyPrefetcher;
 
   protected static class ViewHolder extends RecyclerView.ViewHolder {
     public <V extends View & BindableConversationItem> ViewHolder(final @NonNull V itemView) {
@@ -102,17 +94,14 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   @VisibleForTesting
   ConversationAdapter(Context context, Cursor cursor) {
     super(context, cursor);
-    try {
-      this.masterSecret  = null;
-      this.locale        = null;
-      this.clickListener = null;
-      this.recipients    = null;
-      this.inflater      = null;
-      this.db            = null;
-      this.digest        = MessageDigest.getInstance("SHA1");
-    } catch (NoSuchAlgorithmException nsae) {
-      throw new AssertionError("SHA1 isn't supported!");
-    }
+    this.masterSecret   = null;
+    this.locale         = null;
+    this.clickListener  = null;
+    this.recipients     = null;
+    this.inflater       = null;
+    this.db             = null;
+    this.recordCache    = null;
+    this.bodyPrefetcher = null;
   }
 
   public ConversationAdapter(@NonNull Context context,
@@ -123,32 +112,27 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
                              @NonNull Recipients recipients)
   {
     super(context, cursor);
-    try {
-      this.masterSecret  = masterSecret;
-      this.locale        = locale;
-      this.clickListener = clickListener;
-      this.recipients    = recipients;
-      this.inflater      = LayoutInflater.from(context);
-      this.db            = DatabaseFactory.getMmsSmsDatabase(context);
-      this.digest        = MessageDigest.getInstance("SHA1");
-
-      setHasStableIds(true);
-    } catch (NoSuchAlgorithmException nsae) {
-      throw new AssertionError("SHA1 isn't supported!");
-    }
+    this.masterSecret   = masterSecret;
+    this.locale         = locale;
+    this.clickListener  = clickListener;
+    this.recipients     = recipients;
+    this.inflater       = LayoutInflater.from(context);
+    this.db             = DatabaseFactory.getMmsSmsDatabase(context);
+    this.recordCache    = DatabaseFactory.getMessageRecordCache(context);
+    this.bodyPrefetcher = BodyPrefetcher.forConversation(masterSecret);
+
+    setHasStableIds(true);
   }
 
   @Override
   public void changeCursor(Cursor cursor) {
-    messageRecordCache.clear();
+    if (bodyPrefetcher != null) bodyPrefetcher.reset();
     super.changeCursor(cursor);
   }
 
   @Override
   public void onBindItemViewHolder(ViewHolder viewHolder, @NonNull Cursor cursor) {
-    long          id            = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
-    String        type          = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
-    MessageRecord messageRecord = getMessageRecord(id, cursor, type);
+    MessageRecord messageRecord = getMessageRecord(cursor);
 
     viewHolder.getView().bind(masterSecret, messageRecord, locale, batchSelected, recipients);
   }
@@ -191,9 +175,7 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
 
   @Override
   public int getItemViewType(@NonNull Cursor cursor) {
-    long          id            = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
-    String        type          = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
-    MessageRecord messageRecord = getMessageRecord(id, cursor, type);
+    MessageRecord messageRecord = getMessageRecord(cursor);
 
     if (messageRecord.isGroupAction() || messageRecord.isCallLog() || messageRecord.isJoined()) {
       return MESSAGE_TYPE_UPDATE;
@@ -204,22 +186,24 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     }
   }
 
+  /**
+   * The message's row id shifted left one bit, with the low bit set for MMS, so that
+   * an SMS and an MMS with the same row id never share an item id.
+   */
   @Override
   public long getItemId(@NonNull Cursor cursor) {
-    final String unique = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsColumns.UNIQUE_ROW_ID));
-    final byte[] bytes  = digest.digest(unique.getBytes());
-    return Conversions.byteArrayToLong(bytes);
+    long   id        = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
+    String transport = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
+
+    return MessageRecordCache.getKey(MmsSmsDatabase.MMS_TRANSPORT.equals(transport), id);
   }
 
-  private MessageRecord getMessageRecord(long messageId, Cursor cursor, String type) {
-    final SoftReference<MessageRecord> reference = messageRecordCache.get(type + messageId);
-    if (reference != null) {
-      final MessageRecord record = reference.get();
-      if (record != null) return record;
-    }
+  private MessageRecord getMessageRecord(Cursor cursor) {
+    final MessageRecord cached = recordCache.get(cursor);
+    if (cached != null) return cached;
 
-    final MessageRecord messageRecord = db.readerFor(cursor, masterSecret).getCurrent();
-    messageRecordCache.put(type + messageId, new SoftReference<>(messageRecord));
+    final MessageRecord messageRecord = db.readerFor(cursor, masterSecret, bodyPrefetcher).getCurrent();
+    recordCache.put(cursor, messageRecord);
 
     return messageRecord;
   }
@@ -24,6 +24,7 @@ import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
@@ -41,7 +42,6 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.view.Window;
 import android.widget.Toast;
@@ -53,6 +53,7 @@ import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.loaders.ConversationLoader;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.jobs.AttachmentDownloadScheduler;
 import org.thoughtcrime.securesms.mms.Slide;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
@@ -64,6 +65,7 @@ import org.thoughtcrime.securesms.util.ViewUtil;
 
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -74,7 +76,7 @@ public class ConversationFragment extends Fragment
 {
   private static final String TAG = ConversationFragment.class.getSimpleName();
 
-  private static final long   PARTIAL_CONVERSATION_LIMIT = 500L;
+  private static final int PAGE_LOAD_THRESHOLD = 20;
 
   private final ActionModeCallback actionModeCallback     = new ActionModeCallback();
   private final ItemClickListener  selectionClickListener = new ConversationFragmentItemClickListener();
@@ -87,7 +89,6 @@ public class ConversationFragment extends Fragment
   private ActionMode   actionMode;
   private Locale       locale;
   private RecyclerView list;
-  private View         loadMoreView;
 
   @Override
   public void onCreate(Bundle icicle) {
@@ -103,16 +104,8 @@ public class ConversationFragment extends Fragment
     final LinearLayoutManager layoutManager = new LinearLayoutManager(getActivity(), LinearLayoutManager.VERTICAL, true);
     list.setHasFixedSize(false);
     list.setLayoutManager(layoutManager);
+    list.addOnScrollListener(new ConversationScrollListener());
 
-    loadMoreView = inflater.inflate(R.layout.load_more_header, container, false);
-    loadMoreView.setOnClickListener(new OnClickListener() {
-      @Override
-      public void onClick(View v) {
-        Bundle args = new Bundle();
-        args.putLong("limit", 0);
-        getLoaderManager().restartLoader(0, args, ConversationFragment.this);
-      }
-    });
     return view;
   }
 
@@ -139,6 +132,12 @@ public class ConversationFragment extends Fragment
     }
   }
 
+  @Override
+  public void onPause() {
+    super.onPause();
+    AttachmentDownloadScheduler.getInstance().setVisibleMessages(Collections.<Long>emptySet());
+  }
+
   public void onNewIntent() {
     if (actionMode != null) {
       actionMode.finish();
@@ -218,6 +217,12 @@ public class ConversationFragment extends Fragment
   }
 
   public void scrollToBottom() {
+    ConversationLoader loader = getConversationLoader();
+
+    if (loader != null && loader.hasNewer()) {
+      getLoaderManager().restartLoader(0, Bundle.EMPTY, this);
+    }
+
     list.getItemAnimator().isRunning(new ItemAnimatorFinishedListener() {
       @Override
       public void onAnimationsFinished() {
@@ -353,20 +358,37 @@ public class ConversationFragment extends Fragment
     });
   }
 
+  private @Nullable ConversationLoader getConversationLoader() {
+    Loader<Cursor> loader = getLoaderManager().getLoader(0);
+    return loader instanceof ConversationLoader ? (ConversationLoader)loader : null;
+  }
+
   @Override
   public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-    return new ConversationLoader(getActivity(), threadId, args.getLong("limit", PARTIAL_CONVERSATION_LIMIT));
+    return new ConversationLoader(getActivity(), threadId);
   }
 
   @Override
   public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
     if (list.getAdapter() != null) {
-      if (cursor.getCount() >= PARTIAL_CONVERSATION_LIMIT && ((ConversationLoader)loader).hasLimit()) {
-        getListAdapter().setFooterView(loadMoreView);
-      } else {
-        getListAdapter().setFooterView(null);
-      }
+      LinearLayoutManager layoutManager = (LinearLayoutManager)list.getLayoutManager();
+      int                 shift         = ((ConversationLoader)loader).getPositionShift();
+      int                 firstPosition = layoutManager.findFirstVisibleItemPosition();
+      View                firstView     = layoutManager.findViewByPosition(firstPosition);
+
       getListAdapter().changeCursor(cursor);
+
+      if (shift != 0 && firstView != null) {
+        int offset = list.getHeight() - list.getPaddingBottom() - layoutManager.getDecoratedBottom(firstView);
+        layoutManager.scrollToPositionWithOffset(Math.max(firstPosition + shift, 0), offset);
+      }
+
+      list.post(new Runnable() {
+        @Override
+        public void run() {
+          updateVisibleMessages();
+        }
+      });
     }
   }
 
@@ -377,10 +399,51 @@ public class ConversationFragment extends Fragment
     }
   }
 
+  /**
+   * Lets the attachment download scheduler fetch the media on screen ahead of the rest.
+   */
+  private void updateVisibleMessages() {
+    if (!isResumed()) return;
+
+    Set<Long> messageIds = new HashSet<>();
+
+    for (int i = 0; i < list.getChildCount(); i++) {
+      View child = list.getChildAt(i);
+
+      if (child instanceof ConversationItem) {
+        MessageRecord messageRecord = ((ConversationItem)child).getMessageRecord();
+
+        if (messageRecord != null && messageRecord.isMms()) {
+          messageIds.add(messageRecord.getId());
+        }
+      }
+    }
+
+    AttachmentDownloadScheduler.getInstance().setVisibleMessages(messageIds);
+  }
+
   public interface ConversationFragmentListener {
     void setThreadId(long threadId);
   }
 
+  private class ConversationScrollListener extends RecyclerView.OnScrollListener {
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+      ConversationLoader  loader        = getConversationLoader();
+      LinearLayoutManager layoutManager = (LinearLayoutManager)recyclerView.getLayoutManager();
+
+      updateVisibleMessages();
+
+      if (loader == null) return;
+
+      if (layoutManager.findLastVisibleItemPosition() >= layoutManager.getItemCount() - PAGE_LOAD_THRESHOLD) {
+        loader.loadOlder();
+      } else if (layoutManager.findFirstVisibleItemPosition() <= PAGE_LOAD_THRESHOLD) {
+        loader.loadNewer();
+      }
+    }
+  }
+
   private class ConversationFragmentItemClickListener implements ItemClickListener {
 
     @Override
@@ -30,6 +30,7 @@ import android.view.ViewGroup;
 import org.thoughtcrime.redphone.util.Conversions;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.BodyPrefetcher;
 import org.thoughtcrime.securesms.database.CursorRecyclerViewAdapter;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
@@ -55,6 +56,7 @@ public class ConversationListAdapter extends CursorRecyclerViewAdapter<Conversat
   private final          ThreadDatabase    threadDatabase;
   private final          MasterSecret      masterSecret;
   private final          MasterCipher      masterCipher;
+  private final          BodyPrefetcher    bodyPrefetcher;
   private final          Locale            locale;
   private final          LayoutInflater    inflater;
   private final          ItemClickListener clickListener;
@@ -96,6 +98,7 @@ public class ConversationListAdapter extends CursorRecyclerViewAdapter<Conversat
     try {
       this.masterSecret   = masterSecret;
       this.masterCipher   = new MasterCipher(masterSecret);
+      this.bodyPrefetcher = BodyPrefetcher.forThreadList(masterSecret);
       this.threadDatabase = DatabaseFactory.getThreadDatabase(context);
       this.locale         = locale;
       this.inflater       = LayoutInflater.from(context);
@@ -144,6 +147,12 @@ public class ConversationListAdapter extends CursorRecyclerViewAdapter<Conversat
     }
   }
 
+  @Override
+  public void changeCursor(Cursor cursor) {
+    bodyPrefetcher.reset();
+    super.changeCursor(cursor);
+  }
+
   @Override
   public void onItemViewRecycled(ViewHolder holder) {
     holder.getItem().unbind();
@@ -166,7 +175,7 @@ public class ConversationListAdapter extends CursorRecyclerViewAdapter<Conversat
   }
 
   private ThreadRecord getThreadRecord(@NonNull Cursor cursor) {
-    return threadDatabase.readerFor(cursor, masterCipher).getCurrent();
+    return threadDatabase.readerFor(cursor, masterCipher, bodyPrefetcher).getCurrent();
   }
 
   public void toggleThreadInBatchSet(long threadId) {
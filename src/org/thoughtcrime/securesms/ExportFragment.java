@@ -17,6 +17,7 @@ import android.widget.Toast;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.database.PlaintextBackupExporter;
+import org.thoughtcrime.securesms.database.XmlBackup.ProgressListener;
 
 import java.io.IOException;
 
@@ -86,21 +87,38 @@ public class ExportFragment extends Fragment {
     builder.show();
   }
 
-  private class ExportPlaintextTask extends AsyncTask<Void, Void, Integer> {
+  private class ExportPlaintextTask extends AsyncTask<Void, Integer, Integer> implements ProgressListener {
     private ProgressDialog dialog;
 
     @Override
     protected void onPreExecute() {
-      dialog = ProgressDialog.show(getActivity(), 
-                                   getActivity().getString(R.string.ExportFragment_exporting), 
-                                   getActivity().getString(R.string.ExportFragment_exporting_plaintext_to_storage),
-                                   true, false);
+      dialog = new ProgressDialog(getActivity());
+      dialog.setTitle(getActivity().getString(R.string.ExportFragment_exporting));
+      dialog.setMessage(getActivity().getString(R.string.ExportFragment_exporting_plaintext_to_storage));
+      dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+      dialog.setIndeterminate(true);
+      dialog.setCancelable(false);
+      dialog.show();
+    }
+
+    @Override
+    public void onProgress(int complete, int total) {
+      publishProgress(complete, total);
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... progress) {
+      if (dialog != null && progress[1] > 0) {
+        dialog.setIndeterminate(false);
+        dialog.setMax(progress[1]);
+        dialog.setProgress(progress[0]);
+      }
     }
 
     @Override
     protected Integer doInBackground(Void... params) {
       try {
-        PlaintextBackupExporter.exportPlaintextToSd(getActivity(), masterSecret);
+        PlaintextBackupExporter.exportPlaintextToSd(getActivity(), masterSecret, this);
         return SUCCESS;
       } catch (NoExternalStorageException e) {
         Log.w("ExportFragment", e);
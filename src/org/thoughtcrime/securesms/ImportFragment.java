@@ -19,6 +19,7 @@ import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.EncryptedBackupExporter;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.database.PlaintextBackupImporter;
+import org.thoughtcrime.securesms.database.XmlBackup.ProgressListener;
 import org.thoughtcrime.securesms.service.ApplicationMigrationService;
 import org.thoughtcrime.securesms.service.KeyCachingService;
 
@@ -133,14 +134,31 @@ public class ImportFragment extends Fragment {
     builder.show();
   }
 
-  private class ImportPlaintextBackupTask extends AsyncTask<Void, Void, Integer> {
+  private class ImportPlaintextBackupTask extends AsyncTask<Void, Integer, Integer> implements ProgressListener {
 
     @Override
     protected void onPreExecute() {
-      progressDialog = ProgressDialog.show(getActivity(),
-                                           getActivity().getString(R.string.ImportFragment_importing),
-                                           getActivity().getString(R.string.ImportFragment_import_plaintext_backup_elipse),
-                                           true, false);
+      progressDialog = new ProgressDialog(getActivity());
+      progressDialog.setTitle(getActivity().getString(R.string.ImportFragment_importing));
+      progressDialog.setMessage(getActivity().getString(R.string.ImportFragment_import_plaintext_backup_elipse));
+      progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+      progressDialog.setIndeterminate(true);
+      progressDialog.setCancelable(false);
+      progressDialog.show();
+    }
+
+    @Override
+    public void onProgress(int complete, int total) {
+      publishProgress(complete, total);
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... progress) {
+      if (progressDialog != null && progress[1] > 0) {
+        progressDialog.setIndeterminate(false);
+        progressDialog.setMax(progress[1]);
+        progressDialog.setProgress(progress[0]);
+      }
     }
 
     protected void onPostExecute(Integer result) {
@@ -174,7 +192,7 @@ public class ImportFragment extends Fragment {
     @Override
     protected Integer doInBackground(Void... params) {
       try {
-        PlaintextBackupImporter.importPlaintextFromSd(getActivity(), masterSecret);
+        PlaintextBackupImporter.importPlaintextFromSd(getActivity(), masterSecret, this);
         return SUCCESS;
       } catch (NoExternalStorageException e) {
         Log.w("ImportFragment", e);
@@ -28,8 +28,6 @@ import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 
-import org.thoughtcrime.securesms.database.DatabaseFactory;
-import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.TextSecureDirectory;
 
 import java.util.ArrayList;
@@ -37,8 +35,6 @@ import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 
-import static org.thoughtcrime.securesms.database.GroupDatabase.GroupRecord;
-
 /**
  * This class was originally a layer of indirection between
  * ContactAccessorNewApi and ContactAccesorOldApi, which corresponded
@@ -132,41 +128,6 @@ public class ContactAccessor {
     return contactData;
   }
 
-  public List<String> getNumbersForThreadSearchFilter(Context context, String constraint) {
-    LinkedList<String> numberList = new LinkedList<>();
-    Cursor cursor                 = null;
-
-    try {
-      cursor = context.getContentResolver().query(Uri.withAppendedPath(Phone.CONTENT_FILTER_URI,
-                                                                       Uri.encode(constraint)),
-                                                  null, null, null, null);
-
-      while (cursor != null && cursor.moveToNext()) {
-        numberList.add(cursor.getString(cursor.getColumnIndexOrThrow(Phone.NUMBER)));
-      }
-
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
-
-    GroupDatabase.Reader reader = null;
-    GroupRecord record;
-
-    try {
-      reader = DatabaseFactory.getGroupDatabase(context).getGroupsFilteredByTitle(constraint);
-
-      while ((record = reader.getNext()) != null) {
-        numberList.add(record.getEncodedId());
-      }
-    } finally {
-      if (reader != null)
-        reader.close();
-    }
-
-    return numberList;
-  }
-
   public CharSequence phoneTypeToString(Context mContext, int type, CharSequence label) {
     return Phone.getTypeLabel(mContext.getResources(), type, label);
   }
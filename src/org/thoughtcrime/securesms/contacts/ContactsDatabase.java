@@ -41,6 +41,7 @@ import org.whispersystems.textsecure.api.util.InvalidNumberException;
 import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -69,6 +70,8 @@ public class ContactsDatabase {
   public static final int PUSH_TYPE   = 1;
   public static final int NEW_TYPE    = 2;
 
+  private static final int MAX_BATCH_SIZE = 100;
+
   private final Context context;
 
   public ContactsDatabase(Context context) {
@@ -93,14 +96,8 @@ public class ContactsDatabase {
       registeredNumbers.put(registeredNumber, registeredContact);
 
       if (!currentContacts.containsKey(registeredNumber)) {
-        Optional<SystemContactInfo> systemContactInfo = getSystemContactInfo(registeredNumber, localNumber);
-
-        if (systemContactInfo.isPresent()) {
-          Log.w(TAG, "Adding number: " + registeredNumber);
-          addedNumbers.add(registeredNumber);
-          addTextSecureRawContact(operations, account, systemContactInfo.get().number,
-                                  systemContactInfo.get().id, registeredContact.isVoice());
-        }
+        addRegisteredContact(operations, account, localNumber, registeredContact, addedNumbers);
+        applyBatchIfFull(operations);
       }
     }
 
@@ -112,19 +109,57 @@ public class ContactsDatabase {
           Log.w(TAG, "Removing number: " + currentContactEntry.getKey());
           removeTextSecureRawContact(operations, account, currentContactEntry.getValue().getId());
         }
-      } else if (tokenDetails.isVoice() && !currentContactEntry.getValue().isVoiceSupported()) {
-        Log.w(TAG, "Adding voice support: " + currentContactEntry.getKey());
-        addContactVoiceSupport(operations, currentContactEntry.getKey(), currentContactEntry.getValue().getId());
-      } else if (!tokenDetails.isVoice() && currentContactEntry.getValue().isVoiceSupported()) {
-        Log.w(TAG, "Removing voice support: " + currentContactEntry.getKey());
-        removeContactVoiceSupport(operations, currentContactEntry.getValue().getId());
+      } else {
+        updateVoiceSupport(operations, currentContactEntry.getKey(), currentContactEntry.getValue(), tokenDetails);
       }
+
+      applyBatchIfFull(operations);
     }
 
-    if (!operations.isEmpty()) {
-      context.getContentResolver().applyBatch(ContactsContract.AUTHORITY, operations);
+    applyBatch(operations);
+
+    return addedNumbers;
+  }
+
+  /**
+   * Applies only what changed in the system contacts since the last refresh: raw contacts
+   * are added for the given registered numbers and removed for numbers that are no longer
+   * system contacts.  Everything else is left alone.
+   */
+  public synchronized @NonNull List<String> updateRegisteredUsers(@NonNull Account account,
+                                                                  @NonNull String localNumber,
+                                                                  @NonNull List<ContactTokenDetails> addedContacts,
+                                                                  @NonNull Collection<String> removedNumbers)
+      throws RemoteException, OperationApplicationException
+  {
+    List<String>                        addedNumbers    = new LinkedList<>();
+    ArrayList<ContentProviderOperation> operations      = new ArrayList<>();
+    Map<String, SignalContact>          currentContacts = getSignalRawContacts(account, localNumber);
+
+    for (ContactTokenDetails addedContact : addedContacts) {
+      SignalContact currentContact = currentContacts.get(addedContact.getNumber());
+
+      if (currentContact == null) {
+        addRegisteredContact(operations, account, localNumber, addedContact, addedNumbers);
+      } else {
+        updateVoiceSupport(operations, addedContact.getNumber(), currentContact, addedContact);
+      }
+
+      applyBatchIfFull(operations);
     }
 
+    for (String removedNumber : removedNumbers) {
+      SignalContact currentContact = currentContacts.get(removedNumber);
+
+      if (currentContact != null) {
+        Log.w(TAG, "Removing number: " + removedNumber);
+        removeTextSecureRawContact(operations, account, currentContact.getId());
+        applyBatchIfFull(operations);
+      }
+    }
+
+    applyBatch(operations);
+
     return addedNumbers;
   }
 
@@ -213,6 +248,58 @@ public class ContactsDatabase {
 
   }
 
+  private void addRegisteredContact(@NonNull List<ContentProviderOperation> operations,
+                                    @NonNull Account account,
+                                    @NonNull String localNumber,
+                                    @NonNull ContactTokenDetails registeredContact,
+                                    @NonNull List<String> addedNumbers)
+  {
+    String                      registeredNumber  = registeredContact.getNumber();
+    Optional<SystemContactInfo> systemContactInfo = getSystemContactInfo(registeredNumber, localNumber);
+
+    if (systemContactInfo.isPresent()) {
+      Log.w(TAG, "Adding number: " + registeredNumber);
+      addedNumbers.add(registeredNumber);
+      addTextSecureRawContact(operations, account, systemContactInfo.get().number,
+                              systemContactInfo.get().id, registeredContact.isVoice());
+    }
+  }
+
+  private void updateVoiceSupport(@NonNull List<ContentProviderOperation> operations,
+                                  @NonNull String e164number,
+                                  @NonNull SignalContact currentContact,
+                                  @NonNull ContactTokenDetails tokenDetails)
+  {
+    if (tokenDetails.isVoice() && !currentContact.isVoiceSupported()) {
+      Log.w(TAG, "Adding voice support: " + e164number);
+      addContactVoiceSupport(operations, e164number, currentContact.getId());
+    } else if (!tokenDetails.isVoice() && currentContact.isVoiceSupported()) {
+      Log.w(TAG, "Removing voice support: " + e164number);
+      removeContactVoiceSupport(operations, currentContact.getId());
+    }
+  }
+
+  /**
+   * Operations for a single contact back-reference each other by their position in the
+   * batch, so a batch may only be applied between contacts.
+   */
+  private void applyBatchIfFull(@NonNull ArrayList<ContentProviderOperation> operations)
+      throws RemoteException, OperationApplicationException
+  {
+    if (operations.size() >= MAX_BATCH_SIZE) {
+      applyBatch(operations);
+    }
+  }
+
+  private void applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+      throws RemoteException, OperationApplicationException
+  {
+    if (!operations.isEmpty()) {
+      context.getContentResolver().applyBatch(ContactsContract.AUTHORITY, operations);
+      operations.clear();
+    }
+  }
+
   private void addContactVoiceSupport(List<ContentProviderOperation> operations,
                                       @NonNull String e164number, long rawContactId)
   {
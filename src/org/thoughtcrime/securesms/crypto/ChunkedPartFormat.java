@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.crypto;
+
+import javax.crypto.Mac;
+
+/**
+ * Layout of a chunked encrypted part on disk:
+ *
+ * <pre>
+ *   MAGIC (8) | chunk size (4) | chunk 0 | chunk 1 | ... | chunk n
+ * </pre>
+ *
+ * Every chunk but the last holds exactly {@link #CHUNK_SIZE} bytes of plaintext and
+ * is stored as IV (16) | AES-CBC ciphertext | HMAC-SHA1 (20), so its offset in the
+ * file can be computed from its index alone.  The MAC covers the header, the chunk
+ * index and whether it's the final chunk, so chunks can't be reordered, dropped or
+ * truncated off the end without detection.
+ *
+ * Files written before this format start directly with their IV, and are told apart
+ * by the absence of the magic.
+ */
+final class ChunkedPartFormat {
+
+  static final byte[] MAGIC = {'T', 'S', 'C', 'H', 'U', 'N', 'K', '1'};
+
+  static final int CHUNK_SIZE    = 64 * 1024;
+  static final int IV_LENGTH     = 16;
+  static final int BLOCK_SIZE    = 16;
+  static final int MAC_LENGTH    = 20;
+  static final int HEADER_LENGTH = MAGIC.length + 4;
+
+  static final int MAX_ENCRYPTED_CHUNK_LENGTH = getEncryptedChunkLength(CHUNK_SIZE);
+  static final int MIN_ENCRYPTED_CHUNK_LENGTH = getEncryptedChunkLength(0);
+
+  private ChunkedPartFormat() {}
+
+  static int getEncryptedChunkLength(int plaintextLength) {
+    return IV_LENGTH + (plaintextLength / BLOCK_SIZE + 1) * BLOCK_SIZE + MAC_LENGTH;
+  }
+
+  static long getChunkOffset(long chunkIndex) {
+    return HEADER_LENGTH + chunkIndex * MAX_ENCRYPTED_CHUNK_LENGTH;
+  }
+
+  static long getChunkCount(long fileLength) {
+    long body = fileLength - HEADER_LENGTH;
+    return (body + MAX_ENCRYPTED_CHUNK_LENGTH - 1) / MAX_ENCRYPTED_CHUNK_LENGTH;
+  }
+
+  static byte[] getHeader(int chunkSize) {
+    byte[] header = new byte[HEADER_LENGTH];
+    System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+
+    header[MAGIC.length    ] = (byte)(chunkSize >>> 24);
+    header[MAGIC.length + 1] = (byte)(chunkSize >>> 16);
+    header[MAGIC.length + 2] = (byte)(chunkSize >>> 8);
+    header[MAGIC.length + 3] = (byte)chunkSize;
+
+    return header;
+  }
+
+  /**
+   * Feeds everything a chunk's MAC covers, apart from its IV and ciphertext, to the MAC.
+   */
+  static void updateMac(Mac mac, byte[] header, long chunkIndex, boolean last) {
+    mac.update(header);
+
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      mac.update((byte)(chunkIndex >>> shift));
+    }
+
+    mac.update((byte)(last ? 1 : 0));
+  }
+}
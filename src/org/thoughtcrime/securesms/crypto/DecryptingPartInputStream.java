@@ -24,7 +24,6 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.lang.System;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -39,7 +38,13 @@ import android.util.Log;
 
 /**
  * Class for streaming an encrypted MMS "part" off the disk.
- * 
+ *
+ * Reads both the chunked format described by {@link ChunkedPartFormat}, which
+ * can {@link #skip(long)} straight to the chunk holding the target offset, and
+ * the legacy format of a single CBC stream with one trailing MAC, which has to
+ * decrypt its way there.  Either way, decryption goes into buffers that are
+ * allocated once and reused for the life of the stream.
+ *
  * @author Moxie Marlinspike
  */
 
@@ -47,16 +52,34 @@ public class DecryptingPartInputStream extends FileInputStream {
 
   private static final String TAG = DecryptingPartInputStream.class.getSimpleName();
 
-  private static final int IV_LENGTH  = 16;
-  private static final int MAC_LENGTH = 20;
+  private static final int IV_LENGTH   = 16;
+  private static final int MAC_LENGTH  = 20;
+  private static final int SKIP_LENGTH = 4096;
+
+  private final SecretKeySpec encryptionKey;
+  private final boolean       chunked;
 
   private Cipher cipher;
-  private Mac mac;
+  private Mac    mac;
+
+  private byte[] plaintext;
+  private int    plaintextOffset;
+  private int    plaintextLength;
+
+  // Chunked format
+  private byte[] header;
+  private byte[] encrypted;
+  private byte[] macBuffer;
+  private long   fileLength;
+  private long   chunkCount;
+  private long   chunkIndex = -1;
 
+  // Legacy format
   private boolean done;
-  private long totalDataSize;
-  private long totalRead;
-  private byte[] overflowBuffer;
+  private long    totalDataSize;
+  private long    totalRead;
+  private byte[]  internalBuffer;
+  private byte[]  skipBuffer;
 
   public DecryptingPartInputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
     super(file);
@@ -64,11 +87,15 @@ public class DecryptingPartInputStream extends FileInputStream {
       if (file.length() <= IV_LENGTH + MAC_LENGTH)
         throw new FileNotFoundException("Part shorter than crypto overhead!");
 
-      done          = false;
+      byte[] magic = new byte[ChunkedPartFormat.MAGIC.length];
+      readFully(magic, 0, magic.length);
+
+      encryptionKey = masterSecret.getEncryptionKey();
+      chunked       = Arrays.equals(magic, ChunkedPartFormat.MAGIC);
       mac           = initializeMac(masterSecret.getMacKey());
-      cipher        = initializeCipher(masterSecret.getEncryptionKey());
-      totalDataSize = file.length() - cipher.getBlockSize() - mac.getMacLength();
-      totalRead     = 0;
+
+      if (chunked) initializeChunked(file);
+      else         initializeLegacy(file, magic);
     } catch (InvalidKeyException ike) {
       Log.w(TAG, ike);
       throw new FileNotFoundException("Invalid key!");
@@ -76,10 +103,18 @@ public class DecryptingPartInputStream extends FileInputStream {
       throw new AssertionError(e);
     } catch (IOException e) {
       Log.w(TAG, e);
-      throw new FileNotFoundException("IOException while reading IV!");
+      throw new FileNotFoundException("IOException while reading header!");
     }
   }
 
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int    read   = read(buffer, 0, 1);
+
+    return read == -1 ? -1 : buffer[0] & 0xFF;
+  }
+
   @Override
   public int read(byte[] buffer) throws IOException {
     return read(buffer, 0, buffer.length);
@@ -87,12 +122,29 @@ public class DecryptingPartInputStream extends FileInputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
-    if (totalRead != totalDataSize)
-      return readIncremental(buffer, offset, length);
-    else if (!done)
-      return readFinal(buffer, offset, length);
-    else 
-      return -1;
+    if (length == 0) return 0;
+
+    for (;;) {
+      if (plaintextOffset == plaintextLength && !fill()) {
+        return -1;
+      }
+
+      if (plaintextOffset < plaintextLength) {
+        int read = Math.min(length, plaintextLength - plaintextOffset);
+        System.arraycopy(plaintext, plaintextOffset, buffer, offset, read);
+        plaintextOffset += read;
+        return read;
+      }
+
+      // The cipher can hold back a short read until it has a whole block.
+      int read = readIncremental(buffer, offset, length);
+      if (read > 0) return read;
+    }
+  }
+
+  @Override
+  public int available() throws IOException {
+    return plaintextLength - plaintextOffset;
   }
 
   @Override
@@ -102,31 +154,117 @@ public class DecryptingPartInputStream extends FileInputStream {
 
   @Override
   public long skip(long byteCount) throws IOException {
+    if (byteCount <= 0) return 0;
+    if (chunked)        return skipChunked(byteCount);
+
+    if (skipBuffer == null) skipBuffer = new byte[SKIP_LENGTH];
+
     long skipped = 0L;
     while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int)(byteCount-skipped))];
-      int    read = read(buf);
+      int read = read(skipBuffer, 0, (int)Math.min(skipBuffer.length, byteCount - skipped));
 
+      if (read == -1) break;
       skipped += read;
     }
 
     return skipped;
   }
-	
-  private int readFinal(byte[] buffer, int offset, int length) throws IOException {
+
+  /**
+   * Makes more plaintext available, either in the plaintext buffer or, for the
+   * legacy format, left in the cipher for {@link #readIncremental} to read directly
+   * into the caller's buffer.
+   *
+   * @return false at the end of the stream.
+   */
+  private boolean fill() throws IOException {
+    if (chunked) {
+      while (plaintextOffset == plaintextLength) {
+        if (chunkIndex + 1 >= chunkCount) return false;
+        loadChunk(chunkIndex + 1);
+      }
+
+      return true;
+    }
+
+    if (totalRead != totalDataSize) return true;
+    if (done)                       return false;
+
+    readFinal();
+    return plaintextOffset < plaintextLength;
+  }
+
+  private long skipChunked(long byteCount) throws IOException {
+    long position    = chunkIndex == -1 ? 0 : chunkIndex * ChunkedPartFormat.CHUNK_SIZE + plaintextOffset;
+    long target      = position + byteCount;
+    long targetChunk = Math.min(target / ChunkedPartFormat.CHUNK_SIZE, chunkCount - 1);
+
+    if (targetChunk != chunkIndex) {
+      loadChunk(targetChunk);
+    }
+
+    plaintextOffset = (int)Math.min(target - targetChunk * ChunkedPartFormat.CHUNK_SIZE, plaintextLength);
+
+    return targetChunk * ChunkedPartFormat.CHUNK_SIZE + plaintextOffset - position;
+  }
+
+  private void loadChunk(long index) throws IOException {
+    long    offset = ChunkedPartFormat.getChunkOffset(index);
+    boolean last   = index == chunkCount - 1;
+    int     length = last ? (int)(fileLength - offset) : ChunkedPartFormat.MAX_ENCRYPTED_CHUNK_LENGTH;
+
+    if (length < ChunkedPartFormat.MIN_ENCRYPTED_CHUNK_LENGTH ||
+        (length - IV_LENGTH - MAC_LENGTH) % cipher.getBlockSize() != 0)
+    {
+      throw new IOException("Truncated chunk!");
+    }
+
+    getChannel().position(offset);
+    readFully(encrypted, 0, length);
+
     try {
-      int flourish = cipher.doFinal(buffer, offset);
-      //mac.update(buffer, offset, flourish);
+      int ciphertextLength = length - MAC_LENGTH;
 
-      byte[] ourMac   = mac.doFinal();
-      byte[] theirMac = new byte[mac.getMacLength()];
-      readFully(theirMac);
+      ChunkedPartFormat.updateMac(mac, header, index, last);
+      mac.update(encrypted, 0, ciphertextLength);
+      mac.doFinal(macBuffer, 0);
 
-      if (!Arrays.equals(ourMac, theirMac))
+      if (!isEqual(macBuffer, encrypted, ciphertextLength, MAC_LENGTH))
+        throw new IOException("MAC doesn't match! Potential tampering?");
+
+      cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(encrypted, 0, IV_LENGTH));
+
+      chunkIndex      = index;
+      plaintextOffset = 0;
+      plaintextLength = cipher.doFinal(encrypted, IV_LENGTH, ciphertextLength - IV_LENGTH, plaintext, 0);
+
+      if (!last && plaintextLength != ChunkedPartFormat.CHUNK_SIZE)
+        throw new IOException("Short chunk!");
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException e) {
+      throw new AssertionError(e);
+    } catch (IllegalBlockSizeException e) {
+      Log.w(TAG, e);
+      throw new IOException("Illegal block size exception!");
+    } catch (BadPaddingException e) {
+      Log.w(TAG, e);
+      throw new IOException("Bad padding exception!");
+    }
+  }
+
+  private void readFinal() throws IOException {
+    try {
+      plaintextOffset = 0;
+      plaintextLength = cipher.doFinal(plaintext, 0);
+
+      mac.doFinal(macBuffer, 0);
+
+      byte[] theirMac = new byte[MAC_LENGTH];
+      readFully(theirMac, 0, theirMac.length);
+
+      if (!isEqual(macBuffer, theirMac, 0, MAC_LENGTH))
         throw new IOException("MAC doesn't match! Potential tampering?");
 
       done = true;
-      return flourish;
     } catch (IllegalBlockSizeException e) {
       Log.w(TAG, e);
       throw new IOException("Illegal block size exception!");
@@ -140,58 +278,84 @@ public class DecryptingPartInputStream extends FileInputStream {
   }
 
   private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
-    int readLength = 0;
-    if (null != overflowBuffer) {
-      if (overflowBuffer.length > length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(overflowBuffer, length, overflowBuffer.length);
-        return length;
-      } else if (overflowBuffer.length == length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = null;
-        return length;
-      } else {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, overflowBuffer.length);
-        readLength += overflowBuffer.length;
-        offset += readLength;
-        length -= readLength;
-        overflowBuffer = null;
-      }
-    }
+    int blockSize = cipher.getBlockSize();
 
     if (length + totalRead > totalDataSize)
       length = (int)(totalDataSize - totalRead);
 
-    byte[] internalBuffer = new byte[length];
-    int read              = super.read(internalBuffer, 0, internalBuffer.length <= cipher.getBlockSize() ? internalBuffer.length : internalBuffer.length - cipher.getBlockSize());
-    totalRead            += read;
+    // Leaving a block of room means the cipher's output, which may include a block
+    // it held back from the last read, usually fits in the caller's buffer.
+    int readLength = length <= blockSize ? length : length - blockSize;
+
+    if (internalBuffer == null || internalBuffer.length < readLength) {
+      internalBuffer = new byte[readLength];
+    }
+
+    int read = super.read(internalBuffer, 0, readLength);
+
+    if (read == -1) throw new IOException("Unexpected end of part!");
+    totalRead += read;
 
     try {
       mac.update(internalBuffer, 0, read);
 
-      int outputLen = cipher.getOutputSize(read);
+      int outputLength = cipher.getOutputSize(read);
 
-      if (outputLen <= length) {
-        readLength += cipher.update(internalBuffer, 0, read, buffer, offset);
-        return readLength;
+      if (outputLength <= length) {
+        return cipher.update(internalBuffer, 0, read, buffer, offset);
       }
 
-      byte[] transientBuffer = new byte[outputLen];
-      outputLen = cipher.update(internalBuffer, 0, read, transientBuffer, 0);
-      if (outputLen <= length) {
-        System.arraycopy(transientBuffer, 0, buffer, offset, outputLen);
-        readLength += outputLen;
-      } else {
-        System.arraycopy(transientBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(transientBuffer, length, outputLen);
-        readLength += length;
+      if (plaintext.length < outputLength) {
+        plaintext = new byte[outputLength];
       }
-      return readLength;
+
+      plaintextOffset = 0;
+      plaintextLength = cipher.update(internalBuffer, 0, read, plaintext, 0);
+
+      int copied = Math.min(length, plaintextLength);
+      System.arraycopy(plaintext, 0, buffer, offset, copied);
+      plaintextOffset = copied;
+
+      return copied;
     } catch (ShortBufferException e) {
       throw new AssertionError(e);
     }
   }
 
+  private void initializeChunked(File file)
+      throws IOException, NoSuchAlgorithmException, NoSuchPaddingException
+  {
+    byte[] chunkSize = new byte[ChunkedPartFormat.HEADER_LENGTH - ChunkedPartFormat.MAGIC.length];
+    readFully(chunkSize, 0, chunkSize.length);
+
+    header = ChunkedPartFormat.getHeader(ChunkedPartFormat.CHUNK_SIZE);
+
+    if (!Arrays.equals(chunkSize, Arrays.copyOfRange(header, ChunkedPartFormat.MAGIC.length, header.length)))
+      throw new IOException("Unsupported chunk size!");
+
+    if (file.length() < ChunkedPartFormat.HEADER_LENGTH + ChunkedPartFormat.MIN_ENCRYPTED_CHUNK_LENGTH)
+      throw new IOException("Part shorter than chunk overhead!");
+
+    cipher     = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    fileLength = file.length();
+    chunkCount = ChunkedPartFormat.getChunkCount(fileLength);
+    encrypted  = new byte[ChunkedPartFormat.MAX_ENCRYPTED_CHUNK_LENGTH];
+    plaintext  = new byte[ChunkedPartFormat.CHUNK_SIZE + cipher.getBlockSize()];
+    macBuffer  = new byte[MAC_LENGTH];
+  }
+
+  private void initializeLegacy(File file, byte[] ivPrefix)
+      throws IOException, InvalidKeyException, InvalidAlgorithmParameterException,
+             NoSuchAlgorithmException, NoSuchPaddingException
+  {
+    done          = false;
+    cipher        = initializeCipher(encryptionKey, ivPrefix);
+    totalDataSize = file.length() - cipher.getBlockSize() - mac.getMacLength();
+    totalRead     = 0;
+    plaintext     = new byte[2 * cipher.getBlockSize()];
+    macBuffer     = new byte[MAC_LENGTH];
+  }
+
   private Mac initializeMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
     Mac hmac = Mac.getInstance("HmacSHA1");
     hmac.init(key);
@@ -199,33 +363,44 @@ public class DecryptingPartInputStream extends FileInputStream {
     return hmac;
   }
 
-  private Cipher initializeCipher(SecretKeySpec key) 
+  private Cipher initializeCipher(SecretKeySpec key, byte[] ivPrefix)
     throws InvalidKeyException, InvalidAlgorithmParameterException, 
            NoSuchAlgorithmException, NoSuchPaddingException, IOException 
   {
     Cipher cipher      = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    IvParameterSpec iv = readIv(cipher.getBlockSize());
+    IvParameterSpec iv = readIv(cipher.getBlockSize(), ivPrefix);
     cipher.init(Cipher.DECRYPT_MODE, key, iv);
 
     return cipher;
   }
 
-  private IvParameterSpec readIv(int size) throws IOException {
+  private IvParameterSpec readIv(int size, byte[] prefix) throws IOException {
     byte[] iv = new byte[size];
-    readFully(iv);
+    System.arraycopy(prefix, 0, iv, 0, prefix.length);
+    readFully(iv, prefix.length, size - prefix.length);
 
     mac.update(iv);
     return new IvParameterSpec(iv);
   }
 
-  private void readFully(byte[] buffer) throws IOException {
-    int offset = 0;
+  private void readFully(byte[] buffer, int offset, int length) throws IOException {
+    while (length > 0) {
+      int read = super.read(buffer, offset, length);
 
-    for (;;) {
-      int read = super.read(buffer, offset, buffer.length-offset);
+      if (read == -1) throw new IOException("Unexpected end of part!");
 
-      if (read + offset < buffer.length) offset += read;
-      else                               return;
+      offset += read;
+      length -= read;
     }
   }
+
+  private static boolean isEqual(byte[] ours, byte[] theirs, int theirOffset, int length) {
+    int result = 0;
+
+    for (int i = 0; i < length; i++) {
+      result |= ours[i] ^ theirs[theirOffset + i];
+    }
+
+    return result == 0;
+  }
 }
@@ -28,32 +28,49 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 import android.util.Log;
 
 /**
- * A class for streaming an encrypted MMS "part" to disk.
- * 
+ * A class for streaming an encrypted MMS "part" to disk, in the chunked
+ * format described by {@link ChunkedPartFormat}.
+ *
  * @author Moxie Marlinspike
  */
 
 public class EncryptingPartOutputStream extends FileOutputStream {
 
-  private Cipher cipher;
-  private Mac mac;
+  private static final String TAG = EncryptingPartOutputStream.class.getSimpleName();
+
+  private final SecretKeySpec encryptionKey;
+  private final Cipher        cipher;
+  private final Mac           mac;
+  private final byte[]        header;
+  private final byte[]        plaintext;
+  private final byte[]        encrypted;
+
+  private int     plaintextLength;
+  private long    chunkIndex;
   private boolean closed;
 
   public EncryptingPartOutputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
     super(file);
 
     try {
-      mac    = initializeMac(masterSecret.getMacKey());
-      cipher = initializeCipher(mac, masterSecret.getEncryptionKey());
-      closed = false;
+      this.encryptionKey = masterSecret.getEncryptionKey();
+      this.mac           = initializeMac(masterSecret.getMacKey());
+      this.cipher        = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.header        = ChunkedPartFormat.getHeader(ChunkedPartFormat.CHUNK_SIZE);
+      this.plaintext     = new byte[ChunkedPartFormat.CHUNK_SIZE];
+      this.encrypted     = new byte[ChunkedPartFormat.MAX_ENCRYPTED_CHUNK_LENGTH];
+      this.closed        = false;
+
+      super.write(header, 0, header.length);
     } catch (IOException ioe) {
-      Log.w("EncryptingPartOutputStream", ioe);
-      throw new FileNotFoundException("Couldn't write IV");
+      Log.w(TAG, ioe);
+      throw new FileNotFoundException("Couldn't write header");
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     } catch (NoSuchAlgorithmException e) {
@@ -63,6 +80,11 @@ public class EncryptingPartOutputStream extends FileOutputStream {
     }
   }
 
+  @Override
+  public void write(int oneByte) throws IOException {
+    this.write(new byte[] {(byte)oneByte}, 0, 1);
+  }
+
   @Override
   public void write(byte[] buffer) throws IOException {
     this.write(buffer, 0, buffer.length);
@@ -70,33 +92,50 @@ public class EncryptingPartOutputStream extends FileOutputStream {
 
   @Override
   public void write(byte[] buffer, int offset, int length) throws IOException {
-    byte[] encryptedBuffer = cipher.update(buffer, offset, length);
+    while (length > 0) {
+      // A full chunk is only written out once more data arrives, so that whichever
+      // chunk is buffered at close() is the one marked as last.
+      if (plaintextLength == plaintext.length) {
+        writeChunk(false);
+      }
 
-    if (encryptedBuffer != null) {
-      mac.update(encryptedBuffer);
-      super.write(encryptedBuffer, 0, encryptedBuffer.length);
+      int copy = Math.min(length, plaintext.length - plaintextLength);
+      System.arraycopy(buffer, offset, plaintext, plaintextLength, copy);
+
+      plaintextLength += copy;
+      offset          += copy;
+      length          -= copy;
     }
   }
 
   @Override
   public void close() throws IOException {
+    if (!closed) {
+      writeChunk(true);
+      closed = true;
+    }
+
+    super.close();
+  }
+
+  private void writeChunk(boolean last) throws IOException {
     try {
-      if (!closed) {
-        byte[] encryptedRemainder = cipher.doFinal();
-        mac.update(encryptedRemainder);
+      cipher.init(Cipher.ENCRYPT_MODE, encryptionKey);
 
-        byte[] macBytes = mac.doFinal();
+      byte[] iv = cipher.getIV();
+      System.arraycopy(iv, 0, encrypted, 0, iv.length);
 
-        super.write(encryptedRemainder, 0, encryptedRemainder.length);
-        super.write(macBytes, 0, macBytes.length);
+      int length = iv.length + cipher.doFinal(plaintext, 0, plaintextLength, encrypted, iv.length);
 
-        closed = true;
-      }
+      ChunkedPartFormat.updateMac(mac, header, chunkIndex, last);
+      mac.update(encrypted, 0, length);
+      mac.doFinal(encrypted, length);
+
+      super.write(encrypted, 0, length + mac.getMacLength());
 
-      super.close();
-    } catch (BadPaddingException bpe) {
-      throw new AssertionError(bpe);
-    } catch (IllegalBlockSizeException e) {
+      plaintextLength = 0;
+      chunkIndex++;
+    } catch (InvalidKeyException | ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
       throw new AssertionError(e);
     }
   }
@@ -108,15 +147,4 @@ public class EncryptingPartOutputStream extends FileOutputStream {
     return hmac;
   }
 
-  private Cipher initializeCipher(Mac mac, SecretKeySpec key) throws IOException, InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
-    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    cipher.init(Cipher.ENCRYPT_MODE, key);
-
-    byte[] ivBytes = cipher.getIV();
-    mac.update(ivBytes);
-    super.write(ivBytes, 0, ivBytes.length);
-
-    return cipher;
-  }
-
 }
@@ -33,11 +33,10 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -49,26 +48,28 @@ import javax.crypto.spec.SecretKeySpec;
  * 1) 16 byte random IV.
  * 2) AES-CBC(plaintext)
  * 3) HMAC-SHA1 of 1 and 2
+ *
+ * Instances are cheap to create and safe to share between threads.  The
+ * underlying Cipher and Mac instances are pooled per thread, so the JCA
+ * provider lookup only happens once for each thread that touches local
+ * storage, and the Mac key is only re-initialized when it changes.
  * 
  * @author Moxie Marlinspike
  */
 
 public class MasterCipher {
 
+  private static final ThreadLocal<CipherState> cipherState = new ThreadLocal<CipherState>() {
+    @Override
+    protected CipherState initialValue() {
+      return new CipherState();
+    }
+  };
+
   private final MasterSecret masterSecret;
-  private final Cipher encryptingCipher;
-  private final Cipher decryptingCipher;
-  private final Mac hmac;
-	
+
   public MasterCipher(MasterSecret masterSecret) {
-    try {
-      this.masterSecret = masterSecret;		
-      this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.hmac             = Mac.getInstance("HmacSHA1");
-    } catch (NoSuchPaddingException | NoSuchAlgorithmException nspe) {
-      throw new AssertionError(nspe);
-    }
+    this.masterSecret = masterSecret;
   }
 
   public byte[] encryptKey(ECPrivateKey privateKey) {
@@ -80,7 +81,14 @@ public class MasterCipher {
   }
 	
   public String decryptBody(String body) throws InvalidMessageException {
-    return new String(decodeAndDecryptBytes(body));
+    try {
+      byte[] decodedBody = Base64.decode(body);
+      int    length      = decryptBytes(decodedBody, 0, decodedBody.length, decodedBody, 0);
+
+      return new String(decodedBody, 0, length);
+    } catch (IOException e) {
+      throw new InvalidMessageException("Bad Base64 Encoding...", e);
+    }
   }
 	
   public ECPrivateKey decryptKey(byte[] key)
@@ -95,26 +103,64 @@ public class MasterCipher {
 	
   public byte[] decryptBytes(@NonNull byte[] decodedBody) throws InvalidMessageException {
     try {
-      Mac mac              = getMac(masterSecret.getMacKey());
-      byte[] encryptedBody = verifyMacBody(mac, decodedBody);
-			
-      Cipher cipher        = getDecryptingCipher(masterSecret.getEncryptionKey(), encryptedBody);
-      byte[] encrypted     = getDecryptedBody(cipher, encryptedBody);
-			
-      return encrypted;
+      CipherState state      = cipherState.get();
+      int         bodyLength = verifyMacBody(state, decodedBody, 0, decodedBody.length);
+      Cipher      cipher     = state.getDecryptingCipher(masterSecret.getEncryptionKey(), decodedBody, 0);
+
+      return cipher.doFinal(decodedBody, cipher.getBlockSize(), bodyLength - cipher.getBlockSize());
     } catch (GeneralSecurityException ge) {
       throw new InvalidMessageException(ge);
     }
   }
-	
+
+  /**
+   * Verifies and decrypts a ciphertext that lives inside a larger buffer, writing the
+   * plaintext into a caller-supplied buffer.  The output may be the same array as the
+   * input (decrypting in place), and needs room for at most
+   * {@link #getMaxPlaintextLength(int)} bytes.
+   *
+   * @return the number of plaintext bytes written to <code>output</code>.
+   */
+  public int decryptBytes(@NonNull byte[] input, int inputOffset, int inputLength,
+                          @NonNull byte[] output, int outputOffset)
+      throws InvalidMessageException
+  {
+    try {
+      CipherState state      = cipherState.get();
+      int         bodyLength = verifyMacBody(state, input, inputOffset, inputLength);
+      Cipher      cipher     = state.getDecryptingCipher(masterSecret.getEncryptionKey(), input, inputOffset);
+      int         blockSize  = cipher.getBlockSize();
+
+      return cipher.doFinal(input, inputOffset + blockSize, bodyLength - blockSize, output, outputOffset);
+    } catch (GeneralSecurityException ge) {
+      throw new InvalidMessageException(ge);
+    }
+  }
+
+  public static int getMaxPlaintextLength(int ciphertextLength) {
+    return Math.max(0, ciphertextLength - CipherState.IV_LENGTH - CipherState.MAC_LENGTH);
+  }
+
   public byte[] encryptBytes(byte[] body) {
     try {
-      Cipher cipher              = getEncryptingCipher(masterSecret.getEncryptionKey());
-      Mac    mac                 = getMac(masterSecret.getMacKey());
-		
-      byte[] encryptedBody       = getEncryptedBody(cipher, body);
-      byte[] encryptedAndMacBody = getMacBody(mac, encryptedBody);
-		
+      CipherState state  = cipherState.get();
+      Cipher      cipher = state.getEncryptingCipher(masterSecret.getEncryptionKey());
+      Mac         mac    = state.getMac(masterSecret.getMacKey());
+
+      byte[] iv                  = cipher.getIV();
+      byte[] encryptedAndMacBody = new byte[iv.length + cipher.getOutputSize(body.length) + mac.getMacLength()];
+
+      System.arraycopy(iv, 0, encryptedAndMacBody, 0, iv.length);
+
+      int encryptedLength = iv.length + cipher.doFinal(body, 0, body.length, encryptedAndMacBody, iv.length);
+
+      mac.update(encryptedAndMacBody, 0, encryptedLength);
+      mac.doFinal(encryptedAndMacBody, encryptedLength);
+
+      if (encryptedLength + mac.getMacLength() != encryptedAndMacBody.length) {
+        return Arrays.copyOf(encryptedAndMacBody, encryptedLength + mac.getMacLength());
+      }
+
       return encryptedAndMacBody;
     } catch (GeneralSecurityException ge) {
       Log.w("bodycipher", ge);
@@ -133,91 +179,98 @@ public class MasterCipher {
   public byte[] getMacFor(String content) {
     Log.w("MasterCipher", "Macing: " + content);
     try {
-      Mac mac = getMac(masterSecret.getMacKey());
+      Mac mac = cipherState.get().getMac(masterSecret.getMacKey());
       return mac.doFinal(content.getBytes());
     } catch (GeneralSecurityException ike) {
       throw new AssertionError(ike);
     }
   }
 
-  private byte[] decodeAndDecryptBytes(String body) throws InvalidMessageException {
-    try {
-      byte[] decodedBody = Base64.decode(body);
-      return decryptBytes(decodedBody);
-    } catch (IOException e) {
-      throw new InvalidMessageException("Bad Base64 Encoding...", e);
-    }
-  }
-	
   private String encryptAndEncodeBytes(byte[] bytes) {
     byte[] encryptedAndMacBody = encryptBytes(bytes);
     return Base64.encodeBytes(encryptedAndMacBody);
   }
-	
-  private byte[] verifyMacBody(@NonNull Mac hmac, @NonNull byte[] encryptedAndMac) throws InvalidMessageException {
-    if (encryptedAndMac.length < hmac.getMacLength()) {
-      throw new InvalidMessageException("length(encrypted body + MAC) < length(MAC)");
+
+  /**
+   * @return the length of the IV and ciphertext that precede the MAC.
+   */
+  private int verifyMacBody(@NonNull CipherState state, @NonNull byte[] encryptedAndMac, int offset, int length)
+      throws InvalidMessageException, InvalidKeyException
+  {
+    Mac hmac = state.getMac(masterSecret.getMacKey());
+
+    if (length < hmac.getMacLength() + CipherState.IV_LENGTH) {
+      throw new InvalidMessageException("length(encrypted body + MAC) < length(IV + MAC)");
     }
 
-    byte[] encrypted = new byte[encryptedAndMac.length - hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, 0, encrypted, 0, encrypted.length);
-		
-    byte[] remoteMac = new byte[hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, encryptedAndMac.length - remoteMac.length, remoteMac, 0, remoteMac.length);
-		
-    byte[] localMac  = hmac.doFinal(encrypted);
-		
-    if (!Arrays.equals(remoteMac, localMac))
+    int encryptedLength = length - hmac.getMacLength();
+
+    hmac.update(encryptedAndMac, offset, encryptedLength);
+
+    try {
+      hmac.doFinal(state.localMac, 0);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+
+    int result = 0;
+
+    for (int i=0;i<state.localMac.length;i++) {
+      result |= state.localMac[i] ^ encryptedAndMac[offset + encryptedLength + i];
+    }
+
+    if (result != 0)
       throw new InvalidMessageException("MAC doesen't match.");
 		
-    return encrypted;
-  }
-	
-  private byte[] getDecryptedBody(Cipher cipher, byte[] encryptedBody) throws IllegalBlockSizeException, BadPaddingException {
-    return cipher.doFinal(encryptedBody, cipher.getBlockSize(), encryptedBody.length - cipher.getBlockSize());
-  }
-	
-  private byte[] getEncryptedBody(Cipher cipher, byte[] body) throws IllegalBlockSizeException, BadPaddingException {
-    byte[] encrypted = cipher.doFinal(body);
-    byte[] iv        = cipher.getIV();
-		
-    byte[] ivAndBody = new byte[iv.length + encrypted.length];
-    System.arraycopy(iv, 0, ivAndBody, 0, iv.length);
-    System.arraycopy(encrypted, 0, ivAndBody, iv.length, encrypted.length);
-		
-    return ivAndBody;
+    return encryptedLength;
   }
-	
-  private Mac getMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
-    //		Mac hmac = Mac.getInstance("HmacSHA1");
-    hmac.init(key);
 
-    return hmac;
-  }
-	
-  private byte[] getMacBody(Mac hmac, byte[] encryptedBody) {
-    byte[] mac             = hmac.doFinal(encryptedBody);
-    byte[] encryptedAndMac = new byte[encryptedBody.length + mac.length];
+  private static class CipherState {
 
-    System.arraycopy(encryptedBody, 0, encryptedAndMac, 0, encryptedBody.length);
-    System.arraycopy(mac, 0, encryptedAndMac, encryptedBody.length, mac.length);
-		
-    return encryptedAndMac;
-  }
-	
-  private Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody) throws InvalidKeyException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher      = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    IvParameterSpec iv = new IvParameterSpec(encryptedBody, 0, decryptingCipher.getBlockSize());
-    decryptingCipher.init(Cipher.DECRYPT_MODE, key, iv);
-		
-    return decryptingCipher;
-  }
-	
-  private Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    encryptingCipher.init(Cipher.ENCRYPT_MODE, key);
-		
-    return encryptingCipher;
+    private static final int IV_LENGTH  = 16;
+    private static final int MAC_LENGTH = 20;
+
+    private final Cipher encryptingCipher;
+    private final Cipher decryptingCipher;
+    private final Mac    hmac;
+    private final byte[] localMac = new byte[MAC_LENGTH];
+
+    private SecretKeySpec hmacKey;
+
+    CipherState() {
+      try {
+        this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.hmac             = Mac.getInstance("HmacSHA1");
+      } catch (NoSuchPaddingException | NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    Mac getMac(SecretKeySpec key) throws InvalidKeyException {
+      if (hmacKey == null || (hmacKey != key && !hmacKey.equals(key))) {
+        hmacKey = null;
+        hmac.init(key);
+        hmacKey = key;
+      } else {
+        hmac.reset();
+      }
+
+      return hmac;
+    }
+
+    Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody, int offset)
+        throws InvalidKeyException, InvalidAlgorithmParameterException
+    {
+      IvParameterSpec iv = new IvParameterSpec(encryptedBody, offset, IV_LENGTH);
+      decryptingCipher.init(Cipher.DECRYPT_MODE, key, iv);
+
+      return decryptingCipher;
+    }
+
+    Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException {
+      encryptingCipher.init(Cipher.ENCRYPT_MODE, key);
+      return encryptingCipher;
+    }
   }
-	
 }
@@ -9,6 +9,7 @@ import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
+import org.thoughtcrime.securesms.util.ClockCache;
 import org.thoughtcrime.securesms.util.Conversions;
 import org.whispersystems.libaxolotl.AxolotlAddress;
 import org.whispersystems.libaxolotl.InvalidMessageException;
@@ -19,10 +20,12 @@ import org.whispersystems.textsecure.api.push.TextSecureAddress;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -32,7 +35,18 @@ public class TextSecureSessionStore implements SessionStore {
 
   private static final String TAG                   = TextSecureSessionStore.class.getSimpleName();
   private static final String SESSIONS_DIRECTORY_V2 = "sessions-v2";
-  private static final Object FILE_LOCK             = new Object();
+
+  private static final int CACHE_SIZE   = 500;
+  private static final int LOCK_STRIPES = 32;
+
+  private static final ClockCache<String, CachedSession> sessionCache = new ClockCache<>(CACHE_SIZE);
+  private static final Object[]                          sessionLocks = new Object[LOCK_STRIPES];
+
+  static {
+    for (int i=0;i<sessionLocks.length;i++) {
+      sessionLocks[i] = new Object();
+    }
+  }
 
   private static final int SINGLE_STATE_VERSION   = 1;
   private static final int ARCHIVE_STATES_VERSION = 2;
@@ -51,70 +65,132 @@ public class TextSecureSessionStore implements SessionStore {
     this.masterSecret = masterSecret;
   }
 
+  /**
+   * Drops every cached session, for when the session files are replaced underneath
+   * the store, as a backup import does.
+   */
+  public static void clearCache() {
+    sessionCache.clear();
+  }
+
   @Override
   public SessionRecord loadSession(@NonNull AxolotlAddress address) {
-    synchronized (FILE_LOCK) {
-      try {
-        FileInputStream in            = new FileInputStream(getSessionFile(address));
-        int             versionMarker = readInteger(in);
+    String sessionName = getSessionName(address);
 
-        if (versionMarker > CURRENT_VERSION) {
-          throw new AssertionError("Unknown version: " + versionMarker);
-        }
+    synchronized (getLock(sessionName)) {
+      return loadSession(sessionName, address);
+    }
+  }
 
-        byte[] serialized = readBlob(in);
-        in.close();
+  private SessionRecord loadSession(@NonNull String sessionName, @NonNull AxolotlAddress address) {
+    try {
+      CachedSession cached = sessionCache.get(sessionName);
 
-        if (versionMarker < PLAINTEXT_VERSION && masterSecret != null) {
-          serialized = new MasterCipher(masterSecret).decryptBytes(serialized);
-        } else if (versionMarker < PLAINTEXT_VERSION) {
-          throw new AssertionError("Session didn't get migrated: (" + versionMarker + "," + address + ")");
-        }
+      if (cached != null) {
+        return cached.getRecord();
+      }
+
+      FileInputStream in            = new FileInputStream(getSessionFile(sessionName));
+      int             versionMarker = readInteger(in);
+
+      if (versionMarker > CURRENT_VERSION) {
+        throw new AssertionError("Unknown version: " + versionMarker);
+      }
+
+      byte[] serialized = readBlob(in);
+      in.close();
 
-        if (versionMarker == SINGLE_STATE_VERSION) {
-          SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
-          SessionState     sessionState     = new SessionState(sessionStructure);
-          return new SessionRecord(sessionState);
-        } else if (versionMarker >= ARCHIVE_STATES_VERSION) {
-          return new SessionRecord(serialized);
-        } else {
-          throw new AssertionError("Unknown version: " + versionMarker);
+      if (versionMarker < PLAINTEXT_VERSION && masterSecret != null) {
+        serialized = new MasterCipher(masterSecret).decryptBytes(serialized);
+      } else if (versionMarker < PLAINTEXT_VERSION) {
+        throw new AssertionError("Session didn't get migrated: (" + versionMarker + "," + address + ")");
+      }
+
+      if (versionMarker == SINGLE_STATE_VERSION) {
+        SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
+        SessionState     sessionState     = new SessionState(sessionStructure);
+        return new SessionRecord(sessionState);
+      } else if (versionMarker >= ARCHIVE_STATES_VERSION) {
+        SessionRecord record = new SessionRecord(serialized);
+
+        if (versionMarker == CURRENT_VERSION) {
+          sessionCache.put(sessionName, new CachedSession(serialized, record));
         }
-      } catch (InvalidMessageException | IOException e) {
-        Log.w(TAG, "No existing session information found.");
-        return new SessionRecord();
+
+        return record;
+      } else {
+        throw new AssertionError("Unknown version: " + versionMarker);
       }
+    } catch (FileNotFoundException e) {
+      Log.w(TAG, "No existing session information found.");
+      sessionCache.put(sessionName, CachedSession.EMPTY);
+      return new SessionRecord();
+    } catch (InvalidMessageException | IOException e) {
+      Log.w(TAG, "No existing session information found.");
+      return new SessionRecord();
     }
   }
 
+  /**
+   * Writes the record through to disk before returning, since a session that
+   * rolls back after a crash could reuse message keys.  A record that serializes
+   * the same as the one already stored (a decrypt that didn't advance the
+   * ratchet, for instance) isn't rewritten.
+   */
   @Override
   public void storeSession(@NonNull AxolotlAddress address, @NonNull SessionRecord record) {
-    synchronized (FILE_LOCK) {
+    String sessionName = getSessionName(address);
+
+    synchronized (getLock(sessionName)) {
+      byte[]        serialized = record.serialize();
+      CachedSession cached     = sessionCache.get(sessionName);
+
+      if (cached != null && Arrays.equals(cached.serialized, serialized)) {
+        return;
+      }
+
       try {
-        RandomAccessFile sessionFile  = new RandomAccessFile(getSessionFile(address), "rw");
+        RandomAccessFile sessionFile  = new RandomAccessFile(getSessionFile(sessionName), "rw");
         FileChannel      out          = sessionFile.getChannel();
 
         out.position(0);
         writeInteger(CURRENT_VERSION, out);
-        writeBlob(record.serialize(), out);
+        writeBlob(serialized, out);
         out.truncate(out.position());
 
         sessionFile.close();
       } catch (IOException e) {
         throw new AssertionError(e);
       }
+
+      sessionCache.put(sessionName, new CachedSession(serialized, record));
     }
   }
 
   @Override
   public boolean containsSession(AxolotlAddress address) {
-    return getSessionFile(address).exists() &&
-           loadSession(address).getSessionState().hasSenderChain();
+    String sessionName = getSessionName(address);
+
+    synchronized (getLock(sessionName)) {
+      CachedSession cached = sessionCache.get(sessionName);
+
+      if (cached != null) {
+        return cached.hasSenderChain;
+      }
+
+      return getSessionFile(sessionName).exists() &&
+             loadSession(sessionName, address).getSessionState().hasSenderChain();
+    }
   }
 
   @Override
   public void deleteSession(AxolotlAddress address) {
-    getSessionFile(address).delete();
+    String sessionName = getSessionName(address);
+
+    synchronized (getLock(sessionName)) {
+      getSessionFile(sessionName).delete();
+      sessionCache.put(sessionName, CachedSession.EMPTY);
+    }
   }
 
   @Override
@@ -154,14 +230,14 @@ public class TextSecureSessionStore implements SessionStore {
   }
 
   public void migrateSessions() {
-    synchronized (FILE_LOCK) {
-      File directory = getSessionDirectory();
+    File directory = getSessionDirectory();
 
-      for (File session : directory.listFiles()) {
-        if (session.isFile()) {
-          AxolotlAddress address = getAddressName(session);
+    for (File session : directory.listFiles()) {
+      if (session.isFile()) {
+        AxolotlAddress address = getAddressName(session);
 
-          if (address != null) {
+        if (address != null) {
+          synchronized (getLock(session.getName())) {
             SessionRecord sessionRecord = loadSession(address);
             storeSession(address, sessionRecord);
           }
@@ -170,8 +246,12 @@ public class TextSecureSessionStore implements SessionStore {
     }
   }
 
-  private File getSessionFile(AxolotlAddress address) {
-    return new File(getSessionDirectory(), getSessionName(address));
+  private static Object getLock(String sessionName) {
+    return sessionLocks[(sessionName.hashCode() & 0x7fffffff) % sessionLocks.length];
+  }
+
+  private File getSessionFile(String sessionName) {
+    return new File(getSessionDirectory(), sessionName);
   }
 
   private File getSessionDirectory() {
@@ -236,4 +316,30 @@ public class TextSecureSessionStore implements SessionStore {
     out.write(ByteBuffer.wrap(valueBytes));
   }
 
+  /**
+   * A session as it was last read from or written to disk.  Records are mutable,
+   * so the serialized form is kept and every load gets its own copy.
+   */
+  private static class CachedSession {
+
+    private static final CachedSession EMPTY = new CachedSession(null, false);
+
+    private final @Nullable byte[]  serialized;
+    private final           boolean hasSenderChain;
+
+    private CachedSession(@NonNull byte[] serialized, @NonNull SessionRecord record) {
+      this(serialized, record.getSessionState().hasSenderChain());
+    }
+
+    private CachedSession(@Nullable byte[] serialized, boolean hasSenderChain) {
+      this.serialized     = serialized;
+      this.hasSenderChain = hasSenderChain;
+    }
+
+    private SessionRecord getRecord() throws IOException {
+      if (serialized == null) return new SessionRecord();
+      else                    return new SessionRecord(serialized);
+    }
+  }
+
 }
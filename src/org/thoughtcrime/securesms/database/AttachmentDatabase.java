@@ -148,6 +148,7 @@ public class AttachmentDatabase extends Database {
     values.put(TRANSFER_STATE, TRANSFER_PROGRESS_FAILED);
 
     database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings());
+    invalidateRecord(mmsId);
     notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId));
   }
 
@@ -204,6 +205,29 @@ public class AttachmentDatabase extends Database {
     return attachments;
   }
 
+  /**
+   * @return The attachments cleared to download from the push server that haven't been
+   * fetched yet.
+   */
+  public @NonNull List<DatabaseAttachment> getPendingDownloads() {
+    final SQLiteDatabase           database    = databaseHelper.getReadableDatabase();
+    final List<DatabaseAttachment> attachments = new LinkedList<>();
+
+    Cursor cursor = null;
+    try {
+      cursor = database.query(TABLE_NAME, PROJECTION,
+                              TRANSFER_STATE + " = ? AND " + DATA + " IS NULL AND " + CONTENT_LOCATION + " IS NOT NULL",
+                              new String[] {String.valueOf(TRANSFER_PROGRESS_STARTED)}, null, null, null);
+      while (cursor != null && cursor.moveToNext()) {
+        attachments.add(getAttachment(cursor));
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    return attachments;
+  }
+
   @SuppressWarnings("ResultOfMethodCallIgnored")
   public void deleteAttachmentsForMessage(long mmsId) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
@@ -266,6 +290,7 @@ public class AttachmentDatabase extends Database {
       //noinspection ResultOfMethodCallIgnored
       partData.first.delete();
     } else {
+      invalidateRecord(mmsId);
       notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId));
       notifyConversationListListeners();
     }
@@ -308,6 +333,7 @@ public class AttachmentDatabase extends Database {
     contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
 
     database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+    invalidateRecord(databaseAttachment.getMmsId());
 
     return new DatabaseAttachment(databaseAttachment.getAttachmentId(),
                                   databaseAttachment.getMmsId(),
@@ -327,6 +353,7 @@ public class AttachmentDatabase extends Database {
 
     values.put(TRANSFER_STATE, TRANSFER_PROGRESS_DONE);
     database.update(TABLE_NAME, values, PART_ID_WHERE, ((DatabaseAttachment)attachment).getAttachmentId().toStrings());
+    invalidateRecord(messageId);
 
     notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId));
   }
@@ -345,6 +372,7 @@ public class AttachmentDatabase extends Database {
 
     values.put(TRANSFER_STATE, transferState);
     database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings());
+    invalidateRecord(messageId);
     notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId));
     ApplicationContext.getInstance(context).notifyMediaControlEvent();
   }
@@ -473,6 +501,10 @@ public class AttachmentDatabase extends Database {
     long         rowId        = database.insert(TABLE_NAME, null, contentValues);
     AttachmentId attachmentId = new AttachmentId(rowId, uniqueId);
 
+    database.execSQL("UPDATE " + MmsDatabase.TABLE_NAME + " SET " + MmsDatabase.FIRST_PART_ID + " = ?" +
+                     " WHERE " + MmsDatabase.ID + " = ? AND " + MmsDatabase.FIRST_PART_ID + " IS NULL",
+                     new Object[] {rowId, mmsId});
+
     if (attachment.getThumbnail() != null && masterSecret.getMasterSecret().isPresent()) {
       Log.w(TAG, "inserting pre-generated thumbnail");
       ThumbnailData data = new ThumbnailData(attachment.getThumbnail());
@@ -485,6 +517,10 @@ public class AttachmentDatabase extends Database {
   }
 
 
+  private void invalidateRecord(long mmsId) {
+    DatabaseFactory.getMessageRecordCache(context).remove(true, mmsId);
+  }
+
   @VisibleForTesting
   void updateAttachmentThumbnail(MasterSecret masterSecret, AttachmentId attachmentId, InputStream in, float aspectRatio)
       throws MmsException
@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.util.Hex;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records the size, modification time and per-chunk SHA-256 digests of every file in
+ * an encrypted backup, so that an export only has to rewrite the chunks of the files
+ * that changed since the last one.
+ *
+ * Each change is appended to the manifest as soon as its file has been written, so an
+ * interrupted export picks up where it left off.  The manifest is compacted once an
+ * export completes.
+ */
+class BackupManifest {
+
+  private static final String TAG = BackupManifest.class.getSimpleName();
+
+  private static final int    CHUNK_SIZE    = 1024 * 1024;
+  private static final String FILE_RECORD   = "F";
+  private static final String DELETE_RECORD = "D";
+  private static final String SEPARATOR     = "\t";
+
+  private final File               manifestFile;
+  private final Map<String, Entry> entries;
+
+  private BufferedWriter journal;
+
+  private BackupManifest(@NonNull File manifestFile, @NonNull Map<String, Entry> entries) {
+    this.manifestFile = manifestFile;
+    this.entries      = entries;
+  }
+
+  public static @NonNull BackupManifest load(@NonNull File manifestFile) throws IOException {
+    Map<String, Entry> entries = new HashMap<>();
+
+    if (!manifestFile.exists()) {
+      return new BackupManifest(manifestFile, entries);
+    }
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+
+    try {
+      String line;
+
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split(SEPARATOR, -1);
+
+        try {
+          if (fields[0].equals(FILE_RECORD) && fields.length == 5) {
+            List<String> digests = fields[4].isEmpty() ? Collections.<String>emptyList()
+                                                       : Arrays.asList(fields[4].split(","));
+
+            entries.put(fields[1], new Entry(Long.parseLong(fields[2]), Long.parseLong(fields[3]), digests));
+          } else if (fields[0].equals(DELETE_RECORD) && fields.length == 2) {
+            entries.remove(fields[1]);
+          } else {
+            Log.w(TAG, "Skipping malformed manifest record");
+          }
+        } catch (NumberFormatException e) {
+          Log.w(TAG, e);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    return new BackupManifest(manifestFile, entries);
+  }
+
+  public @Nullable Entry get(@NonNull String path) {
+    return entries.get(path);
+  }
+
+  public @NonNull Set<String> getPaths() {
+    return entries.keySet();
+  }
+
+  public void put(@NonNull String path, @NonNull Entry entry) throws IOException {
+    entries.put(path, entry);
+    appendEntry(getJournal(), path, entry);
+    journal.flush();
+  }
+
+  public void remove(@NonNull String path) throws IOException {
+    entries.remove(path);
+    getJournal().write(DELETE_RECORD + SEPARATOR + path + "\n");
+    journal.flush();
+  }
+
+  /**
+   * Rewrites the manifest with only the current entries.
+   */
+  public void compact() throws IOException {
+    close();
+
+    File           temporary = new File(manifestFile.getPath() + ".tmp");
+    BufferedWriter writer    = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"));
+
+    try {
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        appendEntry(writer, entry.getKey(), entry.getValue());
+      }
+    } finally {
+      writer.close();
+    }
+
+    if (!temporary.renameTo(manifestFile)) {
+      throw new IOException("Unable to replace manifest");
+    }
+  }
+
+  public void close() throws IOException {
+    if (journal != null) {
+      journal.close();
+      journal = null;
+    }
+  }
+
+  /**
+   * Makes the target a copy of the source, only writing the chunks that differ.
+   *
+   * @param targetDigests The digests the target's chunks are known to have, or null to
+   *                      compare against the target's contents instead.
+   * @return An entry describing the source as it was copied.
+   */
+  public static @NonNull Entry copyChangedChunks(@NonNull File source, @NonNull File target,
+                                                 @Nullable List<String> targetDigests)
+      throws IOException
+  {
+    long             modified = source.lastModified();
+    List<String>     digests  = new ArrayList<>();
+    byte[]           buffer   = new byte[CHUNK_SIZE];
+    byte[]           existing = targetDigests == null ? new byte[CHUNK_SIZE] : null;
+    MessageDigest    digest   = getDigest();
+    InputStream      in       = new FileInputStream(source);
+    RandomAccessFile out      = new RandomAccessFile(target, "rw");
+    long             length   = 0;
+    int              written  = 0;
+
+    try {
+      long targetLength = out.length();
+      int  read;
+
+      while ((read = readChunk(in, buffer)) > 0) {
+        digest.update(buffer, 0, read);
+
+        String  chunkDigest = Hex.toStringCondensed(digest.digest());
+        int     index       = digests.size();
+        boolean unchanged;
+
+        if (length + read > targetLength) {
+          unchanged = false;
+        } else if (targetDigests != null) {
+          unchanged = index < targetDigests.size() && targetDigests.get(index).equals(chunkDigest);
+        } else {
+          out.seek(length);
+          out.readFully(existing, 0, read);
+          unchanged = isEqual(buffer, existing, read);
+        }
+
+        if (!unchanged) {
+          out.seek(length);
+          out.write(buffer, 0, read);
+          written++;
+        }
+
+        digests.add(chunkDigest);
+        length += read;
+      }
+
+      out.setLength(length);
+    } finally {
+      in.close();
+      out.close();
+    }
+
+    if (written > 0) {
+      Log.w(TAG, "Wrote " + written + " of " + digests.size() + " chunks to " + target.getName());
+    }
+
+    return new Entry(length, modified, digests);
+  }
+
+  private static void appendEntry(@NonNull BufferedWriter writer, @NonNull String path, @NonNull Entry entry)
+      throws IOException
+  {
+    writer.write(FILE_RECORD + SEPARATOR + path + SEPARATOR + entry.size + SEPARATOR + entry.modified +
+                 SEPARATOR + TextUtils.join(",", entry.digests) + "\n");
+  }
+
+  private @NonNull BufferedWriter getJournal() throws IOException {
+    if (journal == null) {
+      journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifestFile, true), "UTF-8"));
+    }
+
+    return journal;
+  }
+
+  private static int readChunk(@NonNull InputStream in, @NonNull byte[] buffer) throws IOException {
+    int offset = 0;
+    int read;
+
+    while (offset < buffer.length && (read = in.read(buffer, offset, buffer.length - offset)) != -1) {
+      offset += read;
+    }
+
+    return offset;
+  }
+
+  private static boolean isEqual(@NonNull byte[] first, @NonNull byte[] second, int length) {
+    for (int i = 0; i < length; i++) {
+      if (first[i] != second[i]) return false;
+    }
+
+    return true;
+  }
+
+  private static @NonNull MessageDigest getDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public static class Entry {
+    private final long         size;
+    private final long         modified;
+    private final List<String> digests;
+
+    public Entry(long size, long modified, @NonNull List<String> digests) {
+      this.size     = size;
+      this.modified = modified;
+      this.digests  = digests;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getModified() {
+      return modified;
+    }
+
+    public @NonNull List<String> getDigests() {
+      return digests;
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterCipher;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.util.LinkedBlockingLifoQueue;
+import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.Util;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decrypts the bodies of the rows just ahead of a cursor's position on a small
+ * worker pool, so that a reader driven from the UI thread finds the plaintext
+ * ready (or already in flight) by the time it binds those rows.
+ *
+ * Cursors aren't thread safe, so the ciphertext is read on the calling thread
+ * and only the Base64 decode, MAC check and AES work is handed off.
+ */
+public class BodyPrefetcher {
+
+  private static final String TAG = BodyPrefetcher.class.getSimpleName();
+
+  private static final int WINDOW_SIZE = 20;
+  private static final int MAX_PENDING = 5 * WINDOW_SIZE;
+
+  private static final ExecutorService executor = newExecutor();
+
+  private final MasterCipher masterCipher;
+  private final String       bodyColumn;
+  private final String[]     typeColumns;
+
+  private final Map<String, Future<String>> pending =
+      Collections.synchronizedMap(new LRUCache<String, Future<String>>(MAX_PENDING) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Future<String>> eldest) {
+          if (size() > MAX_PENDING) {
+            eldest.getValue().cancel(false);
+            return true;
+          }
+
+          return false;
+        }
+      });
+
+  private int prefetchedFrom = -1;
+  private int prefetchedTo   = -1;
+
+  private BodyPrefetcher(@NonNull MasterSecret masterSecret,
+                         @NonNull String bodyColumn,
+                         @NonNull String... typeColumns)
+  {
+    this.masterCipher = new MasterCipher(masterSecret);
+    this.bodyColumn   = bodyColumn;
+    this.typeColumns  = typeColumns;
+  }
+
+  public static BodyPrefetcher forConversation(@NonNull MasterSecret masterSecret) {
+    return new BodyPrefetcher(masterSecret, MmsSmsColumns.BODY, SmsDatabase.TYPE, MmsDatabase.MESSAGE_BOX);
+  }
+
+  public static BodyPrefetcher forThreadList(@NonNull MasterSecret masterSecret) {
+    return new BodyPrefetcher(masterSecret, ThreadDatabase.SNIPPET, ThreadDatabase.SNIPPET_TYPE);
+  }
+
+  /**
+   * Schedules decryption of the next window of rows after the cursor's current
+   * position.  The cursor is returned to its original position before this returns.
+   */
+  public void prefetch(@NonNull Cursor cursor) {
+    int position = cursor.getPosition();
+    int start    = position + 1;
+    int end      = Math.min(position + WINDOW_SIZE, cursor.getCount() - 1);
+
+    if (start > end) return;
+
+    if (start >= prefetchedFrom && start <= prefetchedTo + 1) {
+      if (end <= prefetchedTo) return;
+      start = prefetchedTo + 1;
+    } else {
+      prefetchedFrom = start;
+    }
+
+    prefetchedTo = end;
+
+    try {
+      for (int i=start;i<=end;i++) {
+        if (!cursor.moveToPosition(i)) break;
+
+        final String body = cursor.getString(cursor.getColumnIndexOrThrow(bodyColumn));
+
+        if (TextUtils.isEmpty(body) || !isSymmetricEncryption(cursor) || pending.containsKey(body)) {
+          continue;
+        }
+
+        pending.put(body, executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws InvalidMessageException {
+            return masterCipher.decryptBody(body);
+          }
+        }));
+      }
+    } finally {
+      cursor.moveToPosition(position);
+    }
+  }
+
+  /**
+   * Returns the plaintext for a body, waiting on a prefetch that's already running
+   * for it, or decrypting on the calling thread if it never got picked up.
+   */
+  public String decryptBody(@NonNull String ciphertext) throws InvalidMessageException {
+    Future<String> future = pending.remove(ciphertext);
+
+    if (future != null && (future.isDone() || !future.cancel(false))) {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        Log.w(TAG, e);
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof InvalidMessageException) {
+          throw (InvalidMessageException)e.getCause();
+        }
+
+        throw new AssertionError(e);
+      }
+    }
+
+    return masterCipher.decryptBody(ciphertext);
+  }
+
+  /**
+   * Forgets which rows have been scanned, for when the underlying cursor is swapped.
+   * Bodies that are already decrypting are kept, since they're keyed by ciphertext.
+   */
+  public void reset() {
+    prefetchedFrom = -1;
+    prefetchedTo   = -1;
+  }
+
+  private boolean isSymmetricEncryption(@NonNull Cursor cursor) {
+    for (String typeColumn : typeColumns) {
+      int columnIndex = cursor.getColumnIndexOrThrow(typeColumn);
+
+      if (!cursor.isNull(columnIndex)) {
+        return MmsSmsColumns.Types.isSymmetricEncryption(cursor.getLong(columnIndex));
+      }
+    }
+
+    return false;
+  }
+
+  private static ExecutorService newExecutor() {
+    int threads = Util.clamp(Runtime.getRuntime().availableProcessors() - 1, 1, 3);
+
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                  new LinkedBlockingLifoQueue<Runnable>(),
+                                  new ThreadFactory() {
+                                    @Override
+                                    public Thread newThread(@NonNull Runnable runnable) {
+                                      Thread thread = new Thread(runnable, "BodyPrefetcher");
+                                      thread.setPriority(Thread.MIN_PRIORITY + 1);
+                                      thread.setDaemon(true);
+                                      return thread;
+                                    }
+                                  });
+  }
+}
@@ -39,6 +39,7 @@ import org.thoughtcrime.securesms.util.VisibleForTesting;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -140,12 +141,36 @@ public class CanonicalAddressDatabase {
     }
   }
 
+  /**
+   * @return A read-only live view of every known address, keyed by canonical address id.
+   */
+  public @NonNull Map<Long, String> getAddresses() {
+    return Collections.unmodifiableMap(idCache);
+  }
+
+  public int getAddressCount() {
+    return idCache.size();
+  }
+
   public void close() {
     databaseHelper.close();
     instance = null;
   }
 
   public long getCanonicalAddressId(@NonNull String address) {
+    return getCanonicalAddressId(address, true);
+  }
+
+  /**
+   * Like {@link #getCanonicalAddressId(String)}, but never inserts a new row.
+   *
+   * @return The id of the address, or -1 if it has never been seen.
+   */
+  public long getExistingCanonicalAddressId(@NonNull String address) {
+    return getCanonicalAddressId(address, false);
+  }
+
+  private long getCanonicalAddressId(@NonNull String address, boolean create) {
     try {
       long canonicalAddressId;
 
@@ -161,7 +186,11 @@ public class CanonicalAddressDatabase {
         return canonicalAddressId;
       }
 
-      canonicalAddressId = getCanonicalAddressIdFromDatabase(address);
+      canonicalAddressId = getCanonicalAddressIdFromDatabase(address, create);
+
+      if (canonicalAddressId == -1) {
+        return canonicalAddressId;
+      }
 
       idCache.put(canonicalAddressId, address);
       addressCache.put(address, canonicalAddressId);
@@ -187,7 +216,7 @@ public class CanonicalAddressDatabase {
     return cachedAddress == null ? -1L : cachedAddress;
   }
 
-  private long getCanonicalAddressIdFromDatabase(@NonNull String address) {
+  private long getCanonicalAddressIdFromDatabase(@NonNull String address, boolean create) {
     Log.w(TAG, "Hitting DB on query [ADDRESS]");
 
     Cursor cursor = null;
@@ -201,6 +230,8 @@ public class CanonicalAddressDatabase {
                         selectionArguments, null, null, null);
 
       if (cursor.getCount() == 0 || !cursor.moveToFirst()) {
+        if (!create) return -1;
+
         ContentValues contentValues = new ContentValues(1);
         contentValues.put(ADDRESS_COLUMN, address);
         return db.insert(TABLE, ADDRESS_COLUMN, contentValues);
@@ -71,7 +71,15 @@ public class DatabaseFactory {
   private static final int INTRODUCED_ARCHIVE_VERSION                      = 24;
   private static final int INTRODUCED_CONVERSATION_LIST_STATUS_VERSION     = 25;
   private static final int MIGRATED_CONVERSATION_LIST_STATUS_VERSION       = 26;
-  private static final int DATABASE_VERSION                                = 26;
+  private static final int INTRODUCED_THREAD_SNIPPET_ID_VERSION            = 27;
+  private static final int INTRODUCED_FIRST_PART_ID_VERSION                = 28;
+  private static final int INTRODUCED_PUSH_BLOB_VERSION                    = 29;
+  private static final int INTRODUCED_PUSH_SMS_ID_VERSION                  = 30;
+  private static final int INTRODUCED_SEARCH_INDEX_VERSION                 = 31;
+  private static final int INTRODUCED_GROUP_MEMBERS_VERSION                = 32;
+  private static final int INTRODUCED_PUSH_DIGEST_VERSION                  = 33;
+  private static final int INTRODUCED_PENDING_RECEIPTS_VERSION             = 34;
+  private static final int DATABASE_VERSION                                = 34;
 
   private static final String DATABASE_NAME    = "messages.db";
   private static final Object lock             = new Object();
@@ -95,6 +103,9 @@ public class DatabaseFactory {
   private final GroupDatabase groupDatabase;
   private final RecipientPreferenceDatabase recipientPreferenceDatabase;
   private final ContactsDatabase contactsDatabase;
+  private final MessageRecordCache messageRecordCache;
+  private final RecipientSearchIndex recipientSearchIndex;
+  private final SearchDatabase searchDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -165,6 +176,18 @@ public class DatabaseFactory {
     return getInstance(context).contactsDatabase;
   }
 
+  public static MessageRecordCache getMessageRecordCache(Context context) {
+    return getInstance(context).messageRecordCache;
+  }
+
+  public static RecipientSearchIndex getRecipientSearchIndex(Context context) {
+    return getInstance(context).recipientSearchIndex;
+  }
+
+  public static SearchDatabase getSearchDatabase(Context context) {
+    return getInstance(context).searchDatabase;
+  }
+
   private DatabaseFactory(Context context) {
     this.databaseHelper              = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
     this.sms                         = new SmsDatabase(context, databaseHelper);
@@ -182,6 +205,9 @@ public class DatabaseFactory {
     this.groupDatabase               = new GroupDatabase(context, databaseHelper);
     this.recipientPreferenceDatabase = new RecipientPreferenceDatabase(context, databaseHelper);
     this.contactsDatabase            = new ContactsDatabase(context);
+    this.messageRecordCache          = new MessageRecordCache();
+    this.recipientSearchIndex        = new RecipientSearchIndex(context);
+    this.searchDatabase              = new SearchDatabase(context, databaseHelper);
   }
 
   public void reset(Context context) {
@@ -200,6 +226,9 @@ public class DatabaseFactory {
     this.pushDatabase.reset(databaseHelper);
     this.groupDatabase.reset(databaseHelper);
     this.recipientPreferenceDatabase.reset(databaseHelper);
+    this.searchDatabase.reset(databaseHelper);
+    this.messageRecordCache.clear();
+    this.recipientSearchIndex.invalidate();
     old.close();
 
     this.address.reset(context);
@@ -495,8 +524,11 @@ public class DatabaseFactory {
 
   private static class DatabaseHelper extends SQLiteOpenHelper {
 
+    private final Context context;
+
     public DatabaseHelper(Context context, String name, CursorFactory factory, int version) {
       super(context, name, factory, version);
+      this.context = context;
     }
 
     @Override
@@ -510,7 +542,10 @@ public class DatabaseFactory {
       db.execSQL(DraftDatabase.CREATE_TABLE);
       db.execSQL(PushDatabase.CREATE_TABLE);
       db.execSQL(GroupDatabase.CREATE_TABLE);
+      db.execSQL(GroupDatabase.CREATE_MEMBERS_TABLE);
       db.execSQL(RecipientPreferenceDatabase.CREATE_TABLE);
+      db.execSQL(SearchDatabase.CREATE_TABLE);
+      db.execSQL(DeliveryReceiptBatcher.CREATE_TABLE);
 
       executeStatements(db, SmsDatabase.CREATE_INDEXS);
       executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -519,6 +554,8 @@ public class DatabaseFactory {
       executeStatements(db, MmsAddressDatabase.CREATE_INDEXS);
       executeStatements(db, DraftDatabase.CREATE_INDEXS);
       executeStatements(db, GroupDatabase.CREATE_INDEXS);
+      executeStatements(db, PushDatabase.CREATE_INDEXS);
+      executeStatements(db, SearchDatabase.CREATE_INDEXS);
     }
 
     @Override
@@ -813,6 +850,114 @@ public class DatabaseFactory {
         }
       }
 
+      if (oldVersion < INTRODUCED_THREAD_SNIPPET_ID_VERSION) {
+        db.execSQL("ALTER TABLE thread ADD COLUMN snippet_message_id INTEGER DEFAULT -1");
+        db.execSQL("ALTER TABLE thread ADD COLUMN snippet_mms INTEGER DEFAULT 0");
+      }
+
+      if (oldVersion < INTRODUCED_FIRST_PART_ID_VERSION) {
+        db.execSQL("ALTER TABLE mms ADD COLUMN first_part_id INTEGER DEFAULT NULL");
+        db.execSQL("UPDATE mms SET first_part_id = (SELECT MIN(part._id) FROM part WHERE part.mid = mms._id)");
+      }
+
+      if (oldVersion < INTRODUCED_PUSH_BLOB_VERSION) {
+        db.execSQL("ALTER TABLE push RENAME TO push_text");
+        db.execSQL("CREATE TABLE push (_id INTEGER PRIMARY KEY, type INTEGER, source TEXT, device_id INTEGER, body BLOB, content BLOB, timestamp INTEGER);");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS push_envelope_index ON push (type, source, device_id, body, content, timestamp);");
+
+        Cursor cursor = db.query("push_text", null, null, null, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          ContentValues values = new ContentValues();
+          values.put("_id", cursor.getLong(cursor.getColumnIndexOrThrow("_id")));
+          values.put("type", cursor.getInt(cursor.getColumnIndexOrThrow("type")));
+          values.put("source", cursor.getString(cursor.getColumnIndexOrThrow("source")));
+          values.put("device_id", cursor.getInt(cursor.getColumnIndexOrThrow("device_id")));
+          values.put("timestamp", cursor.getLong(cursor.getColumnIndexOrThrow("timestamp")));
+
+          try {
+            String body    = cursor.getString(cursor.getColumnIndexOrThrow("body"));
+            String content = cursor.getString(cursor.getColumnIndexOrThrow("content"));
+
+            values.put("body", TextUtils.isEmpty(body) ? new byte[0] : Base64.decode(body));
+            values.put("content", TextUtils.isEmpty(content) ? new byte[0] : Base64.decode(content));
+          } catch (IOException e) {
+            Log.w("DatabaseFactory", e);
+            continue;
+          }
+
+          db.insertWithOnConflict("push", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        }
+
+        if (cursor != null)
+          cursor.close();
+
+        db.execSQL("DROP TABLE push_text");
+      }
+
+      if (oldVersion < INTRODUCED_PUSH_SMS_ID_VERSION) {
+        db.execSQL("ALTER TABLE push ADD COLUMN sms_message_id INTEGER DEFAULT -1");
+      }
+
+      if (oldVersion < INTRODUCED_SEARCH_INDEX_VERSION) {
+        db.execSQL("ALTER TABLE sms ADD COLUMN search_indexed INTEGER DEFAULT 0");
+        db.execSQL("ALTER TABLE mms ADD COLUMN search_indexed INTEGER DEFAULT 0");
+        db.execSQL("CREATE TABLE search_token (token INTEGER, message INTEGER);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS search_token_index ON search_token (token);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS search_token_message_index ON search_token (message);");
+      }
+
+      if (oldVersion < INTRODUCED_GROUP_MEMBERS_VERSION) {
+        db.execSQL("CREATE TABLE group_members (_id INTEGER PRIMARY KEY, group_id TEXT, recipient_id INTEGER);");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS group_members_index ON group_members (group_id, recipient_id);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS group_members_recipient_index ON group_members (recipient_id);");
+
+        CanonicalAddressDatabase addressDatabase = CanonicalAddressDatabase.getInstance(context);
+        Cursor                   cursor          = db.query("groups", new String[] {"group_id", "members"}, null, null, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          for (String member : Util.split(cursor.getString(1), ",")) {
+            if (TextUtils.isEmpty(member.trim())) continue;
+
+            ContentValues values = new ContentValues();
+            values.put("group_id", cursor.getString(0));
+            values.put("recipient_id", addressDatabase.getCanonicalAddressId(member.trim()));
+
+            db.insertWithOnConflict("group_members", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+          }
+        }
+
+        if (cursor != null)
+          cursor.close();
+      }
+
+      if (oldVersion < INTRODUCED_PUSH_DIGEST_VERSION) {
+        db.execSQL("DROP INDEX IF EXISTS push_envelope_index");
+        db.execSQL("ALTER TABLE push ADD COLUMN digest BLOB");
+
+        Cursor cursor = db.query("push", new String[] {"_id", "body", "content"}, null, null, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          byte[] body    = cursor.getBlob(1);
+          byte[] content = cursor.getBlob(2);
+
+          ContentValues values = new ContentValues();
+          values.put("digest", PushDatabase.getDigest(body == null ? new byte[0] : body,
+                                                      content == null ? new byte[0] : content));
+
+          db.update("push", values, "_id = ?", new String[] {String.valueOf(cursor.getLong(0))});
+        }
+
+        if (cursor != null)
+          cursor.close();
+
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS push_digest_index ON push (type, source, device_id, timestamp, digest);");
+      }
+
+      if (oldVersion < INTRODUCED_PENDING_RECEIPTS_VERSION) {
+        db.execSQL("CREATE TABLE pending_receipt (_id INTEGER PRIMARY KEY, address TEXT, timestamp INTEGER);");
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds incoming delivery receipts for a short window so that a burst of them
+ * (every member of a large group acknowledging the same message, say) can be
+ * matched against the message tables and applied to their threads as one batch.
+ *
+ * Each receipt is written to a pending table before it's acknowledged to the server,
+ * and removed in the transaction that applies it, so receipts still waiting when the
+ * process dies are applied the next time it starts.  A batch is coalesced by sent
+ * timestamp and then by the address the receipts came from, with a count for
+ * duplicates.
+ */
+class DeliveryReceiptBatcher {
+
+  static final String TABLE_NAME = "pending_receipt";
+
+  private static final String ID        = "_id";
+  private static final String ADDRESS   = "address";
+  private static final String TIMESTAMP = "timestamp";
+
+  static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+                                     ADDRESS + " TEXT, " + TIMESTAMP + " INTEGER);";
+
+  private static final long BATCH_WINDOW_MILLIS = 250;
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+  private final MmsSmsDatabase   database;
+  private final SQLiteOpenHelper databaseHelper;
+
+  private boolean scheduled = false;
+
+  DeliveryReceiptBatcher(@NonNull MmsSmsDatabase database, @NonNull SQLiteOpenHelper databaseHelper) {
+    this.database       = database;
+    this.databaseHelper = databaseHelper;
+
+    schedule();
+  }
+
+  public void add(@NonNull String address, long timestamp) {
+    ContentValues values = new ContentValues(2);
+    values.put(ADDRESS, address);
+    values.put(TIMESTAMP, timestamp);
+
+    databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+
+    schedule();
+  }
+
+  /**
+   * Removes the pending receipts up to and including the given id, as part of the
+   * transaction that applies them.
+   */
+  static void deletePending(@NonNull SQLiteDatabase database, long lastPendingId) {
+    database.delete(TABLE_NAME, ID + " <= ?", new String[] {String.valueOf(lastPendingId)});
+  }
+
+  private synchronized void schedule() {
+    if (!scheduled) {
+      scheduled = true;
+      executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, BATCH_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void flush() {
+    synchronized (this) {
+      scheduled = false;
+    }
+
+    Map<Long, Map<String, Integer>> batch         = new HashMap<>();
+    long                            lastPendingId = -1;
+    Cursor                          cursor        = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {ID, ADDRESS, TIMESTAMP},
+                                                          null, null, null, null, ID + " ASC");
+
+      while (cursor.moveToNext()) {
+        long   timestamp = cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP));
+        String address   = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS));
+
+        Map<String, Integer> addresses = batch.get(timestamp);
+
+        if (addresses == null) {
+          addresses = new HashMap<>();
+          batch.put(timestamp, addresses);
+        }
+
+        Integer count = addresses.get(address);
+        addresses.put(address, count == null ? 1 : count + 1);
+
+        lastPendingId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    if (lastPendingId >= 0) {
+      database.incrementDeliveryReceiptCounts(batch, lastPendingId);
+    }
+  }
+}
@@ -11,16 +11,16 @@ public class EarlyReceiptCache {
 
   private final LRUCache<Placeholder, Long> cache = new LRUCache<>(100);
 
-  public synchronized void increment(long timestamp, String address) {
+  public synchronized void increment(long timestamp, String address, long increment) {
     Log.w(TAG, this+"");
     Log.w(TAG, String.format("Early receipt: %d,%s", timestamp, address));
     Placeholder tuple = new Placeholder(timestamp, address);
     Long        count = cache.get(tuple);
 
     if (count != null) {
-      cache.put(tuple, ++count);
+      cache.put(tuple, count + increment);
     } else {
-      cache.put(tuple, 1L);
+      cache.put(tuple, increment);
     }
   }
 
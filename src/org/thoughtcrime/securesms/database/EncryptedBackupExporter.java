@@ -20,22 +20,48 @@ import android.content.Context;
 import android.os.Environment;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
 
+/**
+ * Copies the app's private files (databases, sessions, attachment parts) to and from
+ * external storage.
+ *
+ * Exports are incremental: a {@link BackupManifest} in the export directory records the
+ * chunk digests of every exported file, so files that haven't changed are skipped and
+ * only the changed chunks of the rest are rewritten.  Imports from an export with a
+ * manifest likewise only rewrite the chunks that differ from the local files, so both
+ * can be resumed after an interruption by simply running them again.
+ */
 public class EncryptedBackupExporter {
 
+  private static final String TAG = EncryptedBackupExporter.class.getSimpleName();
+
+  private static final String MANIFEST_NAME = ".manifest";
+
   public static void exportToSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForExport();
-    exportDirectory(context, "");
+    exportIncremental(context);
   }
 
   public static void importFromSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForImport();
-    importDirectory(context, "");
+
+    File manifestFile = new File(getExportDirectoryPath(), MANIFEST_NAME);
+
+    try {
+      if (manifestFile.exists()) importIncremental(context, BackupManifest.load(manifestFile));
+      else                       importDirectory(context, "");
+    } finally {
+      TextSecureSessionStore.clearCache();
+    }
   }
 
   private static String getExportDirectoryPath() {
@@ -75,27 +101,96 @@ public class EncryptedBackupExporter {
     }
   }
 
-  private static void exportDirectory(Context context, String directoryName) throws IOException {
-    File directory       = new File(context.getFilesDir().getParent() + File.separatorChar + directoryName);
-    File exportDirectory = new File(getExportDirectoryPath() + File.separatorChar + directoryName);
+  private static void exportIncremental(Context context) throws IOException {
+    File           directory       = new File(context.getFilesDir().getParent());
+    File           exportDirectory = new File(getExportDirectoryPath());
+    BackupManifest manifest        = BackupManifest.load(new File(exportDirectory, MANIFEST_NAME));
+    Set<String>    removed         = new HashSet<>(manifest.getPaths());
 
-    if (directory.exists()) {
-      exportDirectory.mkdirs();
+    try {
+      exportDirectory(directory, exportDirectory, "", manifest, removed);
 
-      File[] contents = directory.listFiles();
+      for (String path : removed) {
+        new File(exportDirectory, path).delete();
+        manifest.remove(path);
+      }
+
+      manifest.compact();
+    } finally {
+      manifest.close();
+    }
+  }
+
+  private static void exportDirectory(File directory, File exportDirectory, String directoryName,
+                                      BackupManifest manifest, Set<String> removed)
+      throws IOException
+  {
+    File localDirectory  = new File(directory, directoryName);
+    File targetDirectory = new File(exportDirectory, directoryName);
+
+    if (!localDirectory.exists()) {
+      Log.w(TAG, "Could not find directory: " + localDirectory.getAbsolutePath());
+      return;
+    }
+
+    File[] contents = localDirectory.listFiles();
+
+    if (contents == null) {
+      return;
+    }
+
+    targetDirectory.mkdirs();
+
+    for (File localFile : contents) {
+      String path = directoryName.isEmpty() ? localFile.getName() : directoryName + File.separator + localFile.getName();
+
+      if (!localFile.isFile()) {
+        exportDirectory(directory, exportDirectory, path, manifest, removed);
+        continue;
+      }
+
+      File                 exportedFile = new File(targetDirectory, localFile.getName());
+      BackupManifest.Entry entry        = manifest.get(path);
+      boolean              intact       = entry != null && exportedFile.length() == entry.getSize();
+
+      removed.remove(path);
+
+      if (intact && localFile.length() == entry.getSize() && localFile.lastModified() == entry.getModified()) {
+        continue;
+      }
+
+      try {
+        manifest.put(path, BackupManifest.copyChangedChunks(localFile, exportedFile, intact ? entry.getDigests() : null));
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+    }
+  }
+
+  private static void importIncremental(Context context, BackupManifest manifest) {
+    File directory       = new File(context.getFilesDir().getParent());
+    File exportDirectory = new File(getExportDirectoryPath());
+
+    for (String path : manifest.getPaths()) {
+      File exportedFile = new File(exportDirectory, path);
+      File localFile    = new File(directory, path);
+
+      if (!exportedFile.isFile()) {
+        Log.w(TAG, "Missing from backup: " + path);
+        continue;
+      }
+
+      localFile.getParentFile().mkdirs();
 
-      for (int i=0;i<contents.length;i++) {
-        File localFile = contents[i];
+      try {
+        BackupManifest.Entry imported = BackupManifest.copyChangedChunks(exportedFile, localFile, null);
 
-        if (localFile.isFile()) {
-          File exportedFile = new File(exportDirectory.getAbsolutePath() + File.separator + localFile.getName());
-          migrateFile(localFile, exportedFile);
-        } else {
-          exportDirectory(context, directoryName + File.separator + localFile.getName());
+        if (!imported.getDigests().equals(manifest.get(path).getDigests())) {
+          Log.w(TAG, "Backup doesn't match its manifest: " + path);
         }
+      } catch (IOException e) {
+        Log.w(TAG, e);
       }
-    } else {
-      Log.w("EncryptedBackupExporter", "Could not find directory: " + directory.getAbsolutePath());
     }
   }
 
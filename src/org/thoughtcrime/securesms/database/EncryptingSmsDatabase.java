@@ -68,17 +68,24 @@ public class EncryptingSmsDatabase extends SmsDatabase {
                                   OutgoingTextMessage message, boolean forceSms,
                                   long timestamp)
   {
-    long type = Types.BASE_OUTBOX_TYPE;
+    long   type = Types.BASE_OUTBOX_TYPE;
+    String body = message.getMessageBody();
 
     if (masterSecret.getMasterSecret().isPresent()) {
-      message = message.withBody(getEncryptedBody(masterSecret.getMasterSecret().get(), message.getMessageBody()));
+      message = message.withBody(getEncryptedBody(masterSecret.getMasterSecret().get(), body));
       type   |= Types.ENCRYPTION_SYMMETRIC_BIT;
     } else {
-      message = message.withBody(getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), message.getMessageBody()));
+      message = message.withBody(getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), body));
       type   |= Types.ENCRYPTION_ASYMMETRIC_BIT;
     }
 
-    return insertMessageOutbox(threadId, message, type, forceSms, timestamp);
+    long messageId = insertMessageOutbox(threadId, message, type, forceSms, timestamp);
+
+    if (masterSecret.getMasterSecret().isPresent()) {
+      addToSearchIndex(masterSecret.getMasterSecret().get(), messageId, body);
+    }
+
+    return messageId;
   }
 
   public Pair<Long, Long> insertMessageInbox(@NonNull MasterSecretUnion masterSecret,
@@ -94,11 +101,15 @@ public class EncryptingSmsDatabase extends SmsDatabase {
   private Pair<Long, Long> insertMessageInbox(@NonNull MasterSecret masterSecret,
                                               @NonNull IncomingTextMessage message)
   {
-    long type = Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT;
+    long   type = Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT;
+    String body = message.getMessageBody();
 
-    message = message.withMessageBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+    message = message.withMessageBody(getEncryptedBody(masterSecret, body));
 
-    return insertMessageInbox(message, type);
+    Pair<Long, Long> messageAndThreadId = insertMessageInbox(message, type);
+    addToSearchIndex(masterSecret, messageAndThreadId.first, body);
+
+    return messageAndThreadId;
   }
 
   private Pair<Long, Long> insertMessageInbox(@NonNull AsymmetricMasterSecret masterSecret,
@@ -123,26 +134,38 @@ public class EncryptingSmsDatabase extends SmsDatabase {
       type         |= Types.ENCRYPTION_ASYMMETRIC_BIT;
     }
 
-    return updateMessageBodyAndType(messageId, encryptedBody, Types.TOTAL_MASK, type);
+    Pair<Long, Long> messageAndThreadId = updateMessageBodyAndType(messageId, encryptedBody, Types.TOTAL_MASK, type);
+
+    if (masterSecret.getMasterSecret().isPresent()) {
+      addToSearchIndex(masterSecret.getMasterSecret().get(), messageId, body);
+    }
+
+    return messageAndThreadId;
   }
 
   public void updateMessageBody(MasterSecretUnion masterSecret, long messageId, String body) {
-    long type;
+    String encryptedBody;
+    long   type;
 
     if (masterSecret.getMasterSecret().isPresent()) {
-      body = getEncryptedBody(masterSecret.getMasterSecret().get(), body);
-      type = Types.ENCRYPTION_SYMMETRIC_BIT;
+      encryptedBody = getEncryptedBody(masterSecret.getMasterSecret().get(), body);
+      type          = Types.ENCRYPTION_SYMMETRIC_BIT;
     } else {
-      body = getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), body);
-      type = Types.ENCRYPTION_ASYMMETRIC_BIT;
+      encryptedBody = getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), body);
+      type          = Types.ENCRYPTION_ASYMMETRIC_BIT;
     }
 
-    updateMessageBodyAndType(messageId, body, Types.ENCRYPTION_MASK, type);
+    updateMessageBodyAndType(messageId, encryptedBody, Types.ENCRYPTION_MASK, type);
+
+    if (masterSecret.getMasterSecret().isPresent()) {
+      addToSearchIndex(masterSecret.getMasterSecret().get(), messageId, body);
+    }
   }
 
-  public Reader getMessages(MasterSecret masterSecret, int skip, int limit) {
-    Cursor cursor = super.getMessages(skip, limit);
-    return new DecryptingReader(masterSecret, cursor);
+  private void addToSearchIndex(MasterSecret masterSecret, long messageId, String body) {
+    if (messageId != -1) {
+      DatabaseFactory.getSearchDatabase(context).index(masterSecret, false, messageId, body);
+    }
   }
 
   public Reader getOutgoingMessages(MasterSecret masterSecret) {
@@ -170,13 +193,23 @@ public class EncryptingSmsDatabase extends SmsDatabase {
     return new DecryptingReader(masterSecret, cursor);
   }
 
+  public Reader readerFor(MasterSecret masterSecret, Cursor cursor, @Nullable BodyPrefetcher prefetcher) {
+    return new DecryptingReader(masterSecret, cursor, prefetcher);
+  }
+
   public class DecryptingReader extends SmsDatabase.Reader {
 
-    private final MasterCipher masterCipher;
+    private final MasterCipher             masterCipher;
+    private final @Nullable BodyPrefetcher prefetcher;
 
     public DecryptingReader(MasterSecret masterSecret, Cursor cursor) {
+      this(masterSecret, cursor, null);
+    }
+
+    public DecryptingReader(MasterSecret masterSecret, Cursor cursor, @Nullable BodyPrefetcher prefetcher) {
       super(cursor);
       this.masterCipher = new MasterCipher(masterSecret);
+      this.prefetcher   = prefetcher;
     }
 
     @Override
@@ -195,7 +228,8 @@ public class EncryptingSmsDatabase extends SmsDatabase {
           if (plaintext != null)
             return new DisplayRecord.Body(plaintext, true);
 
-          plaintext = masterCipher.decryptBody(ciphertext);
+          if (prefetcher != null) plaintext = prefetcher.decryptBody(ciphertext);
+          else                    plaintext = masterCipher.decryptBody(ciphertext);
 
           plaintextCache.put(ciphertext, plaintext);
           return new DisplayRecord.Body(plaintext, true);
@@ -11,23 +11,27 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
-import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.GroupUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
-import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.textsecure.api.messages.TextSecureAttachmentPointer;
 
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class GroupDatabase extends Database {
 
@@ -39,7 +43,6 @@ public class GroupDatabase extends Database {
   private static final String ID                  = "_id";
   private static final String GROUP_ID            = "group_id";
   private static final String TITLE               = "title";
-  private static final String MEMBERS             = "members";
   private static final String AVATAR              = "avatar";
   private static final String AVATAR_ID           = "avatar_id";
   private static final String AVATAR_KEY          = "avatar_key";
@@ -53,7 +56,6 @@ public class GroupDatabase extends Database {
           " (" + ID + " INTEGER PRIMARY KEY, " +
           GROUP_ID + " TEXT, " +
           TITLE + " TEXT, " +
-          MEMBERS + " TEXT, " +
           AVATAR + " BLOB, " +
           AVATAR_ID + " INTEGER, " +
           AVATAR_KEY + " BLOB, " +
@@ -62,8 +64,19 @@ public class GroupDatabase extends Database {
           TIMESTAMP + " INTEGER, " +
           ACTIVE + " INTEGER DEFAULT 1);";
 
+  private static final String MEMBERS_TABLE_NAME = "group_members";
+  private static final String RECIPIENT_ID       = "recipient_id";
+
+  public static final String CREATE_MEMBERS_TABLE =
+      "CREATE TABLE " + MEMBERS_TABLE_NAME +
+          " (" + ID + " INTEGER PRIMARY KEY, " +
+          GROUP_ID + " TEXT, " +
+          RECIPIENT_ID + " INTEGER);";
+
   public static final String[] CREATE_INDEXS = {
       "CREATE UNIQUE INDEX IF NOT EXISTS group_id_index ON " + TABLE_NAME + " (" + GROUP_ID + ");",
+      "CREATE UNIQUE INDEX IF NOT EXISTS group_members_index ON " + MEMBERS_TABLE_NAME + " (" + GROUP_ID + ", " + RECIPIENT_ID + ");",
+      "CREATE INDEX IF NOT EXISTS group_members_recipient_index ON " + MEMBERS_TABLE_NAME + " (" + RECIPIENT_ID + ");",
   };
 
   public GroupDatabase(Context context, SQLiteOpenHelper databaseHelper) {
@@ -71,54 +84,72 @@ public class GroupDatabase extends Database {
   }
 
   public @Nullable GroupRecord getGroup(byte[] groupId) {
+    String encodedId = GroupUtil.getEncodedId(groupId);
+
     @SuppressLint("Recycle")
     Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, null, GROUP_ID + " = ?",
-                                                               new String[] {GroupUtil.getEncodedId(groupId)},
+                                                               new String[] {encodedId},
                                                                null, null, null);
 
-    Reader      reader = new Reader(cursor);
+    Reader      reader = new Reader(this, cursor, encodedId);
     GroupRecord record = reader.getNext();
 
     reader.close();
     return record;
   }
 
-  public Reader getGroupsFilteredByTitle(String constraint) {
-    Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, null, TITLE + " LIKE ?",
-                                                               new String[]{"%" + constraint + "%"},
-                                                               null, null, null);
-
-    return new Reader(cursor);
-  }
-
   public Reader getGroups() {
     Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, null);
-    return new Reader(cursor);
+    return new Reader(this, cursor, null);
+  }
+
+  public boolean isMember(byte[] groupId, @NonNull String number) {
+    long recipientId = getExistingRecipientId(number);
+
+    if (recipientId == -1) {
+      return false;
+    }
+
+    Cursor cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(MEMBERS_TABLE_NAME, new String[] {ID},
+                                                          GROUP_ID + " = ? AND " + RECIPIENT_ID + " = ?",
+                                                          new String[] {GroupUtil.getEncodedId(groupId),
+                                                                        String.valueOf(recipientId)},
+                                                          null, null, null);
+
+      return cursor != null && cursor.moveToFirst();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
   }
 
   public @NonNull Recipients getGroupMembers(byte[] groupId, boolean includeSelf) {
-    String          localNumber = TextSecurePreferences.getLocalNumber(context);
-    List<String>    members     = getCurrentMembers(groupId);
-    List<Recipient> recipients  = new LinkedList<>();
+    List<Long> memberIds = getCurrentMemberIds(GroupUtil.getEncodedId(groupId));
+
+    if (!includeSelf) {
+      memberIds.remove(Long.valueOf(getExistingRecipientId(TextSecurePreferences.getLocalNumber(context))));
+    }
 
-    for (String member : members) {
-      if (!includeSelf && member.equals(localNumber))
-        continue;
+    long[] ids = new long[memberIds.size()];
+    int    i   = 0;
 
-      recipients.addAll(RecipientFactory.getRecipientsFromString(context, member, false)
-                                        .getRecipientsList());
+    for (long memberId : memberIds) {
+      ids[i++] = memberId;
     }
 
-    return RecipientFactory.getRecipientsFor(context, recipients, false);
+    return RecipientFactory.getRecipientsForIds(context, ids, false);
   }
 
   public void create(byte[] groupId, String title, List<String> members,
                      TextSecureAttachmentPointer avatar, String relay)
   {
+    String        encodedId     = GroupUtil.getEncodedId(groupId);
     ContentValues contentValues = new ContentValues();
-    contentValues.put(GROUP_ID, GroupUtil.getEncodedId(groupId));
+    contentValues.put(GROUP_ID, encodedId);
     contentValues.put(TITLE, title);
-    contentValues.put(MEMBERS, Util.join(members, ","));
 
     if (avatar != null) {
       contentValues.put(AVATAR_ID, avatar.getId());
@@ -130,7 +161,18 @@ public class GroupDatabase extends Database {
     contentValues.put(TIMESTAMP, System.currentTimeMillis());
     contentValues.put(ACTIVE, 1);
 
-    databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, contentValues);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      db.insert(TABLE_NAME, null, contentValues);
+      insertMembers(db, encodedId, getRecipientIds(members));
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    DatabaseFactory.getRecipientSearchIndex(context).invalidate();
   }
 
   public void update(byte[] groupId, String title, TextSecureAttachmentPointer avatar) {
@@ -148,6 +190,7 @@ public class GroupDatabase extends Database {
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
     RecipientFactory.clearCache();
+    DatabaseFactory.getRecipientSearchIndex(context).invalidate();
     notifyDatabaseListeners();
   }
 
@@ -158,6 +201,7 @@ public class GroupDatabase extends Database {
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
     RecipientFactory.clearCache();
+    DatabaseFactory.getRecipientSearchIndex(context).invalidate();
     notifyDatabaseListeners();
   }
 
@@ -177,45 +221,133 @@ public class GroupDatabase extends Database {
   }
 
   public void updateMembers(byte[] id, List<String> members) {
+    String         encodedId = GroupUtil.getEncodedId(id);
+    Set<Long>      current   = new HashSet<>(getCurrentMemberIds(encodedId));
+    Set<Long>      added     = getRecipientIds(members);
+    Set<Long>      removed   = new HashSet<>(current);
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+
+    removed.removeAll(added);
+    added.removeAll(current);
+
     ContentValues contents = new ContentValues();
-    contents.put(MEMBERS, Util.join(members, ","));
     contents.put(ACTIVE, 1);
 
-    databaseHelper.getWritableDatabase().update(TABLE_NAME, contents, GROUP_ID + " = ?",
-                                                new String[] {GroupUtil.getEncodedId(id)});
+    db.beginTransaction();
+
+    try {
+      for (long recipientId : removed) {
+        deleteMember(db, encodedId, recipientId);
+      }
+
+      insertMembers(db, encodedId, added);
+      db.update(TABLE_NAME, contents, GROUP_ID + " = ?", new String[] {encodedId});
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
   }
 
   public void remove(byte[] id, String source) {
-    List<String> currentMembers = getCurrentMembers(id);
-    currentMembers.remove(source);
+    long recipientId = getExistingRecipientId(source);
 
-    ContentValues contents = new ContentValues();
-    contents.put(MEMBERS, Util.join(currentMembers, ","));
+    if (recipientId != -1) {
+      deleteMember(databaseHelper.getWritableDatabase(), GroupUtil.getEncodedId(id), recipientId);
+    }
+  }
+
+  /**
+   * Loads the members of one group, or of every group when encodedId is null, in a single query.
+   *
+   * @return The member addresses keyed by encoded group id.
+   */
+  private @NonNull Map<String, List<String>> getCurrentMembersByGroup(@Nullable String encodedId) {
+    CanonicalAddressDatabase  addressDatabase = DatabaseFactory.getAddressDatabase(context);
+    Map<String, List<String>> members         = new HashMap<>();
+    Cursor                    cursor          = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(MEMBERS_TABLE_NAME, new String[] {GROUP_ID, RECIPIENT_ID},
+                                                          encodedId == null ? null : GROUP_ID + " = ?",
+                                                          encodedId == null ? null : new String[] {encodedId},
+                                                          null, null, ID + " ASC");
+
+      while (cursor != null && cursor.moveToNext()) {
+        String       groupId      = cursor.getString(0);
+        List<String> groupMembers = members.get(groupId);
+
+        if (groupMembers == null) {
+          groupMembers = new LinkedList<>();
+          members.put(groupId, groupMembers);
+        }
+
+        groupMembers.add(addressDatabase.getAddressFromId(cursor.getLong(1)));
+      }
 
-    databaseHelper.getWritableDatabase().update(TABLE_NAME, contents, GROUP_ID + " = ?",
-                                                new String[] {GroupUtil.getEncodedId(id)});
+      return members;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
   }
 
-  private List<String> getCurrentMembers(byte[] id) {
-    Cursor cursor = null;
+  private @NonNull List<Long> getCurrentMemberIds(@NonNull String encodedId) {
+    List<Long> memberIds = new LinkedList<>();
+    Cursor     cursor    = null;
 
     try {
-      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {MEMBERS},
-                                                          GROUP_ID + " = ?",
-                                                          new String[] {GroupUtil.getEncodedId(id)},
-                                                          null, null, null);
+      cursor = databaseHelper.getReadableDatabase().query(MEMBERS_TABLE_NAME, new String[] {RECIPIENT_ID},
+                                                          GROUP_ID + " = ?", new String[] {encodedId},
+                                                          null, null, ID + " ASC");
 
-      if (cursor != null && cursor.moveToFirst()) {
-        return Util.split(cursor.getString(cursor.getColumnIndexOrThrow(MEMBERS)), ",");
+      while (cursor != null && cursor.moveToNext()) {
+        memberIds.add(cursor.getLong(0));
       }
 
-      return new LinkedList<>();
+      return memberIds;
     } finally {
       if (cursor != null)
         cursor.close();
     }
   }
 
+  private void insertMembers(@NonNull SQLiteDatabase db, @NonNull String encodedId, @NonNull Set<Long> recipientIds) {
+    for (long recipientId : recipientIds) {
+      ContentValues values = new ContentValues();
+      values.put(GROUP_ID, encodedId);
+      values.put(RECIPIENT_ID, recipientId);
+
+      db.insertWithOnConflict(MEMBERS_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+  }
+
+  private void deleteMember(@NonNull SQLiteDatabase db, @NonNull String encodedId, long recipientId) {
+    db.delete(MEMBERS_TABLE_NAME, GROUP_ID + " = ? AND " + RECIPIENT_ID + " = ?",
+              new String[] {encodedId, String.valueOf(recipientId)});
+  }
+
+  private long getRecipientId(@NonNull String number) {
+    return DatabaseFactory.getAddressDatabase(context).getCanonicalAddressId(number);
+  }
+
+  private long getExistingRecipientId(@NonNull String number) {
+    return DatabaseFactory.getAddressDatabase(context).getExistingCanonicalAddressId(number);
+  }
+
+  private @NonNull Set<Long> getRecipientIds(@Nullable List<String> members) {
+    Set<Long> recipientIds = new LinkedHashSet<>();
+
+    if (members != null) {
+      for (String member : members) {
+        if (!TextUtils.isEmpty(member.trim())) {
+          recipientIds.add(getRecipientId(member.trim()));
+        }
+      }
+    }
+
+    return recipientIds;
+  }
+
   public boolean isActive(byte[] id) {
     GroupRecord record = getGroup(id);
     return record != null && record.isActive();
@@ -246,10 +378,16 @@ public class GroupDatabase extends Database {
 
   public static class Reader {
 
-    private final Cursor cursor;
+    private final GroupDatabase database;
+    private final Cursor        cursor;
+    private final String        memberGroupId;
 
-    public Reader(Cursor cursor) {
-      this.cursor = cursor;
+    private Map<String, List<String>> members;
+
+    private Reader(GroupDatabase database, Cursor cursor, @Nullable String memberGroupId) {
+      this.database      = database;
+      this.cursor        = cursor;
+      this.memberGroupId = memberGroupId;
     }
 
     public @Nullable GroupRecord getNext() {
@@ -257,9 +395,16 @@ public class GroupDatabase extends Database {
         return null;
       }
 
-      return new GroupRecord(cursor.getString(cursor.getColumnIndexOrThrow(GROUP_ID)),
+      if (members == null) {
+        members = database.getCurrentMembersByGroup(memberGroupId);
+      }
+
+      String       encodedId    = cursor.getString(cursor.getColumnIndexOrThrow(GROUP_ID));
+      List<String> groupMembers = members.get(encodedId);
+
+      return new GroupRecord(encodedId,
                              cursor.getString(cursor.getColumnIndexOrThrow(TITLE)),
-                             cursor.getString(cursor.getColumnIndexOrThrow(MEMBERS)),
+                             groupMembers != null ? groupMembers : new LinkedList<String>(),
                              cursor.getBlob(cursor.getColumnIndexOrThrow(AVATAR)),
                              cursor.getLong(cursor.getColumnIndexOrThrow(AVATAR_ID)),
                              cursor.getBlob(cursor.getColumnIndexOrThrow(AVATAR_KEY)),
@@ -286,13 +431,13 @@ public class GroupDatabase extends Database {
     private final String       relay;
     private final boolean      active;
 
-    public GroupRecord(String id, String title, String members, byte[] avatar,
+    public GroupRecord(String id, String title, List<String> members, byte[] avatar,
                        long avatarId, byte[] avatarKey, String avatarContentType,
                        String relay, boolean active)
     {
       this.id                = id;
       this.title             = title;
-      this.members           = Util.split(members, ",");
+      this.members           = members;
       this.avatar            = avatar;
       this.avatarId          = avatarId;
       this.avatarKey         = avatarKey;
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.util.ClockCache;
+
+/**
+ * Decrypted message records shared by every conversation screen, keyed by the packed
+ * row id from {@link MmsSmsColumns#PACKED_ROW_ID} and bounded by a rough estimate of
+ * their size in memory.
+ *
+ * The message databases remove a record whenever they change it.  Since a cursor
+ * loaded before such a change can still be read after it, every removal also bumps a
+ * generation, and records read from a cursor are only cached if it was loaded at the
+ * current generation (see {@link GenerationCursor}).  As a further check, a record is
+ * only returned if its type and receipt count match the row it's being looked up for.
+ */
+public class MessageRecordCache {
+
+  private static final int MAX_WEIGHT    = 2 * 1024 * 1024;
+  private static final int RECORD_WEIGHT = 512;
+  private static final int SLIDE_WEIGHT  = 256;
+
+  private final ClockCache<Long, MessageRecord> cache = new ClockCache<>(MAX_WEIGHT);
+
+  private long generation = 0;
+
+  public static long getKey(boolean mms, long messageId) {
+    return (messageId << 1) | (mms ? 1 : 0);
+  }
+
+  /**
+   * @return The cached record for the current row of a cursor over
+   * {@link MmsSmsDatabase}, or null if there isn't an up to date one.
+   */
+  public @Nullable MessageRecord get(@NonNull Cursor cursor) {
+    long          key    = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.PACKED_ROW_ID));
+    MessageRecord record = cache.get(key);
+
+    if (record == null) {
+      return null;
+    }
+
+    String typeColumn   = record.isMms() ? MmsDatabase.MESSAGE_BOX : SmsDatabase.TYPE;
+    long   type         = cursor.getLong(cursor.getColumnIndexOrThrow(typeColumn));
+    int    receiptCount = cursor.getInt(cursor.getColumnIndexOrThrow(MmsSmsColumns.RECEIPT_COUNT));
+
+    if (record.getType() != type || record.getReceiptCount() != receiptCount) {
+      return null;
+    }
+
+    return record;
+  }
+
+  /**
+   * Caches a record read from the given cursor, unless the messages have changed since
+   * the cursor was loaded.
+   */
+  public synchronized void put(@NonNull Cursor cursor, @NonNull MessageRecord record) {
+    if (cursor instanceof GenerationCursor && ((GenerationCursor)cursor).generation == generation) {
+      cache.put(getKey(record.isMms(), record.getId()), record, getWeight(record));
+    }
+  }
+
+  /**
+   * @return A cursor whose records may be cached, as long as the generation was read
+   * before the cursor was queried.
+   */
+  public @NonNull Cursor stamp(@NonNull Cursor cursor, long generation) {
+    return new GenerationCursor(cursor, generation);
+  }
+
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /*package*/ synchronized void remove(boolean mms, long messageId) {
+    generation++;
+    cache.remove(getKey(mms, messageId));
+  }
+
+  /*package*/ synchronized void removeThread(long threadId) {
+    generation++;
+
+    for (MessageRecord record : cache.values()) {
+      if (record.getThreadId() == threadId) {
+        cache.remove(getKey(record.isMms(), record.getId()));
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    generation++;
+    cache.clear();
+  }
+
+  private int getWeight(@NonNull MessageRecord record) {
+    int weight = RECORD_WEIGHT;
+
+    if (record.getBody().getBody() != null) {
+      weight += 2 * record.getBody().getBody().length();
+    }
+
+    if (record instanceof MediaMmsMessageRecord) {
+      weight += SLIDE_WEIGHT * ((MediaMmsMessageRecord)record).getSlideDeck().getSlides().size();
+    }
+
+    return weight;
+  }
+
+  private static class GenerationCursor extends CursorWrapper {
+    private final long generation;
+
+    private GenerationCursor(@NonNull Cursor cursor, long generation) {
+      super(cursor);
+      this.generation = generation;
+    }
+  }
+}
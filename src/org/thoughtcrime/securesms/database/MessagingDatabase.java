@@ -16,9 +16,12 @@ import org.whispersystems.libaxolotl.IdentityKey;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public abstract class MessagingDatabase extends Database implements MmsSmsColumns {
 
@@ -30,6 +33,18 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
 
   protected abstract String getTableName();
 
+  protected void invalidateRecord(long messageId) {
+    DatabaseFactory.getMessageRecordCache(context).remove(MmsDatabase.TABLE_NAME.equals(getTableName()), messageId);
+  }
+
+  protected void invalidateRecords(long threadId) {
+    DatabaseFactory.getMessageRecordCache(context).removeThread(threadId);
+  }
+
+  protected void removeFromSearchIndex(long messageId) {
+    DatabaseFactory.getSearchDatabase(context).remove(MmsDatabase.TABLE_NAME.equals(getTableName()), messageId);
+  }
+
   public void setMismatchedIdentity(long messageId, final long recipientId, final IdentityKey identityKey) {
     List<IdentityKeyMismatch> items = new ArrayList<IdentityKeyMismatch>() {{
       add(new IdentityKeyMismatch(recipientId, identityKey));
@@ -108,16 +123,37 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
     database.beginTransaction();
 
     try {
-      T document = getDocument(database, messageId, column, clazz);
-      document.getList().addAll(objects);
-      setDocument(database, messageId, column, document);
-
+      addToDocument(database, messageId, column, objects, clazz);
       database.setTransactionSuccessful();
     } finally {
       database.endTransaction();
     }
   }
 
+  /**
+   * Adds to a document within a transaction the caller already holds.  Nothing is
+   * written if this throws, and the caller's transaction is left intact.
+   */
+  protected <T extends Document<I>, I> void addToDocument(SQLiteDatabase database, long messageId, String column,
+                                                          List<I> objects, Class<T> clazz)
+      throws IOException
+  {
+    T document = getDocument(database, messageId, column, clazz);
+    document.getList().addAll(objects);
+    setDocument(database, messageId, column, document);
+  }
+
+  protected static <K, V> void addToSet(Map<K, Set<V>> map, K key, V value) {
+    Set<V> set = map.get(key);
+
+    if (set == null) {
+      set = new HashSet<>();
+      map.put(key, set);
+    }
+
+    set.add(value);
+  }
+
   private void setDocument(SQLiteDatabase database, long messageId, String column, Document document) throws IOException {
     ContentValues contentValues = new ContentValues();
 
@@ -128,6 +164,7 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
     }
 
     database.update(getTableName(), contentValues, ID_WHERE, new String[] {String.valueOf(messageId)});
+    invalidateRecord(messageId);
   }
 
   private <D extends Document> D getDocument(SQLiteDatabase database, long messageId,
@@ -22,13 +22,17 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.support.annotation.NonNull;
+import android.text.TextUtils;
 
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import ws.com.google.android.mms.pdu.PduHeaders;
 
@@ -124,6 +128,51 @@ public class MmsAddressDatabase extends Database {
     return results;
   }
 
+  /**
+   * Like {@link #getAddressesListForId(long)}, for several messages in one query.
+   */
+  public Map<Long, List<String>> getAddressesListForIds(Collection<Long> messageIds) {
+    Map<Long, List<String>> results = new HashMap<>();
+
+    if (messageIds.isEmpty()) {
+      return results;
+    }
+
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {MMS_ID, TYPE, ADDRESS},
+                              MMS_ID + " IN (" + TextUtils.join(",", messageIds) + ")",
+                              null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        long type = cursor.getLong(cursor.getColumnIndexOrThrow(TYPE));
+
+        if (type != PduHeaders.FROM && type != PduHeaders.TO &&
+            type != PduHeaders.CC   && type != PduHeaders.BCC)
+        {
+          continue;
+        }
+
+        long         messageId = cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID));
+        List<String> addresses = results.get(messageId);
+
+        if (addresses == null) {
+          addresses = new LinkedList<>();
+          results.put(messageId, addresses);
+        }
+
+        addresses.add(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return results;
+  }
+
   public Recipients getRecipientsForId(long messageId) {
     List<String>    numbers = getAddressesListForId(messageId);
     List<Recipient> results = new LinkedList<>();
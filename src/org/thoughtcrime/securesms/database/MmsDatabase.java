@@ -68,9 +68,11 @@ import org.whispersystems.libaxolotl.util.guava.Optional;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import ws.com.google.android.mms.MmsException;
@@ -96,6 +98,7 @@ public class MmsDatabase extends MessagingDatabase {
           static final String TRANSACTION_ID     = "tr_id";
           static final String PART_COUNT         = "part_count";
           static final String NETWORK_FAILURE    = "network_failures";
+          static final String FIRST_PART_ID      = "first_part_id";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, "                          +
     THREAD_ID + " INTEGER, " + DATE_SENT + " INTEGER, " + DATE_RECEIVED + " INTEGER, " + MESSAGE_BOX + " INTEGER, " +
@@ -110,7 +113,8 @@ public class MmsDatabase extends MessagingDatabase {
     "retr_txt" + " TEXT, " + "retr_txt_cs" + " INTEGER, " + "read_status" + " INTEGER, "    +
     "ct_cls" + " INTEGER, " + "resp_txt" + " TEXT, " + "d_tm" + " INTEGER, "     +
     RECEIPT_COUNT + " INTEGER DEFAULT 0, " + MISMATCHED_IDENTITIES + " TEXT DEFAULT NULL, "     +
-    NETWORK_FAILURE + " TEXT DEFAULT NULL," + "d_rpt" + " INTEGER);";
+    NETWORK_FAILURE + " TEXT DEFAULT NULL," + "d_rpt" + " INTEGER, "                       +
+    FIRST_PART_ID + " INTEGER DEFAULT NULL, " + SEARCH_INDEXED + " INTEGER DEFAULT 0);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS mms_thread_id_index ON " + TABLE_NAME + " (" + THREAD_ID + ");",
@@ -190,55 +194,115 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  public void incrementDeliveryReceiptCount(String address, long timestamp) {
-    MmsAddressDatabase addressDatabase = DatabaseFactory.getMmsAddressDatabase(context);
-    SQLiteDatabase     database        = databaseHelper.getWritableDatabase();
-    Cursor             cursor          = null;
-    boolean            found           = false;
+  /**
+   * Applies a batch of delivery receipts, keyed by sent timestamp and then by canonical
+   * address, to the outgoing messages they match.  Group messages match a receipt from
+   * any address.
+   *
+   * @return the ids of the updated messages, grouped by thread.
+   */
+  /*package*/ Map<Long, Set<Long>> incrementDeliveryReceiptCounts(Map<Long, Map<String, Integer>> receipts) {
+    MmsAddressDatabase     addressDatabase  = DatabaseFactory.getMmsAddressDatabase(context);
+    SQLiteDatabase         database         = databaseHelper.getWritableDatabase();
+    Map<String, String>    canonicalNumbers = new HashMap<>();
+    Map<Long, Set<Long>>   updated          = new HashMap<>();
+    Map<Long, Set<String>> matched          = new HashMap<>();
+    Cursor                 cursor           = null;
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX}, DATE_SENT + " = ?", new String[] {String.valueOf(timestamp)}, null, null, null, null);
+      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, DATE_SENT},
+                              DATE_SENT + " IN (" + TextUtils.join(",", receipts.keySet()) + ")",
+                              null, null, null, null, null);
+
+      List<Long> outgoingIds = new LinkedList<>();
 
       while (cursor.moveToNext()) {
         if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
-          List<String> addresses = addressDatabase.getAddressesListForId(cursor.getLong(cursor.getColumnIndexOrThrow(ID)));
+          outgoingIds.add(cursor.getLong(cursor.getColumnIndexOrThrow(ID)));
+        }
+      }
+
+      Map<Long, List<String>> storedAddresses = addressDatabase.getAddressesListForIds(outgoingIds);
+
+      cursor.moveToPosition(-1);
+
+      while (cursor.moveToNext()) {
+        if (!Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
+          continue;
+        }
 
-          for (String storedAddress : addresses) {
-            try {
-              String ourAddress   = canonicalizeNumber(context, address);
-              String theirAddress = canonicalizeNumberOrGroup(context, storedAddress);
+        long                 id        = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+        long                 timestamp = cursor.getLong(cursor.getColumnIndexOrThrow(DATE_SENT));
+        Map<String, Integer> addresses = receipts.get(timestamp);
+        List<String>         stored    = storedAddresses.get(id);
+        int                  increment = 0;
 
-              if (ourAddress.equals(theirAddress) || GroupUtil.isEncodedGroup(theirAddress)) {
-                long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-                long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+        if (stored == null) {
+          continue;
+        }
 
-                found = true;
+        for (String storedAddress : stored) {
+          String theirAddress = getCanonicalNumberOrGroup(canonicalNumbers, storedAddress);
 
-                database.execSQL("UPDATE " + TABLE_NAME + " SET " +
-                                 RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " + ID + " = ?",
-                                 new String[] {String.valueOf(id)});
+          if (theirAddress == null) {
+            continue;
+          }
 
-                DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-                notifyConversationListeners(threadId);
-              }
-            } catch (InvalidNumberException e) {
-              Log.w("MmsDatabase", e);
+          if (GroupUtil.isEncodedGroup(theirAddress)) {
+            for (Map.Entry<String, Integer> address : addresses.entrySet()) {
+              increment += address.getValue();
+              addToSet(matched, timestamp, address.getKey());
             }
+          } else if (addresses.containsKey(theirAddress)) {
+            increment += addresses.get(theirAddress);
+            addToSet(matched, timestamp, theirAddress);
           }
         }
-      }
 
-      if (!found) {
-        try {
-          earlyReceiptCache.increment(timestamp, canonicalizeNumber(context, address));
-        } catch (InvalidNumberException e) {
-          Log.w(TAG, e);
+        if (increment > 0) {
+          long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+
+          database.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                           RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + ? WHERE " + ID + " = ?",
+                           new Object[] {increment, id});
+          invalidateRecord(id);
+
+          addToSet(updated, threadId, id);
         }
       }
     } finally {
       if (cursor != null)
         cursor.close();
     }
+
+    for (Map.Entry<Long, Map<String, Integer>> receipt : receipts.entrySet()) {
+      Set<String> matchedAddresses = matched.get(receipt.getKey());
+
+      for (Map.Entry<String, Integer> address : receipt.getValue().entrySet()) {
+        if (matchedAddresses == null || !matchedAddresses.contains(address.getKey())) {
+          earlyReceiptCache.increment(receipt.getKey(), address.getKey(), address.getValue());
+        }
+      }
+    }
+
+    return updated;
+  }
+
+  private @Nullable String getCanonicalNumberOrGroup(Map<String, String> canonicalNumbers, String number) {
+    if (canonicalNumbers.containsKey(number)) {
+      return canonicalNumbers.get(number);
+    }
+
+    String canonicalNumber = null;
+
+    try {
+      canonicalNumber = canonicalizeNumberOrGroup(context, number);
+    } catch (InvalidNumberException e) {
+      Log.w(TAG, e);
+    }
+
+    canonicalNumbers.put(number, canonicalNumber);
+    return canonicalNumber;
   }
 
   public long getThreadIdForMessage(long id) {
@@ -330,7 +394,7 @@ public class MmsDatabase extends MessagingDatabase {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     return database.rawQuery("SELECT " + Util.join(MMS_PROJECTION, ",") +
                              " FROM " + MmsDatabase.TABLE_NAME +  " LEFT OUTER JOIN " + AttachmentDatabase.TABLE_NAME +
-                             " ON (" + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " = " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + ")" +
+                             " ON (" + MmsDatabase.TABLE_NAME + "." + MmsDatabase.FIRST_PART_ID + " = " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ")" +
                              " WHERE " + where, arguments);
   }
 
@@ -350,9 +414,10 @@ public class MmsDatabase extends MessagingDatabase {
     db.execSQL("UPDATE " + TABLE_NAME +
                    " SET " + MESSAGE_BOX + " = (" + MESSAGE_BOX + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + " )" +
                    " WHERE " + ID + " = ?", new String[] {id + ""});
+    invalidateRecord(id);
 
     if (threadId.isPresent()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId.get(), false);
+      DatabaseFactory.getThreadDatabase(context).updateForChange(threadId.get(), id, true, false);
     }
   }
 
@@ -391,12 +456,60 @@ public class MmsDatabase extends MessagingDatabase {
     notifyConversationListeners(threadId);
   }
 
+  public void markAsPushSent(long messageId) {
+    long threadId = getThreadIdForMessage(messageId);
+    updateMailboxBitmask(messageId, Types.BASE_TYPE_MASK,
+                         Types.BASE_SENT_TYPE | Types.PUSH_MESSAGE_BIT | Types.SECURE_MESSAGE_BIT,
+                         Optional.of(threadId));
+    notifyConversationListeners(threadId);
+  }
+
+  /**
+   * Records the outcome of a push send that failed for some of its recipients,
+   * along with which ones and why, in a single transaction.  The message is marked
+   * failed even if the reasons can't be recorded, so that it never stays "sending".
+   */
+  public void markAsPushSentFailed(long messageId,
+                                   List<NetworkFailure> failures,
+                                   List<IdentityKeyMismatch> mismatches)
+  {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    long           threadId = getThreadIdForMessage(messageId);
+
+    database.beginTransaction();
+
+    try {
+      updateMailboxBitmask(messageId, Types.BASE_TYPE_MASK,
+                           Types.BASE_SENT_FAILED_TYPE | Types.PUSH_MESSAGE_BIT,
+                           Optional.of(threadId));
+
+      try {
+        if (!failures.isEmpty()) {
+          addToDocument(database, messageId, NETWORK_FAILURE, failures, NetworkFailureList.class);
+        }
+
+        if (!mismatches.isEmpty()) {
+          addToDocument(database, messageId, MISMATCHED_IDENTITIES, mismatches, IdentityKeyMismatchList.class);
+        }
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    notifyConversationListeners(threadId);
+  }
+
   public void markDownloadState(long messageId, long state) {
     SQLiteDatabase database     = databaseHelper.getWritableDatabase();
     ContentValues contentValues = new ContentValues();
     contentValues.put(STATUS, state);
 
     database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {messageId + ""});
+    invalidateRecord(messageId);
     notifyConversationListeners(getThreadIdForMessage(messageId));
   }
 
@@ -449,7 +562,7 @@ public class MmsDatabase extends MessagingDatabase {
   }
 
   public void updateMessageBody(MasterSecretUnion masterSecret, long messageId, String body) {
-    body = getEncryptedBody(masterSecret, body);
+    String encryptedBody = getEncryptedBody(masterSecret, body);
 
     long type;
 
@@ -459,7 +572,11 @@ public class MmsDatabase extends MessagingDatabase {
       type = Types.ENCRYPTION_ASYMMETRIC_BIT;
     }
 
-    updateMessageBodyAndType(messageId, body, Types.ENCRYPTION_MASK, type);
+    updateMessageBodyAndType(messageId, encryptedBody, Types.ENCRYPTION_MASK, type);
+
+    if (masterSecret.getMasterSecret().isPresent()) {
+      DatabaseFactory.getSearchDatabase(context).index(masterSecret.getMasterSecret().get(), true, messageId, body);
+    }
   }
 
   private Pair<Long, Long> updateMessageBodyAndType(long messageId, String body, long maskOff, long maskOn) {
@@ -468,10 +585,12 @@ public class MmsDatabase extends MessagingDatabase {
                MESSAGE_BOX + " = (" + MESSAGE_BOX + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + ") " +
                "WHERE " + ID + " = ?",
                new String[] {body, messageId + ""});
+    invalidateRecord(messageId);
+    removeFromSearchIndex(messageId);
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, messageId, true, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -626,7 +745,6 @@ public class MmsDatabase extends MessagingDatabase {
                                         contentValues);
 
     DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -827,21 +945,28 @@ public class MmsDatabase extends MessagingDatabase {
 
     contentValues.put(PART_COUNT, attachments.size());
 
+    long messageId;
+
     db.beginTransaction();
     try {
-      long messageId = db.insert(TABLE_NAME, null, contentValues);
+      messageId = db.insert(TABLE_NAME, null, contentValues);
 
       addressDatabase.insertAddressesForId(messageId, addresses);
       partsDatabase.insertAttachmentsForMessage(masterSecret, messageId, attachments);
 
       db.setTransactionSuccessful();
-      return messageId;
     } finally {
       db.endTransaction();
-
       notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-      DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID), true);
     }
+
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(contentValues.getAsLong(THREAD_ID), messageId, true, true);
+
+    if (masterSecret.getMasterSecret().isPresent()) {
+      DatabaseFactory.getSearchDatabase(context).index(masterSecret.getMasterSecret().get(), true, messageId, body);
+    }
+
+    return messageId;
   }
 
   public boolean delete(long messageId) {
@@ -853,7 +978,9 @@ public class MmsDatabase extends MessagingDatabase {
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    invalidateRecord(messageId);
+    removeFromSearchIndex(messageId);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, messageId, true);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
@@ -922,6 +1049,8 @@ public class MmsDatabase extends MessagingDatabase {
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
+    DatabaseFactory.getMessageRecordCache(context).clear();
+    DatabaseFactory.getSearchDatabase(context).removeAll(true);
   }
 
   public Cursor getCarrierMmsInformation(String apn) {
@@ -943,6 +1072,10 @@ public class MmsDatabase extends MessagingDatabase {
     return new Reader(masterSecret, cursor);
   }
 
+  public Reader readerFor(MasterSecret masterSecret, Cursor cursor, @Nullable BodyPrefetcher prefetcher) {
+    return new Reader(masterSecret, cursor, prefetcher);
+  }
+
   public static class Status {
     public static final int DOWNLOAD_INITIALIZED     = 1;
     public static final int DOWNLOAD_NO_CONNECTIVITY = 2;
@@ -976,13 +1109,19 @@ public class MmsDatabase extends MessagingDatabase {
 
   public class Reader {
 
-    private final Cursor       cursor;
-    private final MasterSecret masterSecret;
-    private final MasterCipher masterCipher;
+    private final Cursor                   cursor;
+    private final MasterSecret             masterSecret;
+    private final MasterCipher             masterCipher;
+    private final @Nullable BodyPrefetcher prefetcher;
 
     public Reader(MasterSecret masterSecret, Cursor cursor) {
+      this(masterSecret, cursor, null);
+    }
+
+    public Reader(MasterSecret masterSecret, Cursor cursor, @Nullable BodyPrefetcher prefetcher) {
       this.cursor       = cursor;
       this.masterSecret = masterSecret;
+      this.prefetcher   = prefetcher;
 
       if (masterSecret != null) masterCipher = new MasterCipher(masterSecret);
       else                      masterCipher = null;
@@ -1105,7 +1244,9 @@ public class MmsDatabase extends MessagingDatabase {
         String body = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.BODY));
         long box    = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
 
-        if (!TextUtils.isEmpty(body) && masterCipher != null && Types.isSymmetricEncryption(box)) {
+        if (!TextUtils.isEmpty(body) && masterCipher != null && prefetcher != null && Types.isSymmetricEncryption(box)) {
+          return new DisplayRecord.Body(prefetcher.decryptBody(body), true);
+        } else if (!TextUtils.isEmpty(body) && masterCipher != null && Types.isSymmetricEncryption(box)) {
           return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
         } else if (!TextUtils.isEmpty(body) && masterCipher == null && Types.isSymmetricEncryption(box)) {
           return new DisplayRecord.Body(body, false);
@@ -14,6 +14,8 @@ public interface MmsSmsColumns {
   public static final String RECEIPT_COUNT            = "delivery_receipt_count";
   public static final String MISMATCHED_IDENTITIES    = "mismatched_identities";
   public static final String UNIQUE_ROW_ID            = "unique_row_id";
+  public static final String PACKED_ROW_ID            = "packed_row_id";
+  public static final String SEARCH_INDEXED           = "search_indexed";
 
   public static class Types {
     protected static final long TOTAL_MASK = 0xFFFFFFFF;
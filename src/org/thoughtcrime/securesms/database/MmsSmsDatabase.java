@@ -18,6 +18,7 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -28,10 +29,19 @@ import android.util.Log;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.whispersystems.libaxolotl.util.guava.Optional;
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import static org.thoughtcrime.securesms.util.Util.canonicalizeNumber;
+
 public class MmsSmsDatabase extends Database {
 
   private static final String TAG = MmsSmsDatabase.class.getSimpleName();
@@ -40,7 +50,11 @@ public class MmsSmsDatabase extends Database {
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  private static final String MMS_ROW_ID = MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID;
+  private static final String SMS_ROW_ID = SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID;
+
   private static final String[] PROJECTION = {MmsSmsColumns.ID, MmsSmsColumns.UNIQUE_ROW_ID,
+                                              MmsSmsColumns.PACKED_ROW_ID,
                                               SmsDatabase.BODY, SmsDatabase.TYPE,
                                               MmsSmsColumns.THREAD_ID,
                                               SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
@@ -64,20 +78,81 @@ public class MmsSmsDatabase extends Database {
                                               AttachmentDatabase.NAME,
                                               AttachmentDatabase.TRANSFER_STATE};
 
+  private final DeliveryReceiptBatcher receiptBatcher;
+
   public MmsSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
+    this.receiptBatcher = new DeliveryReceiptBatcher(this, databaseHelper);
   }
 
   public Cursor getConversation(long threadId, long limit) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    return getConversation(threadId, null, limit);
+  }
+
+  /**
+   * Returns up to <code>limit</code> messages in a thread, newest first, starting at
+   * <code>from</code> (inclusive) or at the newest message if it's null.  Seeking by
+   * position rather than by offset means loading older history costs the same no
+   * matter how far back it is.
+   */
+  public Cursor getConversation(long threadId, @Nullable ConversationPosition from, long limit) {
+    String tableOrder   = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + MmsSmsColumns.ID + " DESC";
+    String order        = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + MmsSmsColumns.PACKED_ROW_ID + " DESC";
+    String mmsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String smsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+
+    if (from != null) {
+      mmsSelection += " AND " + getSeekSelection(MMS_ROW_ID, from.dateReceived, from.getMmsRowIdBound(), "<");
+      smsSelection += " AND " + getSeekSelection(SMS_ROW_ID, from.dateReceived, from.getSmsRowIdBound(), "<");
+    }
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, limit > 0 ? String.valueOf(limit) : null);
+    Cursor cursor = queryTables(PROJECTION, mmsSelection, smsSelection, tableOrder, order, limit > 0 ? String.valueOf(limit) : null);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
+  /**
+   * Returns the positions of up to <code>limit</code> messages in a thread that are
+   * newer than <code>after</code>, oldest first.
+   */
+  public List<ConversationPosition> getConversationPositionsAfter(long threadId, @NonNull ConversationPosition after, long limit) {
+    String   tableOrder   = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC, " + MmsSmsColumns.ID + " ASC";
+    String   order        = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC, " + MmsSmsColumns.PACKED_ROW_ID + " ASC";
+    String   mmsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
+                            getSeekSelection(MMS_ROW_ID, after.dateReceived, after.getMmsRowIdBound(), ">");
+    String   smsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
+                            getSeekSelection(SMS_ROW_ID, after.dateReceived, after.getSmsRowIdBound(), ">");
+    String[] projection   = {MmsSmsColumns.NORMALIZED_DATE_RECEIVED, MmsSmsColumns.PACKED_ROW_ID};
+
+    List<ConversationPosition> positions = new LinkedList<>();
+    Cursor                     cursor    = null;
+
+    try {
+      cursor = queryTables(projection, mmsSelection, smsSelection, tableOrder, order, String.valueOf(limit));
+
+      while (cursor.moveToNext()) {
+        positions.add(ConversationPosition.fromCursor(cursor));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return positions;
+  }
+
+  /**
+   * Selects a table's rows on one side of a position, on the raw date and row id
+   * columns so that the (thread_id, date_received) index can seek to it.  The row id
+   * bound is inclusive going older ("<") and exclusive going newer (">").
+   */
+  private static String getSeekSelection(String rowIdColumn, long dateReceived, long rowIdBound, String direction) {
+    return MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " " + direction + "= " + dateReceived +
+           " AND (" + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " " + direction + " " + dateReceived +
+           " OR " + rowIdColumn + " " + (direction.equals("<") ? "<=" : ">") + " " + rowIdBound + ")";
+  }
+
   public Cursor getConversation(long threadId) {
     return getConversation(threadId, 0);
   }
@@ -106,6 +181,50 @@ public class MmsSmsDatabase extends Database {
     return queryTables(PROJECTION, selection, order, null);
   }
 
+  /**
+   * Like {@link #getUnread()}, but returns only each message's unique row id and type,
+   * which is enough to tell which unread messages a caller has already seen.
+   */
+  public Cursor getUnreadKeys() {
+    String   order      = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String   selection  = MmsSmsColumns.READ + " = 0";
+    String[] projection = {MmsSmsColumns.UNIQUE_ROW_ID, SmsDatabase.TYPE, MmsDatabase.MESSAGE_BOX};
+
+    return queryTables(projection, selection, order, null);
+  }
+
+  public Cursor getUnread(@NonNull Collection<String> uniqueRowIds) {
+    StringBuilder ids = new StringBuilder();
+
+    for (String uniqueRowId : uniqueRowIds) {
+      if (ids.length() > 0) ids.append(',');
+      ids.append(DatabaseUtils.sqlEscapeString(uniqueRowId));
+    }
+
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.UNIQUE_ROW_ID + " IN (" + ids + ")";
+
+    return queryTables(PROJECTION, selection, order, null);
+  }
+
+  /**
+   * @return The messages whose packed row ids are returned by a subquery, newest first.
+   * The subquery must return a single column named {@link MmsSmsColumns#PACKED_ROW_ID}.
+   * Each table is looked up by its own row id, rather than by the computed packed id.
+   */
+  /*package*/ Cursor getMessagesForPackedRowIds(@NonNull String subquery) {
+    String order        = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+    String mmsSelection = MMS_ROW_ID + " IN (" + getRowIdsForPackedRowIds(subquery, true) + ")";
+    String smsSelection = SMS_ROW_ID + " IN (" + getRowIdsForPackedRowIds(subquery, false) + ")";
+
+    return queryTables(PROJECTION, mmsSelection, smsSelection, order, order, null);
+  }
+
+  private static String getRowIdsForPackedRowIds(@NonNull String subquery, boolean mms) {
+    return "SELECT " + MmsSmsColumns.PACKED_ROW_ID + " >> 1 FROM (" + subquery + ")" +
+           " WHERE (" + MmsSmsColumns.PACKED_ROW_ID + " & 1) = " + (mms ? 1 : 0);
+  }
+
   public int getConversationCount(long threadId) {
     int count = DatabaseFactory.getSmsDatabase(context).getMessageCountForThread(threadId);
     count    += DatabaseFactory.getMmsDatabase(context).getMessageCountForThread(threadId);
@@ -113,18 +232,98 @@ public class MmsSmsDatabase extends Database {
     return count;
   }
 
+  /**
+   * Queues a delivery receipt.  The receipt is stored before this returns, but applied
+   * in a batch shortly after, so a burst of them costs one transaction and one update
+   * per thread.
+   */
   public void incrementDeliveryReceiptCount(String address, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementDeliveryReceiptCount(address, timestamp);
-    DatabaseFactory.getMmsDatabase(context).incrementDeliveryReceiptCount(address, timestamp);
+    receiptBatcher.add(address, timestamp);
+  }
+
+  /*package*/ void incrementDeliveryReceiptCounts(Map<Long, Map<String, Integer>> receipts, long lastPendingId) {
+    Map<Long, Map<String, Integer>> canonicalReceipts = canonicalizeReceipts(receipts);
+    SQLiteDatabase                  database          = databaseHelper.getWritableDatabase();
+    Map<Long, Set<Long>>            smsUpdates        = Collections.emptyMap();
+    Map<Long, Set<Long>>            mmsUpdates        = Collections.emptyMap();
+
+    database.beginTransaction();
+
+    try {
+      if (!canonicalReceipts.isEmpty()) {
+        smsUpdates = DatabaseFactory.getSmsDatabase(context).incrementDeliveryReceiptCounts(canonicalReceipts);
+        mmsUpdates = DatabaseFactory.getMmsDatabase(context).incrementDeliveryReceiptCounts(canonicalReceipts);
+      }
+
+      DeliveryReceiptBatcher.deletePending(database, lastPendingId);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    Set<Long> threadIds = new HashSet<>(smsUpdates.keySet());
+    threadIds.addAll(mmsUpdates.keySet());
+
+    for (long threadId : threadIds) {
+      Set<Long> smsIds = smsUpdates.get(threadId);
+      Set<Long> mmsIds = mmsUpdates.get(threadId);
+
+      DatabaseFactory.getThreadDatabase(context)
+                     .updateForChanges(threadId,
+                                       smsIds != null ? smsIds : Collections.<Long>emptySet(),
+                                       mmsIds != null ? mmsIds : Collections.<Long>emptySet());
+    }
+
+    notifyConversationListeners(threadIds);
+  }
+
+  private Map<Long, Map<String, Integer>> canonicalizeReceipts(Map<Long, Map<String, Integer>> receipts) {
+    Map<String, String>             canonicalNumbers  = new HashMap<>();
+    Map<Long, Map<String, Integer>> canonicalReceipts = new HashMap<>();
+
+    for (Map.Entry<Long, Map<String, Integer>> receipt : receipts.entrySet()) {
+      Map<String, Integer> addresses = new HashMap<>();
+
+      for (Map.Entry<String, Integer> address : receipt.getValue().entrySet()) {
+        String canonicalNumber = canonicalNumbers.get(address.getKey());
+
+        if (canonicalNumber == null) {
+          try {
+            canonicalNumber = canonicalizeNumber(context, address.getKey());
+            canonicalNumbers.put(address.getKey(), canonicalNumber);
+          } catch (InvalidNumberException e) {
+            Log.w(TAG, e);
+            continue;
+          }
+        }
+
+        Integer count = addresses.get(canonicalNumber);
+        addresses.put(canonicalNumber, count == null ? address.getValue() : count + address.getValue());
+      }
+
+      if (!addresses.isEmpty()) {
+        canonicalReceipts.put(receipt.getKey(), addresses);
+      }
+    }
+
+    return canonicalReceipts;
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    return queryTables(projection, selection, selection, order, order, limit);
+  }
+
+  private Cursor queryTables(String[] projection, String mmsSelection, String smsSelection,
+                             String tableOrder, String order, String limit)
+  {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
                               "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID
                                   + " || '::' || " + MmsDatabase.DATE_SENT
                                   + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
+                              "(" + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " << 1) | 1"
+                                  + " AS " + MmsSmsColumns.PACKED_ROW_ID,
                               AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + " AS " + AttachmentDatabase.ATTACHMENT_ID_ALIAS,
                               SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
@@ -149,6 +348,8 @@ public class MmsSmsDatabase extends Database {
                               "'SMS::' || " + MmsSmsColumns.ID
                                   + " || '::' || " + SmsDatabase.DATE_SENT
                                   + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
+                              "(" + MmsSmsColumns.ID + " << 1)"
+                                  + " AS " + MmsSmsColumns.PACKED_ROW_ID,
                               "NULL AS " + AttachmentDatabase.ATTACHMENT_ID_ALIAS,
                               SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
@@ -177,10 +378,7 @@ public class MmsSmsDatabase extends Database {
     mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
                               AttachmentDatabase.TABLE_NAME +
                               " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + " = " +
-                                  " (SELECT " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID +
-                                  " FROM " + AttachmentDatabase.TABLE_NAME + " WHERE " +
-                                  AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " +
-                                  MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " LIMIT 1)");
+                              MmsDatabase.TABLE_NAME + "." + MmsDatabase.FIRST_PART_ID);
 
 
     Set<String> mmsColumnsPresent = new HashSet<>();
@@ -229,11 +427,16 @@ public class MmsSmsDatabase extends Database {
     smsColumnsPresent.add(SmsDatabase.STATUS);
 
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, null, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 5, MMS_TRANSPORT, mmsSelection, null, null, null);
     @SuppressWarnings("deprecation")
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, selection, null, null, null);
+    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 5, SMS_TRANSPORT, smsSelection, null, null, null);
 
     SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
+    if (limit != null) {
+      mmsSubQuery = "SELECT * FROM (" + mmsSubQuery + " ORDER BY " + tableOrder + " LIMIT " + limit + ")";
+      smsSubQuery = "SELECT * FROM (" + smsSubQuery + " ORDER BY " + tableOrder + " LIMIT " + limit + ")";
+    }
+
     String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, limit);
 
     SQLiteQueryBuilder outerQueryBuilder = new SQLiteQueryBuilder();
@@ -247,6 +450,38 @@ public class MmsSmsDatabase extends Database {
     return db.rawQuery(query, null);
   }
 
+  /**
+   * The sort key of a message within its conversation.
+   */
+  public static class ConversationPosition {
+    private final long dateReceived;
+    private final long packedRowId;
+
+    public ConversationPosition(long dateReceived, long packedRowId) {
+      this.dateReceived = dateReceived;
+      this.packedRowId  = packedRowId;
+    }
+
+    public static ConversationPosition fromCursor(@NonNull Cursor cursor) {
+      return new ConversationPosition(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)),
+                                      cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.PACKED_ROW_ID)));
+    }
+
+    /**
+     * @return The highest MMS row id whose packed id is at most this position's.
+     */
+    private long getMmsRowIdBound() {
+      return (packedRowId - 1) >> 1;
+    }
+
+    /**
+     * @return The highest SMS row id whose packed id is at most this position's.
+     */
+    private long getSmsRowIdBound() {
+      return packedRowId >> 1;
+    }
+  }
+
   public Reader readerFor(@NonNull Cursor cursor, @Nullable MasterSecret masterSecret) {
     return new Reader(cursor, masterSecret);
   }
@@ -255,16 +490,34 @@ public class MmsSmsDatabase extends Database {
     return new Reader(cursor);
   }
 
+  /**
+   * A reader that keeps the bodies of the next few rows decrypting in the background
+   * while the caller works through the current one.  The prefetcher should come from
+   * {@link BodyPrefetcher#forConversation(MasterSecret)} and can be shared between
+   * readers over the same cursor.
+   */
+  public Reader readerFor(@NonNull Cursor cursor, @NonNull MasterSecret masterSecret,
+                          @NonNull BodyPrefetcher prefetcher)
+  {
+    return new Reader(cursor, masterSecret, prefetcher);
+  }
+
   public class Reader {
 
     private final Cursor                       cursor;
     private final Optional<MasterSecret>       masterSecret;
+    private final Optional<BodyPrefetcher>     prefetcher;
     private       EncryptingSmsDatabase.Reader smsReader;
     private       MmsDatabase.Reader           mmsReader;
 
     public Reader(Cursor cursor, @Nullable MasterSecret masterSecret) {
+      this(cursor, masterSecret, null);
+    }
+
+    public Reader(Cursor cursor, @Nullable MasterSecret masterSecret, @Nullable BodyPrefetcher prefetcher) {
       this.cursor       = cursor;
       this.masterSecret = Optional.fromNullable(masterSecret);
+      this.prefetcher   = masterSecret != null ? Optional.fromNullable(prefetcher) : Optional.<BodyPrefetcher>absent();
     }
 
     public Reader(Cursor cursor) {
@@ -273,7 +526,7 @@ public class MmsSmsDatabase extends Database {
 
     private EncryptingSmsDatabase.Reader getSmsReader() {
       if (smsReader == null) {
-        if (masterSecret.isPresent()) smsReader = DatabaseFactory.getEncryptingSmsDatabase(context).readerFor(masterSecret.get(), cursor);
+        if (masterSecret.isPresent()) smsReader = DatabaseFactory.getEncryptingSmsDatabase(context).readerFor(masterSecret.get(), cursor, prefetcher.orNull());
         else                          smsReader = DatabaseFactory.getSmsDatabase(context).readerFor(cursor);
       }
 
@@ -282,7 +535,7 @@ public class MmsSmsDatabase extends Database {
 
     private MmsDatabase.Reader getMmsReader() {
       if (mmsReader == null) {
-        mmsReader = DatabaseFactory.getMmsDatabase(context).readerFor(masterSecret.orNull(), cursor);
+        mmsReader = DatabaseFactory.getMmsDatabase(context).readerFor(masterSecret.orNull(), cursor, prefetcher.orNull());
       }
 
       return mmsReader;
@@ -296,11 +549,18 @@ public class MmsSmsDatabase extends Database {
     }
 
     public MessageRecord getCurrent() {
-      String type = cursor.getString(cursor.getColumnIndexOrThrow(TRANSPORT));
+      String        type = cursor.getString(cursor.getColumnIndexOrThrow(TRANSPORT));
+      MessageRecord record;
 
-      if      (MmsSmsDatabase.MMS_TRANSPORT.equals(type)) return getMmsReader().getCurrent();
-      else if (MmsSmsDatabase.SMS_TRANSPORT.equals(type)) return getSmsReader().getCurrent();
+      if      (MmsSmsDatabase.MMS_TRANSPORT.equals(type)) record = getMmsReader().getCurrent();
+      else if (MmsSmsDatabase.SMS_TRANSPORT.equals(type)) record = getSmsReader().getCurrent();
       else                                                throw new AssertionError("Bad type: " + type);
+
+      if (prefetcher.isPresent()) {
+        prefetcher.get().prefetch(cursor);
+      }
+
+      return record;
     }
 
     public void close() {
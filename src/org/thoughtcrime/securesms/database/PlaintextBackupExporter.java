@@ -2,21 +2,44 @@ package org.thoughtcrime.securesms.database;
 
 
 import android.content.Context;
+import android.database.Cursor;
 import android.os.Environment;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.XmlBackup.ProgressListener;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
 
 import java.io.File;
 import java.io.IOException;
-
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports SMS messages as plaintext XML.
+ *
+ * The calling thread reads pages of rows by id, a pool of workers decrypts and encodes
+ * each page, and the calling thread writes the encoded pages back out in order.  At
+ * most a few pages are in flight at once, so memory use doesn't grow with the number
+ * of messages.
+ */
 public class PlaintextBackupExporter {
 
-  public static void exportPlaintextToSd(Context context, MasterSecret masterSecret)
+  private static final int PAGE_SIZE   = 500;
+  private static final int MAX_WORKERS = 4;
+
+  public static void exportPlaintextToSd(Context context, MasterSecret masterSecret,
+                                         @Nullable ProgressListener listener)
       throws NoExternalStorageException, IOException
   {
     verifyExternalStorageForPlaintextExport();
-    exportPlaintext(context, masterSecret);
+    exportPlaintext(context, masterSecret, listener);
   }
 
   private static void verifyExternalStorageForPlaintextExport() throws NoExternalStorageException {
@@ -29,38 +52,114 @@ public class PlaintextBackupExporter {
     return sdDirectory.getAbsolutePath() + File.separator + "TextSecurePlaintextBackup.xml";
   }
 
-  private static void exportPlaintext(Context context, MasterSecret masterSecret)
+  private static void exportPlaintext(Context context, MasterSecret masterSecret,
+                                      @Nullable ProgressListener listener)
       throws IOException
   {
-    int count               = DatabaseFactory.getSmsDatabase(context).getMessageCount();
-    XmlBackup.Writer writer = new XmlBackup.Writer(getPlaintextExportDirectoryPath(), count);
+    EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
+    int                   count    = database.getMessageCount();
+    int                   workers  = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+    ExecutorService       executor = Executors.newFixedThreadPool(workers);
+    Queue<Future<Page>>   pending  = new LinkedList<>();
+    XmlBackup.Writer      writer   = new XmlBackup.Writer(getPlaintextExportDirectoryPath(), count);
+    long                  lastId   = -1;
+    int                   written  = 0;
+
+    try {
+      Cursor cursor;
+
+      while ((cursor = database.getMessagesAfter(lastId, PAGE_SIZE)).moveToLast()) {
+        lastId = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
+        cursor.moveToPosition(-1);
+
+        pending.add(executor.submit(new EncodePageTask(database, masterSecret, cursor)));
+
+        if (pending.size() > workers * 2) {
+          written += writePage(writer, pending.remove());
+          notifyProgress(listener, written, count);
+        }
+      }
 
+      cursor.close();
 
-    SmsMessageRecord record;
-    EncryptingSmsDatabase.Reader reader = null;
-    int skip                            = 0;
-    int ROW_LIMIT                       = 500;
+      while (!pending.isEmpty()) {
+        written += writePage(writer, pending.remove());
+        notifyProgress(listener, written, count);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
 
-    do {
-      if (reader != null)
-        reader.close();
+    writer.close();
+  }
 
-      reader = DatabaseFactory.getEncryptingSmsDatabase(context).getMessages(masterSecret, skip, ROW_LIMIT);
+  private static int writePage(@NonNull XmlBackup.Writer writer, @NonNull Future<Page> future)
+      throws IOException
+  {
+    try {
+      Page page = future.get();
+      writer.writeItems(page.items);
+      return page.count;
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      else                                          throw new IOException(e);
+    }
+  }
 
-      while ((record = reader.getNext()) != null) {
-        XmlBackup.XmlBackupItem item =
-            new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
-                                        record.getDateReceived(),
-                                        MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
-                                        null, record.getDisplayBody().toString(), null,
-                                        1, record.getDeliveryStatus());
+  private static void notifyProgress(@Nullable ProgressListener listener, int complete, int total) {
+    if (listener != null) {
+      listener.onProgress(complete, total);
+    }
+  }
 
-        writer.writeItem(item);
+  private static class EncodePageTask implements Callable<Page> {
+
+    private final EncryptingSmsDatabase database;
+    private final MasterSecret          masterSecret;
+    private final Cursor                cursor;
+
+    private EncodePageTask(EncryptingSmsDatabase database, MasterSecret masterSecret, Cursor cursor) {
+      this.database     = database;
+      this.masterSecret = masterSecret;
+      this.cursor       = cursor;
+    }
+
+    @Override
+    public Page call() {
+      EncryptingSmsDatabase.Reader reader = database.readerFor(masterSecret, cursor);
+      StringBuilder                items  = new StringBuilder();
+      int                          count  = 0;
+      SmsMessageRecord             record;
+
+      try {
+        while ((record = reader.getNext()) != null) {
+          XmlBackup.XmlBackupItem item =
+              new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
+                                          record.getDateReceived(),
+                                          MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
+                                          null, record.getDisplayBody().toString(), null,
+                                          1, record.getDeliveryStatus());
+
+          XmlBackup.Writer.appendItem(items, item);
+          count++;
+        }
+      } finally {
+        reader.close();
       }
 
-      skip += ROW_LIMIT;
-    } while (reader.getCount() > 0);
+      return new Page(items, count);
+    }
+  }
 
-    writer.close();
+  private static class Page {
+    private final CharSequence items;
+    private final int          count;
+
+    private Page(CharSequence items, int count) {
+      this.items = items;
+      this.count = count;
+    }
   }
 }
@@ -4,29 +4,56 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.XmlBackup.ProgressListener;
+import org.thoughtcrime.securesms.jobs.SearchIndexJob;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
-import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-
+/**
+ * Imports SMS messages from a plaintext XML backup.
+ *
+ * The calling thread parses the backup into chunks, a pool of workers encrypts each
+ * chunk's bodies, and the calling thread inserts the encrypted chunks in order, one
+ * transaction per chunk.
+ */
 public class PlaintextBackupImporter {
 
-  public static void importPlaintextFromSd(Context context, MasterSecret masterSecret)
+  private static final String TAG = PlaintextBackupImporter.class.getSimpleName();
+
+  private static final int CHUNK_SIZE  = 500;
+  private static final int MAX_WORKERS = 4;
+
+  public static void importPlaintextFromSd(Context context, MasterSecret masterSecret,
+                                           @Nullable ProgressListener listener)
       throws NoExternalStorageException, IOException
   {
-    Log.w("PlaintextBackupImporter", "Importing plaintext...");
+    Log.w(TAG, "Importing plaintext...");
     verifyExternalStorageForPlaintextImport();
-    importPlaintext(context, masterSecret);
+    importPlaintext(context, masterSecret, listener);
   }
 
   private static void verifyExternalStorageForPlaintextImport() throws NoExternalStorageException {
@@ -40,30 +67,101 @@ public class PlaintextBackupImporter {
     return sdDirectory.getAbsolutePath() + File.separator + "TextSecurePlaintextBackup.xml";
   }
 
-  private static void importPlaintext(Context context, MasterSecret masterSecret)
+  private static void importPlaintext(Context context, MasterSecret masterSecret,
+                                      @Nullable ProgressListener listener)
       throws IOException
   {
-    Log.w("PlaintextBackupImporter", "importPlaintext()");
-    SmsDatabase    db          = DatabaseFactory.getSmsDatabase(context);
-    SQLiteDatabase transaction = db.beginTransaction();
+    Log.w(TAG, "importPlaintext()");
+    int                  workers         = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+    ExecutorService      executor        = Executors.newFixedThreadPool(workers);
+    Queue<Future<Chunk>> pending         = new LinkedList<>();
+    Map<String, Long>    threadIds       = new HashMap<>();
+    Set<Long>            modifiedThreads = new HashSet<>();
+    int                  imported        = 0;
+
+    try {
+      XmlBackup                     backup = new XmlBackup(getPlaintextExportDirectoryPath());
+      List<XmlBackup.XmlBackupItem> items;
+
+      while (!(items = readChunk(backup)).isEmpty()) {
+        pending.add(executor.submit(new EncryptChunkTask(masterSecret, items)));
+
+        if (pending.size() > workers) {
+          imported += insertChunk(context, getChunk(pending.remove()), threadIds, modifiedThreads);
+          notifyProgress(listener, imported, backup.getCount());
+        }
+      }
+
+      while (!pending.isEmpty()) {
+        imported += insertChunk(context, getChunk(pending.remove()), threadIds, modifiedThreads);
+        notifyProgress(listener, imported, backup.getCount());
+      }
+
+      ThreadDatabase threads = DatabaseFactory.getThreadDatabase(context);
+
+      for (long threadId : modifiedThreads) {
+        threads.update(threadId, true);
+      }
+
+      Log.w(TAG, "Imported " + imported + " messages");
+    } catch (XmlPullParserException e) {
+      Log.w(TAG, e);
+      throw new IOException("XML Parsing error!");
+    } finally {
+      executor.shutdownNow();
+    }
+
+    ApplicationContext.getInstance(context).getJobManager().add(new SearchIndexJob(context));
+  }
+
+  private static @NonNull List<XmlBackup.XmlBackupItem> readChunk(@NonNull XmlBackup backup)
+      throws IOException, XmlPullParserException
+  {
+    List<XmlBackup.XmlBackupItem> items = new ArrayList<>(CHUNK_SIZE);
+    XmlBackup.XmlBackupItem       item;
+
+    while (items.size() < CHUNK_SIZE && (item = backup.getNext()) != null) {
+      if (item.getAddress() == null || item.getAddress().equals("null"))
+        continue;
+
+      if (!isAppropriateTypeForImport(item.getType()))
+        continue;
+
+      items.add(item);
+    }
 
+    return items;
+  }
+
+  private static @NonNull Chunk getChunk(@NonNull Future<Chunk> future) throws IOException {
     try {
-      ThreadDatabase threads         = DatabaseFactory.getThreadDatabase(context);
-      XmlBackup      backup          = new XmlBackup(getPlaintextExportDirectoryPath());
-      MasterCipher   masterCipher    = new MasterCipher(masterSecret);
-      Set<Long>      modifiedThreads = new HashSet<Long>();
-      XmlBackup.XmlBackupItem item;
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      else                                          throw new IOException(e);
+    }
+  }
 
-      while ((item = backup.getNext()) != null) {
-        Recipients      recipients = RecipientFactory.getRecipientsFromString(context, item.getAddress(), false);
-        long            threadId   = threads.getThreadIdFor(recipients);
-        SQLiteStatement statement  = db.createInsertStatement(transaction);
+  private static int insertChunk(@NonNull Context context, @NonNull Chunk chunk,
+                                 @NonNull Map<String, Long> threadIds, @NonNull Set<Long> modifiedThreads)
+  {
+    SmsDatabase     db          = DatabaseFactory.getSmsDatabase(context);
+    ThreadDatabase  threads     = DatabaseFactory.getThreadDatabase(context);
+    SQLiteDatabase  transaction = db.beginTransaction();
+    SQLiteStatement statement   = db.createInsertStatement(transaction);
 
-        if (item.getAddress() == null || item.getAddress().equals("null"))
-          continue;
+    try {
+      for (int i = 0; i < chunk.items.size(); i++) {
+        XmlBackup.XmlBackupItem item     = chunk.items.get(i);
+        Long                    threadId = threadIds.get(item.getAddress());
 
-        if (!isAppropriateTypeForImport(item.getType()))
-          continue;
+        if (threadId == null) {
+          Recipients recipients = RecipientFactory.getRecipientsFromString(context, item.getAddress(), false);
+          threadId = threads.getThreadIdFor(recipients);
+          threadIds.put(item.getAddress(), threadId);
+        }
 
         addStringToStatement(statement, 1, item.getAddress());
         addNullToStatement(statement, 2);
@@ -75,31 +173,23 @@ public class PlaintextBackupImporter {
         addTranslatedTypeToStatement(statement, 8, item.getType());
         addNullToStatement(statement, 9);
         addStringToStatement(statement, 10, item.getSubject());
-        addEncryptedStingToStatement(masterCipher, statement, 11, item.getBody());
+        addStringToStatement(statement, 11, chunk.bodies[i]);
         addStringToStatement(statement, 12, item.getServiceCenter());
         addLongToStatement(statement, 13, threadId);
         modifiedThreads.add(threadId);
         statement.execute();
       }
-
-      for (long threadId : modifiedThreads) {
-        threads.update(threadId, true);
-      }
-
-      Log.w("PlaintextBackupImporter", "Exited loop");
-    } catch (XmlPullParserException e) {
-      Log.w("PlaintextBackupImporter", e);
-      throw new IOException("XML Parsing error!");
     } finally {
+      statement.close();
       db.endTransaction(transaction);
     }
+
+    return chunk.items.size();
   }
 
-  private static void addEncryptedStingToStatement(MasterCipher masterCipher, SQLiteStatement statement, int index, String value) {
-    if (value == null || value.equals("null")) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, masterCipher.encryptBody(value));
+  private static void notifyProgress(@Nullable ProgressListener listener, int complete, int total) {
+    if (listener != null) {
+      listener.onProgress(complete, total);
     }
   }
 
@@ -128,5 +218,43 @@ public class PlaintextBackupImporter {
            ourType == MmsSmsColumns.Types.BASE_SENT_FAILED_TYPE;
   }
 
+  private static class EncryptChunkTask implements Callable<Chunk> {
 
+    private final MasterSecret                  masterSecret;
+    private final List<XmlBackup.XmlBackupItem> items;
+
+    private EncryptChunkTask(MasterSecret masterSecret, List<XmlBackup.XmlBackupItem> items) {
+      this.masterSecret = masterSecret;
+      this.items        = items;
+    }
+
+    @Override
+    public Chunk call() {
+      MasterCipher masterCipher = new MasterCipher(masterSecret);
+      String[]     bodies       = new String[items.size()];
+      int          index        = 0;
+
+      for (XmlBackup.XmlBackupItem item : items) {
+        String body = item.getBody();
+
+        if (body != null && !body.equals("null")) {
+          bodies[index] = masterCipher.encryptBody(body);
+        }
+
+        index++;
+      }
+
+      return new Chunk(items, bodies);
+    }
+  }
+
+  private static class Chunk {
+    private final List<XmlBackup.XmlBackupItem> items;
+    private final String[]                      bodies;
+
+    private Chunk(List<XmlBackup.XmlBackupItem> items, String[] bodies) {
+      this.items  = items;
+      this.bodies = bodies;
+    }
+  }
 }
@@ -4,16 +4,18 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
-import org.thoughtcrime.securesms.util.Base64;
-import org.whispersystems.libaxolotl.util.guava.Optional;
+import org.thoughtcrime.securesms.util.Conversions;
 import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
-import org.whispersystems.textsecure.internal.util.Util;
 
-import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class PushDatabase extends Database {
 
@@ -27,29 +29,79 @@ public class PushDatabase extends Database {
   public  static final String LEGACY_MSG   = "body";
   public  static final String CONTENT      = "content";
   public  static final String TIMESTAMP    = "timestamp";
+  public  static final String SMS_ID       = "sms_message_id";
+  private static final String DIGEST       = "digest";
+
+  private static final byte[] EMPTY = new byte[0];
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
-      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + LEGACY_MSG + " TEXT, " + CONTENT + " TEXT, " + TIMESTAMP + " INTEGER);";
+      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + LEGACY_MSG + " BLOB, " + CONTENT + " BLOB, " + TIMESTAMP + " INTEGER, " +
+      SMS_ID + " INTEGER DEFAULT -1, " + DIGEST + " BLOB);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE UNIQUE INDEX IF NOT EXISTS push_digest_index ON " + TABLE_NAME + " (" + TYPE + ", " + SOURCE + ", " +
+        DEVICE_ID + ", " + TIMESTAMP + ", " + DIGEST + ");",
+  };
 
   public PushDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
   public long insert(@NonNull TextSecureEnvelope envelope) {
-    Optional<Long> messageId = find(envelope);
-
-    if (messageId.isPresent()) {
-      return messageId.get();
-    } else {
-      ContentValues values = new ContentValues();
-      values.put(TYPE, envelope.getType());
-      values.put(SOURCE, envelope.getSource());
-      values.put(DEVICE_ID, envelope.getSourceDevice());
-      values.put(LEGACY_MSG, envelope.hasLegacyMessage() ? Base64.encodeBytes(envelope.getLegacyMessage()) : "");
-      values.put(CONTENT, envelope.hasContent() ? Base64.encodeBytes(envelope.getContent()) : "");
-      values.put(TIMESTAMP, envelope.getTimestamp());
-
-      return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+    return insert(envelope, -1);
+  }
+
+  /**
+   * Queues an envelope, unless an identical one is already queued.
+   *
+   * @param smsMessageId the existing SMS message that decrypting the envelope should
+   *                     update, or -1 if it's a new message.
+   * @return the id of the queued envelope, new or existing.
+   */
+  public long insert(@NonNull TextSecureEnvelope envelope, long smsMessageId) {
+    SQLiteDatabase database      = databaseHelper.getWritableDatabase();
+    byte[]         legacyMessage = envelope.hasLegacyMessage() ? envelope.getLegacyMessage() : EMPTY;
+    byte[]         content       = envelope.hasContent() ? envelope.getContent() : EMPTY;
+    byte[]         digest        = getDigest(legacyMessage, content);
+    ContentValues  values        = new ContentValues();
+    values.put(TYPE, envelope.getType());
+    values.put(SOURCE, envelope.getSource());
+    values.put(DEVICE_ID, envelope.getSourceDevice());
+    values.put(LEGACY_MSG, legacyMessage);
+    values.put(CONTENT, content);
+    values.put(TIMESTAMP, envelope.getTimestamp());
+    values.put(SMS_ID, smsMessageId);
+    values.put(DIGEST, digest);
+
+    database.beginTransaction();
+
+    try {
+      // An ignored insert can return a stale rowid rather than -1 on older platforms,
+      // so the id always comes from looking the envelope back up.
+      database.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+      long messageId = find(database, envelope, digest);
+
+      database.setTransactionSuccessful();
+      return messageId;
+    } finally {
+      database.endTransaction();
+    }
+  }
+
+  /**
+   * @return a digest of an envelope's ciphertext, which identifies it in the unique
+   * index without indexing the ciphertext itself.
+   */
+  /*package*/ static byte[] getDigest(@NonNull byte[] legacyMessage, @NonNull byte[] content) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(Conversions.intToByteArray(legacyMessage.length));
+      digest.update(legacyMessage);
+      digest.update(content);
+
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
     }
   }
 
@@ -62,20 +114,8 @@ public class PushDatabase extends Database {
                                                           null, null, null);
 
       if (cursor != null && cursor.moveToNext()) {
-        String legacyMessage = cursor.getString(cursor.getColumnIndexOrThrow(LEGACY_MSG));
-        String content       = cursor.getString(cursor.getColumnIndexOrThrow(CONTENT));
-
-        return new TextSecureEnvelope(cursor.getInt(cursor.getColumnIndexOrThrow(TYPE)),
-                                      cursor.getString(cursor.getColumnIndexOrThrow(SOURCE)),
-                                      cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID)),
-                                      "",
-                                      cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP)),
-                                      Util.isEmpty(legacyMessage) ? null : Base64.decode(legacyMessage),
-                                      Util.isEmpty(content) ? null : Base64.decode(content));
+        return new Reader(cursor).getCurrent();
       }
-    } catch (IOException e) {
-      Log.w(TAG, e);
-      throw new NoSuchMessageException(e);
     } finally {
       if (cursor != null)
         cursor.close();
@@ -88,6 +128,25 @@ public class PushDatabase extends Database {
     return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, null);
   }
 
+  /**
+   * @return up to limit queued envelopes for new messages, oldest first, starting at fromId.
+   */
+  public Cursor getPendingBatch(long fromId, int limit) {
+    return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, ID + " >= ? AND " + SMS_ID + " = -1",
+                                                      new String[] {String.valueOf(fromId)},
+                                                      null, null, ID + " ASC", String.valueOf(limit));
+  }
+
+  public SQLiteDatabase beginTransaction() {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+    return database;
+  }
+
+  public void endTransaction(SQLiteDatabase database) {
+    database.endTransaction();
+  }
+
   public void delete(long id) {
     databaseHelper.getWritableDatabase().delete(TABLE_NAME, ID_WHERE, new String[] {id+""});
   }
@@ -96,29 +155,25 @@ public class PushDatabase extends Database {
     return new Reader(cursor);
   }
 
-  private Optional<Long> find(TextSecureEnvelope envelope) {
-    SQLiteDatabase database = databaseHelper.getReadableDatabase();
-    Cursor         cursor   = null;
+  private long find(SQLiteDatabase database, TextSecureEnvelope envelope, byte[] digest) {
+    SQLiteStatement statement = database.compileStatement("SELECT " + ID + " FROM " + TABLE_NAME + " WHERE " +
+                                                          TYPE + " = ? AND " + SOURCE + " = ? AND " +
+                                                          DEVICE_ID + " = ? AND " + TIMESTAMP + " = ? AND " +
+                                                          DIGEST + " = ?");
 
     try {
-      cursor = database.query(TABLE_NAME, null, TYPE + " = ? AND " + SOURCE + " = ? AND " +
-                                                DEVICE_ID + " = ? AND " + LEGACY_MSG + " = ? AND " +
-                                                CONTENT + " = ? AND " + TIMESTAMP + " = ?" ,
-                              new String[] {String.valueOf(envelope.getType()),
-                                            envelope.getSource(),
-                                            String.valueOf(envelope.getSourceDevice()),
-                                            envelope.hasLegacyMessage() ? Base64.encodeBytes(envelope.getLegacyMessage()) : "",
-                                            envelope.hasContent() ? Base64.encodeBytes(envelope.getContent()) : "",
-                                            String.valueOf(envelope.getTimestamp())},
-                              null, null, null);
-
-      if (cursor != null && cursor.moveToFirst()) {
-        return Optional.of(cursor.getLong(cursor.getColumnIndexOrThrow(ID)));
-      } else {
-        return Optional.absent();
-      }
+      statement.bindLong(1, envelope.getType());
+      statement.bindString(2, envelope.getSource());
+      statement.bindLong(3, envelope.getSourceDevice());
+      statement.bindLong(4, envelope.getTimestamp());
+      statement.bindBlob(5, digest);
+
+      return statement.simpleQueryForLong();
+    } catch (SQLiteDoneException e) {
+      Log.w(TAG, e);
+      return -1;
     } finally {
-      if (cursor != null) cursor.close();
+      statement.close();
     }
   }
 
@@ -130,23 +185,26 @@ public class PushDatabase extends Database {
     }
 
     public TextSecureEnvelope getNext() {
-      try {
-        if (cursor == null || !cursor.moveToNext())
-          return null;
-
-        int    type          = cursor.getInt(cursor.getColumnIndexOrThrow(TYPE));
-        String source        = cursor.getString(cursor.getColumnIndexOrThrow(SOURCE));
-        int    deviceId      = cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID));
-        String legacyMessage = cursor.getString(cursor.getColumnIndexOrThrow(LEGACY_MSG));
-        String content       = cursor.getString(cursor.getColumnIndexOrThrow(CONTENT));
-        long   timestamp     = cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP));
-
-        return new TextSecureEnvelope(type, source, deviceId, "", timestamp,
-                                      legacyMessage != null ? Base64.decode(legacyMessage) : null,
-                                      content != null ? Base64.decode(content) : null);
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
+      if (cursor == null || !cursor.moveToNext())
+        return null;
+
+      return getCurrent();
+    }
+
+    private TextSecureEnvelope getCurrent() {
+      int    type          = cursor.getInt(cursor.getColumnIndexOrThrow(TYPE));
+      String source        = cursor.getString(cursor.getColumnIndexOrThrow(SOURCE));
+      int    deviceId      = cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID));
+      byte[] legacyMessage = cursor.getBlob(cursor.getColumnIndexOrThrow(LEGACY_MSG));
+      byte[] content       = cursor.getBlob(cursor.getColumnIndexOrThrow(CONTENT));
+      long   timestamp     = cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP));
+
+      return new TextSecureEnvelope(type, source, deviceId, "", timestamp,
+                                    emptyToNull(legacyMessage), emptyToNull(content));
+    }
+
+    private @Nullable byte[] emptyToNull(@Nullable byte[] value) {
+      return value == null || value.length == 0 ? null : value;
     }
 
     public void close() {
@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.database.GroupDatabase.GroupRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory index from search terms to canonical address ids, used to filter the
+ * conversation list as the user types.
+ *
+ * Contact names, group titles and non-phone addresses are split into words, which
+ * are kept sorted so that the words starting with a term can be found with a binary
+ * search.  Phone numbers are matched by substring against a flat array of their
+ * digits, which stays well inside a frame for tens of thousands of numbers and takes
+ * far less memory than indexing every suffix.
+ *
+ * The index is built on first use and rebuilt lazily after contacts, groups or the
+ * set of known addresses change.
+ */
+public class RecipientSearchIndex {
+
+  private static final String TAG = RecipientSearchIndex.class.getSimpleName();
+
+  private static final int MIN_MATCH_DIGITS = 7;
+
+  private final Context context;
+
+  private volatile boolean dirty        = true;
+  private          int     addressCount = -1;
+
+  private String[] words     = new String[0];
+  private long[]   wordIds   = new long[0];
+  private String[] numbers   = new String[0];
+  private long[]   numberIds = new long[0];
+
+  public RecipientSearchIndex(@NonNull Context context) {
+    this.context = context;
+
+    try {
+      context.getContentResolver().registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true, new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+          invalidate();
+        }
+      });
+    } catch (SecurityException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  public void invalidate() {
+    dirty = true;
+  }
+
+  /**
+   * @return The canonical address ids of the recipients matching every whitespace
+   * separated term of the filter.
+   */
+  public synchronized @NonNull Set<Long> search(@NonNull String filter) {
+    refreshIfNecessary();
+
+    Set<Long> results = null;
+
+    for (String term : filter.toLowerCase(Locale.getDefault()).trim().split("\\s+")) {
+      Set<Long> matches = new HashSet<>();
+
+      findWordsWithPrefix(term, matches);
+
+      if (isPhoneNumberTerm(term)) {
+        findNumbersContaining(getDigits(term), matches);
+      }
+
+      if (results == null) results = matches;
+      else                 results.retainAll(matches);
+
+      if (results.isEmpty()) break;
+    }
+
+    return results == null ? Collections.<Long>emptySet() : results;
+  }
+
+  private void findWordsWithPrefix(@NonNull String prefix, @NonNull Set<Long> matches) {
+    int index = Arrays.binarySearch(words, prefix);
+    if (index < 0) index = -(index + 1);
+
+    while (index < words.length && words[index].startsWith(prefix)) {
+      matches.add(wordIds[index++]);
+    }
+  }
+
+  private void findNumbersContaining(@NonNull String digits, @NonNull Set<Long> matches) {
+    if (digits.isEmpty()) return;
+
+    for (int i = 0; i < numbers.length; i++) {
+      if (numbers[i].contains(digits)) {
+        matches.add(numberIds[i]);
+      }
+    }
+  }
+
+  private void refreshIfNecessary() {
+    CanonicalAddressDatabase addressDatabase = DatabaseFactory.getAddressDatabase(context);
+
+    if (!dirty && addressDatabase.getAddressCount() == addressCount) {
+      return;
+    }
+
+    Map<Long, String> addresses = new HashMap<>(addressDatabase.getAddresses());
+
+    dirty        = false;
+    addressCount = addresses.size();
+
+    long                           startTime      = System.currentTimeMillis();
+    List<IndexedTerm>              terms          = new ArrayList<>();
+    List<IndexedTerm>              phones         = new ArrayList<>();
+    Map<String, Long>              ids            = new HashMap<>(addresses.size());
+    Map<String, List<IndexedTerm>> phonesBySuffix = new HashMap<>();
+
+    for (Map.Entry<Long, String> address : addresses.entrySet()) {
+      String value = address.getValue();
+      ids.put(value, address.getKey());
+
+      if (CanonicalAddressDatabase.isNumberAddress(value)) {
+        IndexedTerm phone = new IndexedTerm(getDigits(value), address.getKey(), value);
+        phones.add(phone);
+        addToList(phonesBySuffix, getSuffix(phone.term), phone);
+      } else {
+        addWords(terms, value, address.getKey());
+      }
+    }
+
+    addContactNames(terms, phonesBySuffix);
+    addGroupTitles(terms, ids);
+
+    Collections.sort(terms);
+
+    String[] words   = new String[terms.size()];
+    long[]   wordIds = new long[terms.size()];
+
+    for (int i = 0; i < words.length; i++) {
+      words[i]   = terms.get(i).term;
+      wordIds[i] = terms.get(i).id;
+    }
+
+    String[] numbers   = new String[phones.size()];
+    long[]   numberIds = new long[phones.size()];
+
+    for (int i = 0; i < numbers.length; i++) {
+      numbers[i]   = phones.get(i).term;
+      numberIds[i] = phones.get(i).id;
+    }
+
+    this.words     = words;
+    this.wordIds   = wordIds;
+    this.numbers   = numbers;
+    this.numberIds = numberIds;
+
+    Log.w(TAG, "Indexed " + words.length + " words and " + numbers.length + " numbers in " +
+               (System.currentTimeMillis() - startTime) + "ms");
+  }
+
+  private void addContactNames(@NonNull List<IndexedTerm> terms,
+                               @NonNull Map<String, List<IndexedTerm>> phonesBySuffix)
+  {
+    Cursor cursor = null;
+
+    try {
+      cursor = context.getContentResolver().query(Phone.CONTENT_URI,
+                                                  new String[] {Phone.NUMBER, Phone.DISPLAY_NAME},
+                                                  null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        String number = cursor.getString(0);
+        String name   = cursor.getString(1);
+
+        if (number == null || name == null) continue;
+
+        List<IndexedTerm> candidates = phonesBySuffix.get(getSuffix(getDigits(number)));
+        if (candidates == null) continue;
+
+        for (IndexedTerm candidate : candidates) {
+          if (PhoneNumberUtils.compare(context, candidate.address, number)) {
+            addWords(terms, name, candidate.id);
+          }
+        }
+      }
+    } catch (SecurityException e) {
+      Log.w(TAG, e);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private void addGroupTitles(@NonNull List<IndexedTerm> terms, @NonNull Map<String, Long> ids) {
+    GroupDatabase.Reader reader = null;
+    GroupRecord          record;
+
+    try {
+      reader = DatabaseFactory.getGroupDatabase(context).getGroups();
+
+      while ((record = reader.getNext()) != null) {
+        Long id = ids.get(record.getEncodedId());
+
+        if (id != null && record.getTitle() != null) {
+          addWords(terms, record.getTitle(), id);
+        }
+      }
+    } finally {
+      if (reader != null)
+        reader.close();
+    }
+  }
+
+  private static void addWords(@NonNull List<IndexedTerm> terms, @NonNull String text, long id) {
+    for (String word : text.toLowerCase(Locale.getDefault()).split("[\\s,;.@<>()\"]+")) {
+      if (!word.isEmpty()) {
+        terms.add(new IndexedTerm(word, id, null));
+      }
+    }
+  }
+
+  private static boolean isPhoneNumberTerm(@NonNull String term) {
+    boolean hasDigits = false;
+
+    for (int i = 0; i < term.length(); i++) {
+      char c = term.charAt(i);
+
+      if      (c >= '0' && c <= '9')     hasDigits = true;
+      else if ("+-().".indexOf(c) == -1) return false;
+    }
+
+    return hasDigits;
+  }
+
+  private static @NonNull String getDigits(@NonNull String text) {
+    StringBuilder digits = new StringBuilder(text.length());
+
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c >= '0' && c <= '9') digits.append(c);
+    }
+
+    return digits.toString();
+  }
+
+  private static @NonNull String getSuffix(@NonNull String digits) {
+    return digits.length() <= MIN_MATCH_DIGITS ? digits : digits.substring(digits.length() - MIN_MATCH_DIGITS);
+  }
+
+  private static <K, V> void addToList(@NonNull Map<K, List<V>> map, K key, V value) {
+    List<V> list = map.get(key);
+
+    if (list == null) {
+      list = new LinkedList<>();
+      map.put(key, list);
+    }
+
+    list.add(value);
+  }
+
+  private static class IndexedTerm implements Comparable<IndexedTerm> {
+    private final @NonNull  String term;
+    private final           long   id;
+    private final @Nullable String address;
+
+    private IndexedTerm(@NonNull String term, long id, @Nullable String address) {
+      this.term    = term;
+      this.id      = id;
+      this.address = address;
+    }
+
+    @Override
+    public int compareTo(@NonNull IndexedTerm other) {
+      return term.compareTo(other.term);
+    }
+  }
+}
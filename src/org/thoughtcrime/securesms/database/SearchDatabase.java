@@ -0,0 +1,400 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterCipher;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.MmsSmsColumns.Types;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.util.VisibleForTesting;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A full-text index over message bodies.
+ *
+ * The index never stores plaintext: each word of a message is stored as a keyed hash
+ * of the word, along with keyed hashes of its first few characters so that it can be
+ * found by prefix.  The key is derived from the master secret, so the index can only
+ * be written and queried while it's available.
+ *
+ * Messages are indexed as they're written while the master secret is available, and
+ * otherwise by {@link #indexPending(MasterSecret)} once it is.  Since the hashes are
+ * truncated and only a few prefix lengths are indexed, search results are confirmed
+ * against the decrypted bodies before they're returned.
+ */
+public class SearchDatabase extends Database {
+
+  private static final String TAG = SearchDatabase.class.getSimpleName();
+
+  private static final String TABLE_NAME = "search_token";
+  private static final String TOKEN      = "token";
+  private static final String MESSAGE    = "message";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + TOKEN + " INTEGER, " + MESSAGE + " INTEGER);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE INDEX IF NOT EXISTS search_token_index ON " + TABLE_NAME + " (" + TOKEN + ");",
+    "CREATE INDEX IF NOT EXISTS search_token_message_index ON " + TABLE_NAME + " (" + MESSAGE + ");"
+  };
+
+  private static final int[] PREFIX_LENGTHS = {3, 6};
+  private static final int   BATCH_SIZE     = 100;
+
+  public SearchDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * @return The ids of the threads with the newest messages, up to the given number of
+   * messages, containing every word of a query.
+   */
+  public @NonNull Set<Long> searchThreads(@NonNull MasterSecret masterSecret, @NonNull String query, int limit) {
+    Set<Long> threadIds = new HashSet<>();
+
+    for (MessageRecord record : search(masterSecret, query, limit)) {
+      threadIds.add(record.getThreadId());
+    }
+
+    return threadIds;
+  }
+
+  /**
+   * Finds the messages containing every word of a query, newest first.  Query words
+   * shorter than three characters only match whole words, longer ones match prefixes.
+   */
+  public @NonNull List<MessageRecord> search(@NonNull MasterSecret masterSecret, @NonNull String query, int limit) {
+    List<MessageRecord> results = new LinkedList<>();
+    List<String>        terms   = getWords(query);
+
+    if (terms.isEmpty()) {
+      return results;
+    }
+
+    Tokenizer tokenizer = new Tokenizer(masterSecret);
+    Set<Long> tokens    = new HashSet<>();
+
+    for (String term : terms) {
+      tokens.add(tokenizer.getQueryToken(term));
+    }
+
+    String subquery = "SELECT " + MESSAGE + " AS " + MmsSmsColumns.PACKED_ROW_ID + " FROM " + TABLE_NAME +
+                      " WHERE " + TOKEN + " IN (" + TextUtils.join(",", tokens) + ")" +
+                      " GROUP BY " + MESSAGE + " HAVING COUNT(DISTINCT " + TOKEN + ") = " + tokens.size();
+
+    MmsSmsDatabase        database = DatabaseFactory.getMmsSmsDatabase(context);
+    MmsSmsDatabase.Reader reader   = database.readerFor(database.getMessagesForPackedRowIds(subquery), masterSecret);
+    MessageRecord         record;
+
+    try {
+      while (results.size() < limit && (record = reader.getNext()) != null) {
+        if (record.getBody().isPlaintext() && matches(record.getBody().getBody(), terms)) {
+          results.add(record);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    return results;
+  }
+
+  /**
+   * Indexes every message that hasn't been yet, a batch at a time.  Each batch is read
+   * and written in one transaction, so a body can't change between being read and
+   * being indexed.
+   */
+  public void indexPending(@NonNull MasterSecret masterSecret) {
+    Tokenizer    tokenizer    = new Tokenizer(masterSecret);
+    MasterCipher masterCipher = new MasterCipher(masterSecret);
+
+    indexPending(tokenizer, masterCipher, false);
+    indexPending(tokenizer, masterCipher, true);
+  }
+
+  private void indexPending(@NonNull Tokenizer tokenizer, @NonNull MasterCipher masterCipher, boolean mms) {
+    SQLiteDatabase db         = databaseHelper.getWritableDatabase();
+    String         table      = getMessageTable(mms);
+    String         typeColumn = mms ? MmsDatabase.MESSAGE_BOX : SmsDatabase.TYPE;
+    long           lastId     = -1;
+    int            total      = 0;
+    int            count;
+
+    do {
+      Cursor cursor = null;
+      count = 0;
+
+      db.beginTransaction();
+
+      try {
+        cursor = db.query(table, new String[] {MmsSmsColumns.ID, typeColumn, MmsSmsColumns.BODY},
+                          MmsSmsColumns.SEARCH_INDEXED + " = 0 AND " + MmsSmsColumns.ID + " > ?",
+                          new String[] {String.valueOf(lastId)},
+                          null, null, MmsSmsColumns.ID + " ASC", String.valueOf(BATCH_SIZE));
+
+        while (cursor.moveToNext()) {
+          lastId = cursor.getLong(0);
+          insertTokens(db, tokenizer, mms, lastId, getPlaintextBody(masterCipher, cursor.getLong(1), cursor.getString(2)));
+          count++;
+        }
+
+        db.setTransactionSuccessful();
+      } finally {
+        if (cursor != null)
+          cursor.close();
+
+        db.endTransaction();
+      }
+
+      total += count;
+    } while (count == BATCH_SIZE);
+
+    if (total > 0) {
+      Log.w(TAG, "Indexed " + total + " messages from " + table);
+    }
+  }
+
+  /**
+   * Indexes a message that was just written with a plaintext body.
+   */
+  /*package*/ void index(@NonNull MasterSecret masterSecret, boolean mms, long messageId, @Nullable String body) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      insertTokens(db, new Tokenizer(masterSecret), mms, messageId, body);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Drops a message from the index, and marks it to be indexed again if it still
+   * exists.  Must be called after the message's body is changed or it's deleted.
+   */
+  /*package*/ void remove(boolean mms, long messageId) {
+    SQLiteDatabase db     = databaseHelper.getWritableDatabase();
+    ContentValues  values = new ContentValues();
+    values.put(MmsSmsColumns.SEARCH_INDEXED, 0);
+
+    db.beginTransaction();
+
+    try {
+      db.delete(TABLE_NAME, MESSAGE + " = ?", new String[] {String.valueOf(MessageRecordCache.getKey(mms, messageId))});
+      db.update(getMessageTable(mms), values, ID_WHERE, new String[] {String.valueOf(messageId)});
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Drops the messages matching a selection from the index.  Must be called before
+   * they're deleted.
+   */
+  /*package*/ void removeWhere(boolean mms, @NonNull String selection, @Nullable String[] selectionArgs) {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, MESSAGE + " IN (SELECT (" + MmsSmsColumns.ID + " << 1) | " + (mms ? 1 : 0) +
+                                                            " FROM " + getMessageTable(mms) + " WHERE " + selection + ")",
+                                                selectionArgs);
+  }
+
+  /*package*/ void removeAll(boolean mms) {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, "(" + MESSAGE + " & 1) = " + (mms ? 1 : 0), null);
+  }
+
+  private void insertTokens(@NonNull SQLiteDatabase db, @NonNull Tokenizer tokenizer,
+                            boolean mms, long messageId, @Nullable String body)
+  {
+    long key = MessageRecordCache.getKey(mms, messageId);
+
+    db.delete(TABLE_NAME, MESSAGE + " = ?", new String[] {String.valueOf(key)});
+
+    if (!TextUtils.isEmpty(body)) {
+      SQLiteStatement statement = db.compileStatement("INSERT INTO " + TABLE_NAME + " (" + TOKEN + ", " + MESSAGE + ") VALUES (?, ?)");
+
+      try {
+        for (long token : tokenizer.getTokens(body)) {
+          statement.bindLong(1, token);
+          statement.bindLong(2, key);
+          statement.executeInsert();
+        }
+      } finally {
+        statement.close();
+      }
+    }
+
+    ContentValues values = new ContentValues();
+    values.put(MmsSmsColumns.SEARCH_INDEXED, 1);
+
+    db.update(getMessageTable(mms), values, ID_WHERE, new String[] {String.valueOf(messageId)});
+  }
+
+  /**
+   * @return The plaintext of a stored body, or null if it can't be read yet.  Bodies
+   * still encrypted with the asymmetric master secret are indexed once they've been
+   * decrypted and updated.
+   */
+  private @Nullable String getPlaintextBody(@NonNull MasterCipher masterCipher, long type, @Nullable String body) {
+    if (body == null || Types.isAsymmetricEncryption(type)) {
+      return null;
+    }
+
+    if (!Types.isSymmetricEncryption(type)) {
+      return body;
+    }
+
+    try {
+      return masterCipher.decryptBody(body);
+    } catch (InvalidMessageException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  private static @NonNull String getMessageTable(boolean mms) {
+    return mms ? MmsDatabase.TABLE_NAME : SmsDatabase.TABLE_NAME;
+  }
+
+  @VisibleForTesting
+  static boolean matches(@Nullable String body, @NonNull List<String> terms) {
+    if (body == null) return false;
+
+    List<String> words = getWords(body);
+
+    for (String term : terms) {
+      boolean prefix = getLength(term) >= PREFIX_LENGTHS[0];
+      boolean found  = false;
+
+      for (String word : words) {
+        if (prefix ? word.startsWith(term) : word.equals(term)) {
+          found = true;
+          break;
+        }
+      }
+
+      if (!found) return false;
+    }
+
+    return true;
+  }
+
+  @VisibleForTesting
+  static @NonNull List<String> getWords(@NonNull String text) {
+    List<String> words      = new LinkedList<>();
+    String       normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+
+    for (String word : normalized.split("[^\\p{L}\\p{N}]+")) {
+      if (!word.isEmpty()) {
+        words.add(word);
+      }
+    }
+
+    return words;
+  }
+
+  private static int getLength(@NonNull String word) {
+    return word.codePointCount(0, word.length());
+  }
+
+  private static @NonNull String getPrefix(@NonNull String word, int length) {
+    return word.substring(0, word.offsetByCodePoints(0, length));
+  }
+
+  @VisibleForTesting
+  static class Tokenizer {
+
+    private static final byte[] KEY_INFO = "TextSecure Search Index".getBytes();
+
+    private final Mac mac;
+
+    public Tokenizer(@NonNull MasterSecret masterSecret) {
+      try {
+        Mac keyMac = Mac.getInstance("HmacSHA256");
+        keyMac.init(new SecretKeySpec(masterSecret.getMacKey().getEncoded(), "HmacSHA256"));
+
+        this.mac = Mac.getInstance("HmacSHA256");
+        this.mac.init(new SecretKeySpec(keyMac.doFinal(KEY_INFO), "HmacSHA256"));
+      } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    public @NonNull Set<Long> getTokens(@NonNull String body) {
+      Set<Long> tokens = new HashSet<>();
+
+      for (String word : getWords(body)) {
+        int length = getLength(word);
+
+        tokens.add(getToken("w:", word));
+
+        for (int prefixLength : PREFIX_LENGTHS) {
+          if (length >= prefixLength) {
+            tokens.add(getToken("p:", getPrefix(word, prefixLength)));
+          }
+        }
+      }
+
+      return tokens;
+    }
+
+    public long getQueryToken(@NonNull String term) {
+      int length       = getLength(term);
+      int prefixLength = 0;
+
+      for (int candidate : PREFIX_LENGTHS) {
+        if (length >= candidate) prefixLength = candidate;
+      }
+
+      if (prefixLength == 0) return getToken("w:", term);
+      else                   return getToken("p:", getPrefix(term, prefixLength));
+    }
+
+    private long getToken(@NonNull String kind, @NonNull String value) {
+      byte[] digest = mac.doFinal((kind + value).getBytes());
+      long   token  = 0;
+
+      for (int i = 0; i < 8; i++) {
+        token = (token << 8) | (digest[i] & 0xff);
+      }
+
+      return token;
+    }
+  }
+}
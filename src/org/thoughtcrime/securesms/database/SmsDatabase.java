@@ -23,6 +23,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
@@ -46,8 +47,10 @@ import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.thoughtcrime.securesms.util.Util.canonicalizeNumber;
@@ -78,7 +81,8 @@ public class SmsDatabase extends MessagingDatabase {
     DATE_RECEIVED  + " INTEGER, " + DATE_SENT + " INTEGER, " + PROTOCOL + " INTEGER, " + READ + " INTEGER DEFAULT 0, " +
     STATUS + " INTEGER DEFAULT -1," + TYPE + " INTEGER, " + REPLY_PATH_PRESENT + " INTEGER, " +
     RECEIPT_COUNT + " INTEGER DEFAULT 0," + SUBJECT + " TEXT, " + BODY + " TEXT, " +
-    MISMATCHED_IDENTITIES + " TEXT DEFAULT NULL, " + SERVICE_CENTER + " TEXT);";
+    MISMATCHED_IDENTITIES + " TEXT DEFAULT NULL, " + SERVICE_CENTER + " TEXT, " +
+    SEARCH_INDEXED + " INTEGER DEFAULT 0);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS sms_thread_id_index ON " + TABLE_NAME + " (" + THREAD_ID + ");",
@@ -117,10 +121,11 @@ public class SmsDatabase extends MessagingDatabase {
     db.execSQL("UPDATE " + TABLE_NAME +
                " SET " + TYPE + " = (" + TYPE + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + " )" +
                " WHERE " + ID + " = ?", new String[] {id+""});
+    invalidateRecord(id);
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, id, false, false);
     notifyConversationListeners(threadId);
   }
 
@@ -243,9 +248,10 @@ public class SmsDatabase extends MessagingDatabase {
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {id+""});
+    invalidateRecord(id);
 
     long threadId = getThreadIdForMessage(id);
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, id, false, false);
     notifyConversationListeners(threadId);
   }
 
@@ -253,52 +259,82 @@ public class SmsDatabase extends MessagingDatabase {
     updateTypeBitmask(id, Types.BASE_TYPE_MASK, Types.BASE_SENT_FAILED_TYPE);
   }
 
-  public void incrementDeliveryReceiptCount(String address, long timestamp) {
-    SQLiteDatabase database     = databaseHelper.getWritableDatabase();
-    Cursor         cursor       = null;
-    boolean        foundMessage = false;
+  /**
+   * Applies a batch of delivery receipts, keyed by sent timestamp and then by canonical
+   * address, to the outgoing messages they match.  Receipts that don't match anything
+   * are held in the early receipt cache in case their message hasn't been stored yet.
+   *
+   * @return the ids of the updated messages, grouped by thread.
+   */
+  /*package*/ Map<Long, Set<Long>> incrementDeliveryReceiptCounts(Map<Long, Map<String, Integer>> receipts) {
+    SQLiteDatabase         database         = databaseHelper.getWritableDatabase();
+    Map<String, String>    canonicalNumbers = new HashMap<>();
+    Map<Long, Set<Long>>   updated          = new HashMap<>();
+    Map<Long, Set<String>> matched          = new HashMap<>();
+    Cursor                 cursor           = null;
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE},
-                              DATE_SENT + " = ?", new String[] {String.valueOf(timestamp)},
-                              null, null, null, null);
+      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE, DATE_SENT},
+                              DATE_SENT + " IN (" + TextUtils.join(",", receipts.keySet()) + ")",
+                              null, null, null, null, null);
 
       while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
-          try {
-            String theirAddress = canonicalizeNumber(context, address);
-            String ourAddress   = canonicalizeNumber(context, cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
-
-            if (ourAddress.equals(theirAddress)) {
-              long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-
-              database.execSQL("UPDATE " + TABLE_NAME +
-                               " SET " + RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " +
-                               ID + " = ?",
-                               new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
-
-              DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-              notifyConversationListeners(threadId);
-              foundMessage = true;
-            }
-          } catch (InvalidNumberException e) {
-            Log.w(TAG, e);
-          }
+        if (!Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
+          continue;
         }
-      }
 
-      if (!foundMessage) {
-        try {
-          earlyReceiptCache.increment(timestamp, canonicalizeNumber(context, address));
-        } catch (InvalidNumberException e) {
-          Log.w(TAG, e);
+        long                 timestamp  = cursor.getLong(cursor.getColumnIndexOrThrow(DATE_SENT));
+        Map<String, Integer> addresses  = receipts.get(timestamp);
+        String               ourAddress = getCanonicalNumber(canonicalNumbers, cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+        Integer              count      = ourAddress != null ? addresses.get(ourAddress) : null;
+
+        if (count != null) {
+          long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+          long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+
+          database.execSQL("UPDATE " + TABLE_NAME +
+                           " SET " + RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + ? WHERE " +
+                           ID + " = ?",
+                           new Object[] {count, id});
+          invalidateRecord(id);
+
+          addToSet(updated, threadId, id);
+          addToSet(matched, timestamp, ourAddress);
         }
       }
-
     } finally {
       if (cursor != null)
         cursor.close();
     }
+
+    for (Map.Entry<Long, Map<String, Integer>> receipt : receipts.entrySet()) {
+      Set<String> matchedAddresses = matched.get(receipt.getKey());
+
+      for (Map.Entry<String, Integer> address : receipt.getValue().entrySet()) {
+        if (matchedAddresses == null || !matchedAddresses.contains(address.getKey())) {
+          earlyReceiptCache.increment(receipt.getKey(), address.getKey(), address.getValue());
+        }
+      }
+    }
+
+    return updated;
+  }
+
+  private @Nullable String getCanonicalNumber(Map<String, String> canonicalNumbers, String number) {
+    if (canonicalNumbers.containsKey(number)) {
+      return canonicalNumbers.get(number);
+    }
+
+    String canonicalNumber = null;
+
+    try {
+      canonicalNumber = canonicalizeNumber(context, number);
+    } catch (InvalidNumberException e) {
+      Log.w(TAG, e);
+    }
+
+    canonicalNumbers.put(number, canonicalNumber);
+    return canonicalNumber;
   }
 
   public void setMessagesRead(long threadId) {
@@ -325,10 +361,12 @@ public class SmsDatabase extends MessagingDatabase {
                    TYPE + " = (" + TYPE + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + ") " +
                    "WHERE " + ID + " = ?",
                new String[] {body, messageId + ""});
+    invalidateRecord(messageId);
+    removeFromSearchIndex(messageId);
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, messageId, false, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -353,7 +391,7 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db           = databaseHelper.getWritableDatabase();
     long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
 
-    DatabaseFactory.getThreadDatabase(context).update(record.getThreadId(), true);
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(record.getThreadId(), newMessageId, false, true);
     notifyConversationListeners(record.getThreadId());
 
     jobManager.add(new TrimThreadJob(context, record.getThreadId()));
@@ -390,7 +428,7 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long messageId    = db.insert(TABLE_NAME, null, values);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, messageId, false, true);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -468,7 +506,7 @@ public class SmsDatabase extends MessagingDatabase {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, messageId, false, true);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -507,16 +545,20 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db        = databaseHelper.getWritableDatabase();
     long           messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, messageId, false, true);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
     return messageId;
   }
 
-  Cursor getMessages(int skip, int limit) {
+  /**
+   * @return Up to limit messages with ids greater than messageId, in id order.
+   */
+  /*package*/ Cursor getMessagesAfter(long messageId, int limit) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, null, null, null, null, ID, skip + "," + limit);
+    return db.query(TABLE_NAME, MESSAGE_PROJECTION, ID + " > ?", new String[] {String.valueOf(messageId)},
+                    null, null, ID + " ASC", String.valueOf(limit));
   }
 
   Cursor getOutgoingMessages() {
@@ -552,14 +594,18 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long threadId     = getThreadIdForMessage(messageId);
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    invalidateRecord(messageId);
+    removeFromSearchIndex(messageId);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, messageId, false);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
 
   /*package */void deleteThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    DatabaseFactory.getSearchDatabase(context).removeWhere(false, THREAD_ID + " = ?", new String[] {threadId+""});
     db.delete(TABLE_NAME, THREAD_ID + " = ?", new String[] {threadId+""});
+    invalidateRecords(threadId);
   }
 
   /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
@@ -572,7 +618,9 @@ public class SmsDatabase extends MessagingDatabase {
 
     where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
 
+    DatabaseFactory.getSearchDatabase(context).removeWhere(false, where, new String[] {threadId + ""});
     db.delete(TABLE_NAME, where, new String[] {threadId + ""});
+    invalidateRecords(threadId);
   }
 
   /*package*/ void deleteThreads(Set<Long> threadIds) {
@@ -585,12 +633,19 @@ public class SmsDatabase extends MessagingDatabase {
 
     where = where.substring(0, where.length() - 4);
 
+    DatabaseFactory.getSearchDatabase(context).removeWhere(false, where, null);
     db.delete(TABLE_NAME, where, null);
+
+    for (long threadId : threadIds) {
+      invalidateRecords(threadId);
+    }
   }
 
   /*package */ void deleteAllThreads() {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, null, null);
+    DatabaseFactory.getMessageRecordCache(context).clear();
+    DatabaseFactory.getSearchDatabase(context).removeAll(false);
   }
 
   /*package*/ SQLiteDatabase beginTransaction() {
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.text.TextUtils;
@@ -24,9 +25,10 @@ public class TextSecureDirectory {
 
   private static final int INTRODUCED_CHANGE_FROM_TOKEN_TO_E164_NUMBER = 2;
   private static final int INTRODUCED_VOICE_COLUMN                     = 4;
+  private static final int INTRODUCED_CONTACT_SNAPSHOT                 = 5;
 
   private static final String DATABASE_NAME    = "whisper_directory.db";
-  private static final int    DATABASE_VERSION = 4;
+  private static final int    DATABASE_VERSION = 5;
 
   private static final String TABLE_NAME   = "directory";
   private static final String ID           = "_id";
@@ -43,6 +45,10 @@ public class TextSecureDirectory {
                               TIMESTAMP    + " INTEGER, " +
                               VOICE        + " INTEGER);";
 
+  private static final String SNAPSHOT_TABLE_NAME   = "contact_snapshot";
+  private static final String CREATE_SNAPSHOT_TABLE = "CREATE TABLE " + SNAPSHOT_TABLE_NAME + "(" + ID + " INTEGER PRIMARY KEY, " +
+                                                      NUMBER + " TEXT UNIQUE);";
+
   private static final Object instanceLock = new Object();
   private static volatile TextSecureDirectory instance;
 
@@ -175,7 +181,26 @@ public class TextSecureDirectory {
     }
   }
 
-  public Set<String> getPushEligibleContactNumbers(String localNumber) {
+  public Set<String> getPushEligibleContactNumbers(Set<String> contactNumbers) {
+    final Set<String> results = new HashSet<>(contactNumbers);
+          Cursor      cursor  = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[]{NUMBER},
+                                                          null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getString(0));
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  public Set<String> getSystemContactNumbers(String localNumber) {
     final Uri         uri     = Phone.CONTENT_URI;
     final Set<String> results = new HashSet<>();
           Cursor      cursor  = null;
@@ -195,17 +220,26 @@ public class TextSecureDirectory {
         }
       }
 
+      return results;
+    } finally {
       if (cursor != null)
         cursor.close();
+    }
+  }
 
-      final SQLiteDatabase readableDb = databaseHelper.getReadableDatabase();
-      if (readableDb != null) {
-        cursor = readableDb.query(TABLE_NAME, new String[]{NUMBER},
-            null, null, null, null, null);
+  /**
+   * @return The system contact numbers as of the last directory refresh.
+   */
+  public Set<String> getContactSnapshot() {
+    final Set<String> results = new HashSet<>();
+          Cursor      cursor  = null;
 
-        while (cursor != null && cursor.moveToNext()) {
-          results.add(cursor.getString(0));
-        }
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(SNAPSHOT_TABLE_NAME, new String[]{NUMBER},
+                                                          null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getString(0));
       }
 
       return results;
@@ -215,6 +249,49 @@ public class TextSecureDirectory {
     }
   }
 
+  public void setContactSnapshot(Collection<String> numbers) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      db.delete(SNAPSHOT_TABLE_NAME, null, null);
+      insertSnapshotNumbers(db, numbers);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  public void updateContactSnapshot(Collection<String> addedNumbers, Collection<String> removedNumbers) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      for (String number : removedNumbers) {
+        db.delete(SNAPSHOT_TABLE_NAME, NUMBER + " = ?", new String[] {number});
+      }
+
+      insertSnapshotNumbers(db, addedNumbers);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private void insertSnapshotNumbers(SQLiteDatabase db, Collection<String> numbers) {
+    SQLiteStatement statement = db.compileStatement("INSERT OR IGNORE INTO " + SNAPSHOT_TABLE_NAME +
+                                                    " (" + NUMBER + ") VALUES (?)");
+
+    try {
+      for (String number : numbers) {
+        statement.bindString(1, number);
+        statement.execute();
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
   public List<String> getActiveNumbers() {
     final List<String> results = new ArrayList<>();
     Cursor cursor = null;
@@ -244,6 +321,7 @@ public class TextSecureDirectory {
     @Override
     public void onCreate(SQLiteDatabase db) {
       db.execSQL(CREATE_TABLE);
+      db.execSQL(CREATE_SNAPSHOT_TABLE);
     }
 
     @Override
@@ -261,6 +339,10 @@ public class TextSecureDirectory {
       if (oldVersion < INTRODUCED_VOICE_COLUMN) {
         db.execSQL("ALTER TABLE directory ADD COLUMN voice INTEGER;");
       }
+
+      if (oldVersion < INTRODUCED_CONTACT_SNAPSHOT) {
+        db.execSQL("CREATE TABLE contact_snapshot (_id INTEGER PRIMARY KEY, number TEXT UNIQUE);");
+      }
     }
   }
 
@@ -19,10 +19,10 @@ package org.thoughtcrime.securesms.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
@@ -38,12 +38,11 @@ import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
-import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
@@ -66,6 +65,8 @@ public class ThreadDatabase extends Database {
   public  static final String ARCHIVED        = "archived";
   public  static final String STATUS          = "status";
   public  static final String RECEIPT_COUNT   = "delivery_receipt_count";
+  private static final String SNIPPET_ID      = "snippet_message_id";
+  private static final String SNIPPET_MMS     = "snippet_mms";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("                    +
     ID + " INTEGER PRIMARY KEY, " + DATE + " INTEGER DEFAULT 0, "                                  +
@@ -74,7 +75,8 @@ public class ThreadDatabase extends Database {
     TYPE + " INTEGER DEFAULT 0, " + ERROR + " INTEGER DEFAULT 0, "                                 +
     SNIPPET_TYPE + " INTEGER DEFAULT 0, " + SNIPPET_URI + " TEXT DEFAULT NULL, "                   +
     ARCHIVED + " INTEGER DEFAULT 0, " + STATUS + " INTEGER DEFAULT 0, "                            +
-    RECEIPT_COUNT + " INTEGER DEFAULT 0);";
+    RECEIPT_COUNT + " INTEGER DEFAULT 0, " + SNIPPET_ID + " INTEGER DEFAULT -1, "                 +
+    SNIPPET_MMS + " INTEGER DEFAULT 0);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + RECIPIENT_IDS + ");",
@@ -131,25 +133,34 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
-  private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
-                            long date, int status, int receiptCount, long type, boolean unarchive)
-  {
-    ContentValues contentValues = new ContentValues(7);
-    contentValues.put(DATE, date - date % 1000);
+  private void updateThread(long threadId, long count, MessageRecord record, boolean unarchive) {
+    ContentValues contentValues = getSnippetValues(record, unarchive);
     contentValues.put(MESSAGE_COUNT, count);
-    contentValues.put(SNIPPET, body);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
+    notifyConversationListListeners();
+  }
+
+  private ContentValues getSnippetValues(MessageRecord record, boolean unarchive) {
+    Uri           attachment    = getAttachmentUriFor(record);
+    long          date          = record.getTimestamp();
+    ContentValues contentValues = new ContentValues(9);
+
+    contentValues.put(DATE, date - date % 1000);
+    contentValues.put(SNIPPET, record.getBody().getBody());
     contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
-    contentValues.put(SNIPPET_TYPE, type);
-    contentValues.put(STATUS, status);
-    contentValues.put(RECEIPT_COUNT, receiptCount);
+    contentValues.put(SNIPPET_TYPE, record.getType());
+    contentValues.put(STATUS, record.getDeliveryStatus());
+    contentValues.put(RECEIPT_COUNT, record.getReceiptCount());
+    contentValues.put(SNIPPET_ID, record.getId());
+    contentValues.put(SNIPPET_MMS, record.isMms() ? 1 : 0);
 
     if (unarchive) {
       contentValues.put(ARCHIVED, 0);
     }
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
-    notifyConversationListListeners();
+    return contentValues;
   }
 
   public void updateSnippet(long threadId, String snippet, @Nullable Uri attachment, long date, long type, boolean unarchive) {
@@ -159,6 +170,7 @@ public class ThreadDatabase extends Database {
     contentValues.put(SNIPPET, snippet);
     contentValues.put(SNIPPET_TYPE, type);
     contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
+    contentValues.put(SNIPPET_ID, -1);
 
     if (unarchive) {
       contentValues.put(ARCHIVED, 0);
@@ -287,35 +299,29 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
-  public Cursor getFilteredConversationList(List<String> filter) {
-    if (filter == null || filter.size() == 0)
-      return null;
-
-    List<Long> rawRecipientIds = DatabaseFactory.getAddressDatabase(context).getCanonicalAddressIds(filter);
-
-    if (rawRecipientIds == null || rawRecipientIds.size() == 0)
+  /**
+   * @return The threads whose recipient is one of the given canonical address ids, or
+   * whose id is one of the given thread ids.
+   */
+  public @Nullable Cursor getFilteredConversationList(@NonNull Collection<Long> recipientIds,
+                                                      @NonNull Collection<Long> threadIds)
+  {
+    if (recipientIds.isEmpty() && threadIds.isEmpty())
       return null;
 
-    SQLiteDatabase   db                      = databaseHelper.getReadableDatabase();
-    List<List<Long>> partitionedRecipientIds = Util.partition(rawRecipientIds, 900);
-    List<Cursor>     cursors                 = new LinkedList<>();
-
-    for (List<Long> recipientIds : partitionedRecipientIds) {
-      String   selection      = RECIPIENT_IDS + " = ?";
-      String[] selectionArgs  = new String[recipientIds.size()];
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    StringBuilder  selection = new StringBuilder(RECIPIENT_IDS + " IN (");
+    boolean        first     = true;
 
-      for (int i=0;i<recipientIds.size()-1;i++)
-        selection += (" OR " + RECIPIENT_IDS + " = ?");
-
-      int i= 0;
-      for (long id : recipientIds) {
-        selectionArgs[i++] = String.valueOf(id);
-      }
-
-      cursors.add(db.query(TABLE_NAME, null, selection, selectionArgs, null, null, DATE + " DESC"));
+    for (long recipientId : recipientIds) {
+      if (!first) selection.append(',');
+      selection.append('\'').append(recipientId).append('\'');
+      first = false;
     }
 
-    Cursor cursor = cursors.size() > 1 ? new MergeCursor(cursors.toArray(new Cursor[cursors.size()])) : cursors.get(0);
+    selection.append(") OR ").append(ID).append(" IN (").append(TextUtils.join(",", threadIds)).append(')');
+
+    Cursor cursor = db.query(TABLE_NAME, null, selection.toString(), null, null, null, DATE + " DESC");
     setNotifyConverationListListeners(cursor);
     return cursor;
   }
@@ -475,16 +481,148 @@ public class ThreadDatabase extends Database {
       return true;
     }
 
-    MmsSmsDatabase.Reader reader = null;
+    return refreshSnippet(threadId, count, unarchive);
+  }
+
+  /**
+   * Applies a newly inserted message to its thread's summary.  New messages are
+   * always the most recent in their thread, so this bumps the count and takes the
+   * message as the snippet without recounting or re-querying the conversation.
+   * The count is read and written back in one transaction, so that concurrent
+   * inserts and deletes can't lose an update.
+   */
+  /*package*/ void updateForInsert(long threadId, long messageId, boolean mms, boolean unarchive) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      applyInsert(threadId, messageId, mms, unarchive);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private void applyInsert(long threadId, long messageId, boolean mms, boolean unarchive) {
+    ThreadSummary summary = getThreadSummary(threadId);
+    MessageRecord record  = getMessageRecord(messageId, mms);
+
+    if (summary == null || summary.snippetId == -1 || record == null) {
+      update(threadId, unarchive);
+      return;
+    }
+
+    ContentValues contentValues = getSnippetValues(record, unarchive);
+    contentValues.put(MESSAGE_COUNT, summary.count + 1);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId + ""});
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Applies a change to an existing message (its type, status, body or receipt count)
+   * to its thread's summary.  Only the snippet reflects a single message, so changes
+   * to any other message in the thread leave the summary untouched.
+   */
+  /*package*/ void updateForChange(long threadId, long messageId, boolean mms, boolean unarchive) {
+    ThreadSummary summary = getThreadSummary(threadId);
+
+    if (summary == null || summary.snippetId == -1) {
+      update(threadId, unarchive);
+      return;
+    }
+
+    if (!summary.isSnippet(messageId, mms)) {
+      if (unarchive) unarchiveConversation(threadId);
+      return;
+    }
+
+    MessageRecord record = getMessageRecord(messageId, mms);
+
+    if (record == null) {
+      update(threadId, unarchive);
+      return;
+    }
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, getSnippetValues(record, unarchive), ID_WHERE, new String[] {threadId + ""});
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Applies changes to several messages in one thread at once, refreshing the
+   * snippet only if it's among them.
+   */
+  /*package*/ void updateForChanges(long threadId, Set<Long> smsIds, Set<Long> mmsIds) {
+    ThreadSummary summary = getThreadSummary(threadId);
+
+    if (summary == null || summary.snippetId == -1) {
+      update(threadId, false);
+      return;
+    }
+
+    if ((summary.snippetMms ? mmsIds : smsIds).contains(summary.snippetId)) {
+      updateForChange(threadId, summary.snippetId, summary.snippetMms, false);
+    }
+  }
+
+  /**
+   * Applies a deleted message to its thread's summary, only looking for a new
+   * snippet if the deleted message was the current one.  As with inserts, the
+   * count is adjusted in one transaction.
+   *
+   * @return true if the thread was deleted because it has no messages left.
+   */
+  /*package*/ boolean updateForDelete(long threadId, long messageId, boolean mms) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      boolean deleted = applyDelete(threadId, messageId, mms);
+      db.setTransactionSuccessful();
+      return deleted;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private boolean applyDelete(long threadId, long messageId, boolean mms) {
+    ThreadSummary summary = getThreadSummary(threadId);
+
+    if (summary == null || summary.snippetId == -1) {
+      return update(threadId, false);
+    }
+
+    long count = summary.count - 1;
+
+    if (count <= 0) {
+      return update(threadId, false);
+    }
+
+    if (summary.isSnippet(messageId, mms)) {
+      return refreshSnippet(threadId, count, false);
+    }
+
+    ContentValues contentValues = new ContentValues(1);
+    contentValues.put(MESSAGE_COUNT, count);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId + ""});
+    notifyConversationListListeners();
+    return false;
+  }
+
+  private boolean refreshSnippet(long threadId, long count, boolean unarchive) {
+    MmsSmsDatabase        mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
+    MmsSmsDatabase.Reader reader         = null;
 
     try {
       reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId));
       MessageRecord record;
 
       if (reader != null && (record = reader.getNext()) != null) {
-        updateThread(threadId, count, record.getBody().getBody(), getAttachmentUriFor(record),
-                     record.getTimestamp(), record.getDeliveryStatus(), record.getReceiptCount(),
-                     record.getType(), unarchive);
+        updateThread(threadId, count, record, unarchive);
         notifyConversationListListeners();
         return false;
       } else {
@@ -498,6 +636,49 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  private @Nullable ThreadSummary getThreadSummary(long threadId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT, SNIPPET_ID, SNIPPET_MMS},
+                        ID_WHERE, new String[] {threadId + ""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return new ThreadSummary(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_COUNT)),
+                                 cursor.getLong(cursor.getColumnIndexOrThrow(SNIPPET_ID)),
+                                 cursor.getInt(cursor.getColumnIndexOrThrow(SNIPPET_MMS)) == 1);
+      }
+
+      return null;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private @Nullable MessageRecord getMessageRecord(long messageId, boolean mms) {
+    if (mms) {
+      MmsDatabase        database = DatabaseFactory.getMmsDatabase(context);
+      MmsDatabase.Reader reader   = database.readerFor(null, database.getMessage(messageId));
+
+      try {
+        return reader.getNext();
+      } finally {
+        reader.close();
+      }
+    } else {
+      SmsDatabase        database = DatabaseFactory.getSmsDatabase(context);
+      SmsDatabase.Reader reader   = database.readerFor(database.getMessage(messageId));
+
+      try {
+        return reader.getNext();
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
   private @Nullable Uri getAttachmentUriFor(MessageRecord record) {
     if (!record.isMms() || record.isMmsNotification() || record.isGroupAction()) return null;
 
@@ -507,6 +688,22 @@ public class ThreadDatabase extends Database {
     return thumbnail != null ? thumbnail.getThumbnailUri() : null;
   }
 
+  private static class ThreadSummary {
+    private final long    count;
+    private final long    snippetId;
+    private final boolean snippetMms;
+
+    private ThreadSummary(long count, long snippetId, boolean snippetMms) {
+      this.count      = count;
+      this.snippetId  = snippetId;
+      this.snippetMms = snippetMms;
+    }
+
+    private boolean isSnippet(long messageId, boolean mms) {
+      return snippetId == messageId && snippetMms == mms;
+    }
+  }
+
   public static interface ProgressListener {
     public void onProgress(int complete, int total);
   }
@@ -515,6 +712,10 @@ public class ThreadDatabase extends Database {
     return new Reader(cursor, masterCipher);
   }
 
+  public Reader readerFor(Cursor cursor, MasterCipher masterCipher, @Nullable BodyPrefetcher prefetcher) {
+    return new Reader(cursor, masterCipher, prefetcher);
+  }
+
   public static class DistributionTypes {
     public static final int DEFAULT      = 2;
     public static final int BROADCAST    = 1;
@@ -524,12 +725,18 @@ public class ThreadDatabase extends Database {
 
   public class Reader {
 
-    private final Cursor       cursor;
-    private final MasterCipher masterCipher;
+    private final Cursor                   cursor;
+    private final MasterCipher             masterCipher;
+    private final @Nullable BodyPrefetcher prefetcher;
 
     public Reader(Cursor cursor, MasterCipher masterCipher) {
+      this(cursor, masterCipher, null);
+    }
+
+    public Reader(Cursor cursor, MasterCipher masterCipher, @Nullable BodyPrefetcher prefetcher) {
       this.cursor       = cursor;
       this.masterCipher = masterCipher;
+      this.prefetcher   = masterCipher != null ? prefetcher : null;
     }
 
     public ThreadRecord getNext() {
@@ -555,6 +762,10 @@ public class ThreadDatabase extends Database {
       int receiptCount        = cursor.getInt(cursor.getColumnIndexOrThrow(ThreadDatabase.RECEIPT_COUNT));
       Uri snippetUri          = getSnippetUri(cursor);
 
+      if (prefetcher != null) {
+        prefetcher.prefetch(cursor);
+      }
+
       return new ThreadRecord(context, body, snippetUri, recipients, date, count, read == 1,
                               threadId, receiptCount, status, type, distributionType, archived);
     }
@@ -564,7 +775,9 @@ public class ThreadDatabase extends Database {
         long type   = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_TYPE));
         String body = cursor.getString(cursor.getColumnIndexOrThrow(SNIPPET));
 
-        if (!TextUtils.isEmpty(body) && masterCipher != null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
+        if (!TextUtils.isEmpty(body) && prefetcher != null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
+          return new DisplayRecord.Body(prefetcher.decryptBody(body), true);
+        } else if (!TextUtils.isEmpty(body) && masterCipher != null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
           return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
         } else if (!TextUtils.isEmpty(body) && masterCipher == null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
           return new DisplayRecord.Body(body, false);
@@ -1,7 +1,5 @@
 package org.thoughtcrime.securesms.database;
 
-import android.text.TextUtils;
-
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
@@ -11,11 +9,13 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class XmlBackup {
 
+  public interface ProgressListener {
+    public void onProgress(int complete, int total);
+  }
+
   private static final String PROTOCOL       = "protocol";
   private static final String ADDRESS        = "address";
   private static final String DATE           = "date";
@@ -28,9 +28,12 @@ public class XmlBackup {
   private static final String TOA            = "toa";
   private static final String SC_TOA         = "sc_toa";
   private static final String LOCKED         = "locked";
+  private static final String COUNT          = "count";
 
   private final XmlPullParser parser;
 
+  private int count = -1;
+
   public XmlBackup(String path) throws XmlPullParserException, FileNotFoundException {
     this.parser = XmlPullParserFactory.newInstance().newPullParser();
     parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
@@ -45,6 +48,11 @@ public class XmlBackup {
 
       String name = parser.getName();
 
+      if (name.equalsIgnoreCase("smses")) {
+        count = getCountAttribute();
+        continue;
+      }
+
       if (!name.equalsIgnoreCase("sms")) {
         continue;
       }
@@ -77,6 +85,28 @@ public class XmlBackup {
     return null;
   }
 
+  /**
+   * @return The number of messages the backup says it contains, or -1 if that isn't
+   * known (yet).
+   */
+  public int getCount() {
+    return count;
+  }
+
+  private int getCountAttribute() {
+    for (int i = 0; i < parser.getAttributeCount(); i++) {
+      if (parser.getAttributeName(i).equals(COUNT)) {
+        try {
+          return Integer.parseInt(parser.getAttributeValue(i));
+        } catch (NumberFormatException e) {
+          return -1;
+        }
+      }
+    }
+
+    return -1;
+  }
+
   public static class XmlBackupItem {
     private int    protocol;
     private String address;
@@ -152,8 +182,6 @@ public class XmlBackup {
     private static final String  OPEN_ATTRIBUTE  = "=\"";
     private static final String  CLOSE_ATTRIBUTE = "\" ";
 
-    private static final Pattern PATTERN         = Pattern.compile("[^\u0020-\uD7FF]");
-
     private final BufferedWriter bufferedWriter;
 
     public Writer(String path, int count) throws IOException {
@@ -168,14 +196,28 @@ public class XmlBackup {
 
     public void writeItem(XmlBackupItem item) throws IOException {
       StringBuilder stringBuilder = new StringBuilder();
+      appendItem(stringBuilder, item);
+
+      writeItems(stringBuilder);
+    }
+
+    /**
+     * Writes items already encoded by {@link #appendItem(StringBuilder, XmlBackupItem)}, so
+     * that they can be encoded on other threads.
+     */
+    public void writeItems(CharSequence encodedItems) throws IOException {
+      bufferedWriter.append(encodedItems);
+    }
 
+    public static void appendItem(StringBuilder stringBuilder, XmlBackupItem item) {
+      stringBuilder.append('\n');
       stringBuilder.append(OPEN_TAG_SMS);
       appendAttribute(stringBuilder, PROTOCOL, item.getProtocol());
-      appendAttribute(stringBuilder, ADDRESS, escapeXML(item.getAddress()));
+      appendEscapedAttribute(stringBuilder, ADDRESS, item.getAddress());
       appendAttribute(stringBuilder, DATE, item.getDate());
       appendAttribute(stringBuilder, TYPE, item.getType());
-      appendAttribute(stringBuilder, SUBJECT, escapeXML(item.getSubject()));
-      appendAttribute(stringBuilder, BODY, escapeXML(item.getBody()));
+      appendEscapedAttribute(stringBuilder, SUBJECT, item.getSubject());
+      appendEscapedAttribute(stringBuilder, BODY, item.getBody());
       appendAttribute(stringBuilder, TOA, "null");
       appendAttribute(stringBuilder, SC_TOA, "null");
       appendAttribute(stringBuilder, SERVICE_CENTER, item.getServiceCenter());
@@ -183,40 +225,48 @@ public class XmlBackup {
       appendAttribute(stringBuilder, STATUS, item.getStatus());
       appendAttribute(stringBuilder, LOCKED, 0);
       stringBuilder.append(CLOSE_EMPTYTAG);
-
-      bufferedWriter.newLine();
-      bufferedWriter.write(stringBuilder.toString());
     }
 
-    private <T> void appendAttribute(StringBuilder stringBuilder, String name, T value) {
+    private static <T> void appendAttribute(StringBuilder stringBuilder, String name, T value) {
       stringBuilder.append(name).append(OPEN_ATTRIBUTE).append(value).append(CLOSE_ATTRIBUTE);
     }
 
+    private static void appendEscapedAttribute(StringBuilder stringBuilder, String name, String value) {
+      stringBuilder.append(name).append(OPEN_ATTRIBUTE);
+      appendEscaped(stringBuilder, value);
+      stringBuilder.append(CLOSE_ATTRIBUTE);
+    }
+
     public void close() throws IOException {
       bufferedWriter.newLine();
       bufferedWriter.write(CLOSE_TAG_SMSES);
       bufferedWriter.close();
     }
 
-    private String escapeXML(String s) {
-      if (TextUtils.isEmpty(s)) return s;
-
-      Matcher matcher = PATTERN.matcher( s.replace("&",  "&amp;")
-                                          .replace("<",  "&lt;")
-                                          .replace(">",  "&gt;")
-                                          .replace("\"", "&quot;")
-                                          .replace("'",  "&apos;"));
-      StringBuffer st = new StringBuffer();
+    /**
+     * Escapes markup characters, along with any character outside of U+0020 to U+D7FF
+     * as a numeric reference, one UTF-16 unit at a time.
+     */
+    /*package*/ static void appendEscaped(StringBuilder stringBuilder, String value) {
+      if (value == null) {
+        stringBuilder.append("null");
+        return;
+      }
 
-      while (matcher.find()) {
-        String escaped="";
-        for (char ch: matcher.group(0).toCharArray()) {
-          escaped += ("&#" + ((int) ch) + ";");
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+
+        switch (c) {
+          case '&':  stringBuilder.append("&amp;");  break;
+          case '<':  stringBuilder.append("&lt;");   break;
+          case '>':  stringBuilder.append("&gt;");   break;
+          case '"':  stringBuilder.append("&quot;"); break;
+          case '\'': stringBuilder.append("&apos;"); break;
+          default:
+            if (c < '\u0020' || c > '\uD7FF') stringBuilder.append("&#").append((int)c).append(';');
+            else                              stringBuilder.append(c);
         }
-        matcher.appendReplacement(st, escaped);
       }
-      matcher.appendTail(st);
-      return st.toString();
     }
 
   }
@@ -4,24 +4,31 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.MergeCursor;
+import android.support.annotation.Nullable;
 
-import org.thoughtcrime.securesms.contacts.ContactAccessor;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 public class ConversationListLoader extends AbstractCursorLoader {
 
-  private final String filter;
-  private final boolean archived;
+  private static final int MAX_SEARCH_MESSAGES = 500;
 
-  public ConversationListLoader(Context context, String filter, boolean archived) {
+  private final @Nullable MasterSecret masterSecret;
+  private final           String       filter;
+  private final           boolean      archived;
+
+  public ConversationListLoader(Context context, @Nullable MasterSecret masterSecret, String filter, boolean archived) {
     super(context);
-    this.filter   = filter;
-    this.archived = archived;
+    this.masterSecret = masterSecret;
+    this.filter       = filter;
+    this.archived     = archived;
   }
 
   @Override
@@ -60,7 +67,11 @@ public class ConversationListLoader extends AbstractCursorLoader {
   }
 
   private Cursor getFilteredConversationList(String filter) {
-    List<String> numbers = ContactAccessor.getInstance().getNumbersForThreadSearchFilter(context, filter);
-    return DatabaseFactory.getThreadDatabase(context).getFilteredConversationList(numbers);
+    Set<Long> recipientIds = DatabaseFactory.getRecipientSearchIndex(context).search(filter);
+    Set<Long> threadIds    = masterSecret != null
+                             ? DatabaseFactory.getSearchDatabase(context).searchThreads(masterSecret, filter, MAX_SEARCH_MESSAGES)
+                             : Collections.<Long>emptySet();
+
+    return DatabaseFactory.getThreadDatabase(context).getFilteredConversationList(recipientIds, threadIds);
   }
 }
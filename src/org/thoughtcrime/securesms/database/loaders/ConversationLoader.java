@@ -2,26 +2,148 @@ package org.thoughtcrime.securesms.database.loaders;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessageRecordCache;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.ConversationPosition;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
 
+import java.util.List;
+
+/**
+ * Loads a sliding window of at most {@link #MAX_PAGES} pages of a conversation.
+ *
+ * The window is anchored at the newest message until older pages push it past its
+ * limit, after which it's anchored at the newest message it still holds and the
+ * newest page is dropped.  Every (re)load seeks to the anchor by position, so the
+ * cost of a load depends on the size of the window rather than on how far back in
+ * the conversation it is.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
+
+  public static final int PAGE_SIZE = 100;
+  public static final int MAX_PAGES = 5;
+
   private final long threadId;
-  private       long limit;
 
-  public ConversationLoader(Context context, long threadId, long limit) {
+  private @Nullable ConversationPosition newest;
+  private @Nullable ConversationPosition secondPage;
+  private           int                  pageCount;
+  private           int                  pendingShift;
+  private           int                  positionShift;
+  private           boolean              loadNewerPending;
+  private           boolean              windowChanging;
+
+  public ConversationLoader(Context context, long threadId) {
     super(context);
-    this.threadId = threadId;
-    this.limit  = limit;
+    this.threadId  = threadId;
+    this.pageCount = 1;
+  }
+
+  /**
+   * @return true if the window may not reach the oldest message in the thread.
+   */
+  public synchronized boolean hasOlder() {
+    return cursor != null && cursor.getCount() >= pageCount * PAGE_SIZE;
+  }
+
+  /**
+   * @return true if the window doesn't reach the newest message in the thread.
+   */
+  public synchronized boolean hasNewer() {
+    return newest != null;
   }
 
-  public boolean hasLimit() {
-    return limit > 0;
+  /**
+   * How far the messages that were in the previous window moved in the most recent
+   * one, so that a caller can keep its scroll position.
+   */
+  public synchronized int getPositionShift() {
+    return positionShift;
+  }
+
+  public synchronized void loadOlder() {
+    if (windowChanging || !hasOlder()) return;
+
+    if (pageCount < MAX_PAGES) {
+      pageCount++;
+    } else if (secondPage != null) {
+      newest       = secondPage;
+      pendingShift = -PAGE_SIZE;
+    }
+
+    windowChanging = true;
+    forceLoad();
+  }
+
+  public synchronized void loadNewer() {
+    if (windowChanging || !hasNewer()) return;
+
+    loadNewerPending = true;
+    windowChanging   = true;
+    forceLoad();
+  }
+
+  @Override
+  public void deliverResult(Cursor newCursor) {
+    synchronized (this) {
+      windowChanging = false;
+    }
+
+    super.deliverResult(newCursor);
   }
 
   @Override
   public Cursor getCursor() {
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId, limit);
+    MmsSmsDatabase       database    = DatabaseFactory.getMmsSmsDatabase(context);
+    MessageRecordCache   recordCache = DatabaseFactory.getMessageRecordCache(context);
+    long                 generation  = recordCache.getGeneration();
+    ConversationPosition from;
+    boolean              seekNewer;
+    int                  limit;
+
+    synchronized (this) {
+      from      = newest;
+      seekNewer = loadNewerPending && newest != null;
+      limit     = pageCount * PAGE_SIZE;
+    }
+
+    int shift = 0;
+
+    if (seekNewer) {
+      List<ConversationPosition> newer = database.getConversationPositionsAfter(threadId, from, PAGE_SIZE);
+
+      if (newer.size() < PAGE_SIZE) from = null;
+      else                          from = newer.get(newer.size() - 1);
+
+      shift = newer.size();
+    }
+
+    Cursor               conversation = database.getConversation(threadId, from, limit);
+    ConversationPosition second       = null;
+
+    if (conversation.moveToPosition(PAGE_SIZE)) {
+      second = ConversationPosition.fromCursor(conversation);
+    }
+
+    conversation.moveToPosition(-1);
+
+    synchronized (this) {
+      secondPage = second;
+
+      if (seekNewer) {
+        newest           = from;
+        loadNewerPending = false;
+        positionShift    = shift;
+      } else {
+        positionShift = pendingShift;
+      }
+
+      pendingShift = 0;
+    }
+
+    return recordCache.stamp(conversation, generation);
   }
 }
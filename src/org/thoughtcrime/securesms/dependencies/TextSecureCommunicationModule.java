@@ -18,6 +18,7 @@ import org.thoughtcrime.securesms.jobs.PushNotificationReceiveJob;
 import org.thoughtcrime.securesms.jobs.PushTextSendJob;
 import org.thoughtcrime.securesms.jobs.RefreshAttributesJob;
 import org.thoughtcrime.securesms.jobs.RefreshPreKeysJob;
+import org.thoughtcrime.securesms.push.ResumableAttachmentDownloader;
 import org.thoughtcrime.securesms.push.SecurityEventListener;
 import org.thoughtcrime.securesms.push.TextSecurePushTrustStore;
 import org.thoughtcrime.securesms.service.MessageRetrievalService;
@@ -84,6 +85,12 @@ public class TextSecureCommunicationModule {
                                          BuildConfig.USER_AGENT);
   }
 
+  @Provides ResumableAttachmentDownloader provideResumableAttachmentDownloader() {
+    return new ResumableAttachmentDownloader(BuildConfig.TEXTSECURE_URL,
+                                             new TextSecurePushTrustStore(context),
+                                             new DynamicCredentialsProvider(context));
+  }
+
   public static interface TextSecureMessageSenderFactory {
     public TextSecureMessageSender create();
   }
@@ -103,7 +103,7 @@ public class GroupManager {
     GroupContext groupContext = groupContextBuilder.build();
 
     if (avatar != null) {
-      Uri avatarUri = SingleUseBlobProvider.getInstance().createUri(avatar);
+      Uri avatarUri = SingleUseBlobProvider.getInstance(context).createUri(avatar);
       avatarAttachment = new UriAttachment(avatarUri, ContentType.IMAGE_JPEG, AttachmentDatabase.TRANSFER_PROGRESS_DONE, avatar.length);
     }
 
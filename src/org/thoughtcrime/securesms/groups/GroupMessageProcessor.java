@@ -32,7 +32,6 @@ import org.whispersystems.textsecure.api.messages.TextSecureGroup;
 
 import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Set;
 
 import ws.com.google.android.mms.MmsException;
@@ -153,12 +152,11 @@ public class GroupMessageProcessor {
   {
     GroupDatabase database = DatabaseFactory.getGroupDatabase(context);
     byte[]        id       = group.getGroupId();
-    List<String>  members  = record.getMembers();
 
     GroupContext.Builder builder = createGroupContext(group);
     builder.setType(GroupContext.Type.QUIT);
 
-    if (members.contains(envelope.getSource())) {
+    if (database.isMember(id, envelope.getSource())) {
       database.remove(id, envelope.getSource());
       if (outgoing) database.setActive(id, false);
 
@@ -4,8 +4,10 @@ import android.content.Context;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
 import org.thoughtcrime.securesms.crypto.AsymmetricMasterSecret;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.crypto.MasterSecretUtil;
@@ -17,11 +19,12 @@ import org.thoughtcrime.securesms.events.PartProgressEvent;
 import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
 import org.thoughtcrime.securesms.jobs.requirements.MediaNetworkRequirement;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
+import org.thoughtcrime.securesms.push.ResumableAttachmentDownloader;
 import org.thoughtcrime.securesms.util.VisibleForTesting;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
 import org.whispersystems.libaxolotl.InvalidMessageException;
-import org.whispersystems.textsecure.api.TextSecureMessageReceiver;
+import org.whispersystems.textsecure.api.crypto.AttachmentCipherInputStream;
 import org.whispersystems.textsecure.api.messages.TextSecureAttachment.ProgressListener;
 import org.whispersystems.textsecure.api.messages.TextSecureAttachmentPointer;
 import org.whispersystems.textsecure.api.push.exceptions.NonSuccessfulResponseCodeException;
@@ -30,6 +33,7 @@ import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 
@@ -40,7 +44,9 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
   private static final long   serialVersionUID = 1L;
   private static final String TAG              = AttachmentDownloadJob.class.getSimpleName();
 
-  @Inject transient TextSecureMessageReceiver messageReceiver;
+  private static final AtomicInteger nextLane = new AtomicInteger();
+
+  @Inject transient ResumableAttachmentDownloader downloader;
 
   private final long messageId;
   private final long partRowId;
@@ -48,7 +54,7 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
 
   public AttachmentDownloadJob(Context context, long messageId, AttachmentId attachmentId) {
     super(context, JobParameters.newBuilder()
-                                .withGroupId(AttachmentDownloadJob.class.getCanonicalName())
+                                .withGroupId(getLaneGroupId())
                                 .withRequirement(new MasterSecretRequirement(context))
                                 .withRequirement(new NetworkRequirement(context))
                                 .withRequirement(new MediaNetworkRequirement(context, messageId, attachmentId))
@@ -64,10 +70,14 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
   public void onAdded() {
   }
 
+  /**
+   * Downloads this job's attachment, or a higher priority one in its place.  See
+   * {@link AttachmentDownloadScheduler}.
+   */
   @Override
-  public void onRun(MasterSecret masterSecret) throws IOException {
-    final AttachmentId attachmentId = new AttachmentId(partRowId, partUniqueId);
-    final Attachment   attachment   = DatabaseFactory.getAttachmentDatabase(context).getAttachment(attachmentId);
+  public void onRun(MasterSecret masterSecret) throws IOException, RequirementNotMetException {
+    final AttachmentId       attachmentId = new AttachmentId(partRowId, partUniqueId);
+    final DatabaseAttachment attachment   = DatabaseFactory.getAttachmentDatabase(context).getAttachment(attachmentId);
 
     if (attachment == null) {
       Log.w(TAG, "attachment no longer exists.");
@@ -79,9 +89,26 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
       return;
     }
 
-    Log.w(TAG, "Downloading push part " + attachmentId);
+    final AttachmentDownloadScheduler scheduler = AttachmentDownloadScheduler.getInstance();
+    final DatabaseAttachment          next      = scheduler.acquire(context, attachment);
+
+    if (next == null) {
+      // Another job took the last slot, or this attachment, after the requirements were checked.
+      throw new RequirementNotMetException();
+    }
+
+    try {
+      if (next.getAttachmentId().equals(attachmentId)) {
+        Log.w(TAG, "Downloading push part " + attachmentId);
+        retrieveAttachment(masterSecret, messageId, attachmentId, attachment);
+      } else {
+        Log.w(TAG, "Downloading push part " + next.getAttachmentId() + " ahead of " + attachmentId);
+        retrieveInPlaceOf(masterSecret, next);
+      }
+    } finally {
+      scheduler.release(context, next);
+    }
 
-    retrieveAttachment(masterSecret, messageId, attachmentId, attachment);
     MessageNotifier.updateNotification(context, masterSecret);
   }
 
@@ -89,6 +116,7 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
   public void onCanceled() {
     final AttachmentId attachmentId = new AttachmentId(partRowId, partUniqueId);
     markFailed(messageId, attachmentId);
+    getPartialFile(attachmentId).delete();
   }
 
   @Override
@@ -96,6 +124,25 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     return (exception instanceof PushNetworkException);
   }
 
+  /**
+   * Fetches another job's attachment ahead of this one's, which is handed to a new job.
+   * A network failure leaves the other attachment to its own job, which becomes runnable
+   * again once it's released, so retries and cancellation only ever apply to this job's
+   * own attachment.  A permanent failure marks the other attachment failed, which makes
+   * its job runnable so that it can exit.
+   */
+  private void retrieveInPlaceOf(MasterSecret masterSecret, DatabaseAttachment other) {
+    ApplicationContext.getInstance(context)
+                      .getJobManager()
+                      .add(new AttachmentDownloadJob(context, messageId, new AttachmentId(partRowId, partUniqueId)));
+
+    try {
+      retrieveAttachment(masterSecret, other.getMmsId(), other.getAttachmentId(), other);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
   private void retrieveAttachment(MasterSecret masterSecret,
                                   long messageId,
                                   final AttachmentId attachmentId,
@@ -104,29 +151,48 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
   {
 
     AttachmentDatabase database       = DatabaseFactory.getAttachmentDatabase(context);
-    File               attachmentFile = null;
+    File               attachmentFile = getPartialFile(attachmentId);
 
     try {
-      attachmentFile = createTempFile();
-
       TextSecureAttachmentPointer pointer = createAttachmentPointer(masterSecret, attachment);
-      InputStream                 stream  = messageReceiver.retrieveAttachment(pointer, attachmentFile, new ProgressListener() {
-        @Override
-        public void onAttachmentProgress(long total, long progress) {
-          EventBus.getDefault().postSticky(new PartProgressEvent(attachment, total, progress));
-        }
-      });
+      boolean                     resumed = attachmentFile.length() > 0;
+      InputStream                 stream;
+
+      download(pointer, attachmentFile, attachment);
+
+      try {
+        stream = new AttachmentCipherInputStream(attachmentFile, pointer.getKey());
+      } catch (InvalidMessageException e) {
+        if (!resumed) throw e;
+
+        Log.w(TAG, "Resumed download failed verification, starting over");
+        Log.w(TAG, e);
+
+        attachmentFile.delete();
+        download(pointer, attachmentFile, attachment);
+        stream = new AttachmentCipherInputStream(attachmentFile, pointer.getKey());
+      }
 
       database.insertAttachmentsForPlaceholder(masterSecret, messageId, attachmentId, stream);
+      attachmentFile.delete();
     } catch (InvalidPartException | NonSuccessfulResponseCodeException | InvalidMessageException | MmsException e) {
       Log.w(TAG, e);
       markFailed(messageId, attachmentId);
-    } finally {
-      if (attachmentFile != null)
-        attachmentFile.delete();
+      attachmentFile.delete();
     }
   }
 
+  private void download(TextSecureAttachmentPointer pointer, File attachmentFile, final Attachment attachment)
+      throws IOException
+  {
+    downloader.download(pointer.getId(), pointer.getRelay().orNull(), attachmentFile, new ProgressListener() {
+      @Override
+      public void onAttachmentProgress(long total, long progress) {
+        EventBus.getDefault().postSticky(new PartProgressEvent(attachment, total, progress));
+      }
+    });
+  }
+
   @VisibleForTesting
   TextSecureAttachmentPointer createAttachmentPointer(MasterSecret masterSecret, Attachment attachment)
       throws InvalidPartException
@@ -156,15 +222,22 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     }
   }
 
-  private File createTempFile() throws InvalidPartException {
-    try {
-      File file = File.createTempFile("push-attachment", "tmp", context.getCacheDir());
-      file.deleteOnExit();
+  /**
+   * The ciphertext received so far, kept across retries so that a download can resume
+   * where it left off.
+   */
+  private File getPartialFile(AttachmentId attachmentId) {
+    return new File(context.getCacheDir(), "push-attachment-" + attachmentId.getRowId() + "-" +
+                                           attachmentId.getUniqueId() + ".partial");
+  }
 
-      return file;
-    } catch (IOException e) {
-      throw new InvalidPartException(e);
-    }
+  /**
+   * Download jobs are dealt round-robin into a fixed number of groups, so that at most
+   * that many run at once without tying up the rest of the job manager's threads.
+   */
+  private static String getLaneGroupId() {
+    int lane = (nextLane.getAndIncrement() & Integer.MAX_VALUE) % AttachmentDownloadScheduler.MAX_CONCURRENT_DOWNLOADS;
+    return AttachmentDownloadJob.class.getCanonicalName() + "-" + lane;
   }
 
   private void markFailed(long messageId, AttachmentId attachmentId) {
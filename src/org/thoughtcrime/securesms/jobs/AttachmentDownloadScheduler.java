@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobs.requirements.MediaNetworkRequirement;
+import org.thoughtcrime.securesms.util.MediaUtil;
+import org.thoughtcrime.securesms.util.ServiceUtil;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which push attachment an {@link AttachmentDownloadJob} fetches, and how many
+ * are fetched at once.
+ *
+ * Download jobs are spread across a few job groups so that several can run at the same
+ * time.  A job only becomes runnable, through its {@link MediaNetworkRequirement}, while
+ * there's a free slot for the current type of network and nobody else is fetching its
+ * attachment, so no job manager thread ever sits waiting for a slot.
+ *
+ * A running job fetches the best attachment waiting that the current network's
+ * auto-download settings allow, or its own if nothing allowed beats it: attachments of
+ * the messages on screen first, then images ahead of other media since their thumbnails
+ * fill in the conversation, then smaller before larger and newer before older.  A job
+ * that fetches some other attachment hands its own to a new job.  The list of waiting
+ * attachments is reloaded at most every few seconds, and a candidate from it is checked
+ * to still be waiting before it's handed out.
+ */
+public class AttachmentDownloadScheduler {
+
+  private static final String TAG = AttachmentDownloadScheduler.class.getSimpleName();
+
+  public  static final int MAX_CONCURRENT_DOWNLOADS = 3;
+  private static final int WIFI_DOWNLOADS           = 3;
+  private static final int MOBILE_DOWNLOADS         = 2;
+  private static final int ROAMING_DOWNLOADS        = 1;
+
+  private static final long PENDING_CACHE_MILLIS = 5000;
+
+  private static final AttachmentDownloadScheduler instance = new AttachmentDownloadScheduler();
+
+  private final Set<AttachmentId> claimed = new HashSet<>();
+
+  private Set<Long> visibleMessages = Collections.emptySet();
+
+  private List<DatabaseAttachment> pending;
+  private long                     pendingLoadTime;
+
+  public static AttachmentDownloadScheduler getInstance() {
+    return instance;
+  }
+
+  private AttachmentDownloadScheduler() {}
+
+  /**
+   * Called as the conversation on screen scrolls, so that the attachments of the
+   * messages in view are fetched first.
+   */
+  public synchronized void setVisibleMessages(@NonNull Set<Long> messageIds) {
+    this.visibleMessages = messageIds;
+  }
+
+  /**
+   * @return true if there's a free transfer slot on the current network and the
+   * attachment isn't already being fetched.
+   */
+  public synchronized boolean canStart(@NonNull Context context, @NonNull AttachmentId attachmentId) {
+    return !claimed.contains(attachmentId) && claimed.size() < getMaxDownloads(context);
+  }
+
+  /**
+   * Claims a transfer slot and the best attachment to fetch in place of the given one.
+   * Each attachment returned must be handed back to {@link #release(Context, DatabaseAttachment)}
+   * once the attempt to fetch it is over.
+   *
+   * @return The attachment to fetch, or null if {@link #canStart(Context, AttachmentId)}
+   * no longer holds for the given one.
+   */
+  public synchronized @Nullable DatabaseAttachment acquire(@NonNull Context context, @NonNull DatabaseAttachment own) {
+    if (!canStart(context, own.getAttachmentId())) {
+      return null;
+    }
+
+    AttachmentDatabase database = DatabaseFactory.getAttachmentDatabase(context);
+    Set<String>        allowed  = MediaNetworkRequirement.getAllowedAutoDownloadTypes(context);
+    PriorityComparator order    = new PriorityComparator(visibleMessages);
+
+    while (true) {
+      List<DatabaseAttachment> candidates = getPending(database);
+      DatabaseAttachment       next       = own;
+
+      for (DatabaseAttachment attachment : candidates) {
+        if (!claimed.contains(attachment.getAttachmentId()) &&
+            isAllowed(attachment, allowed)                   &&
+            order.compare(attachment, next) < 0)
+        {
+          next = attachment;
+        }
+      }
+
+      if (next == own || isStillPending(database, next)) {
+        claimed.add(next.getAttachmentId());
+        Log.w(TAG, "Claimed " + next.getAttachmentId() + " of " + candidates.size() + " pending, " + claimed.size() + " active");
+        return next;
+      }
+
+      forget(next.getAttachmentId());
+    }
+  }
+
+  public void release(@NonNull Context context, @NonNull DatabaseAttachment attachment) {
+    synchronized (this) {
+      claimed.remove(attachment.getAttachmentId());
+      forget(attachment.getAttachmentId());
+    }
+
+    ApplicationContext.getInstance(context).notifyMediaControlEvent();
+  }
+
+  private @NonNull List<DatabaseAttachment> getPending(@NonNull AttachmentDatabase database) {
+    long now = System.currentTimeMillis();
+
+    if (pending == null || now - pendingLoadTime > PENDING_CACHE_MILLIS) {
+      pending         = new LinkedList<>(database.getPendingDownloads());
+      pendingLoadTime = now;
+    }
+
+    return pending;
+  }
+
+  private void forget(@NonNull AttachmentId attachmentId) {
+    if (pending == null) return;
+
+    Iterator<DatabaseAttachment> iterator = pending.iterator();
+
+    while (iterator.hasNext()) {
+      if (iterator.next().getAttachmentId().equals(attachmentId)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private static boolean isStillPending(@NonNull AttachmentDatabase database, @NonNull DatabaseAttachment attachment) {
+    DatabaseAttachment current = database.getAttachment(attachment.getAttachmentId());
+    return current != null && current.getTransferState() == AttachmentDatabase.TRANSFER_PROGRESS_STARTED;
+  }
+
+  private static boolean isAllowed(@NonNull DatabaseAttachment attachment, @NonNull Set<String> allowedTypes) {
+    return attachment.getContentType() != null &&
+           allowedTypes.contains(MediaUtil.getDiscreteMimeType(attachment.getContentType()));
+  }
+
+  private static int getMaxDownloads(@NonNull Context context) {
+    NetworkInfo info = ServiceUtil.getConnectivityManager(context).getActiveNetworkInfo();
+
+    if      (info == null || !info.isConnected())                return ROAMING_DOWNLOADS;
+    else if (info.getType() == ConnectivityManager.TYPE_WIFI)   return WIFI_DOWNLOADS;
+    else if (info.isRoaming())                                  return ROAMING_DOWNLOADS;
+    else if (info.getType() == ConnectivityManager.TYPE_MOBILE) return MOBILE_DOWNLOADS;
+    else                                                        return ROAMING_DOWNLOADS;
+  }
+
+  private static class PriorityComparator implements Comparator<DatabaseAttachment> {
+
+    private final Set<Long> visibleMessages;
+
+    private PriorityComparator(@NonNull Set<Long> visibleMessages) {
+      this.visibleMessages = visibleMessages;
+    }
+
+    @Override
+    public int compare(DatabaseAttachment lhs, DatabaseAttachment rhs) {
+      boolean lhsVisible = visibleMessages.contains(lhs.getMmsId());
+      boolean rhsVisible = visibleMessages.contains(rhs.getMmsId());
+
+      if (lhsVisible != rhsVisible) return lhsVisible ? -1 : 1;
+
+      boolean lhsImage = MediaUtil.isImage(lhs);
+      boolean rhsImage = MediaUtil.isImage(rhs);
+
+      if (lhsImage != rhsImage)             return lhsImage ? -1 : 1;
+      if (lhs.getSize() != rhs.getSize())   return lhs.getSize() < rhs.getSize() ? -1 : 1;
+      if (lhs.getMmsId() != rhs.getMmsId()) return lhs.getMmsId() > rhs.getMmsId() ? -1 : 1;
+
+      return 0;
+    }
+  }
+}
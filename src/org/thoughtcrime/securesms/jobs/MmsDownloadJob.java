@@ -151,7 +151,7 @@ public class MmsDownloadJob extends MasterSecretJob {
              LegacyMessageException
   {
     MmsDatabase           database    = DatabaseFactory.getMmsDatabase(context);
-    SingleUseBlobProvider provider    = SingleUseBlobProvider.getInstance();
+    SingleUseBlobProvider provider    = SingleUseBlobProvider.getInstance(context);
     String                from        = null;
     List<String>          to          = new LinkedList<>();
     List<String>          cc          = new LinkedList<>();
@@ -1,6 +1,8 @@
 package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.Pair;
@@ -61,7 +63,10 @@ import org.whispersystems.textsecure.api.messages.multidevice.SentTranscriptMess
 import org.whispersystems.textsecure.api.messages.multidevice.TextSecureSyncMessage;
 import org.whispersystems.textsecure.api.push.TextSecureAddress;
 
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import ws.com.google.android.mms.MmsException;
@@ -72,9 +77,15 @@ public class PushDecryptJob extends ContextJob {
 
   public static final String TAG = PushDecryptJob.class.getSimpleName();
 
+  private static final int BATCH_SIZE = 25;
+
   private final long messageId;
   private final long smsMessageId;
 
+  private transient Set<Long> updatedThreads;
+  private transient boolean   refreshNotification;
+  private transient boolean   refreshPreKeys;
+
   public PushDecryptJob(Context context, long pushMessageId, String sender) {
     this(context, pushMessageId, -1, sender);
   }
@@ -101,19 +112,34 @@ public class PushDecryptJob extends ContextJob {
       return;
     }
 
-    MasterSecret       masterSecret         = KeyCachingService.getMasterSecret(context);
-    PushDatabase       database             = DatabaseFactory.getPushDatabase(context);
-    TextSecureEnvelope envelope             = database.get(messageId);
-    Optional<Long>     optionalSmsMessageId = smsMessageId > 0 ? Optional.of(smsMessageId) :
-                                                                 Optional.<Long>absent();
+    MasterSecret masterSecret = KeyCachingService.getMasterSecret(context);
+    PushDatabase database     = DatabaseFactory.getPushDatabase(context);
 
     MasterSecretUnion masterSecretUnion;
 
     if (masterSecret == null) masterSecretUnion = new MasterSecretUnion(MasterSecretUtil.getAsymmetricMasterSecret(context, null));
     else                      masterSecretUnion = new MasterSecretUnion(masterSecret);
 
-    handleMessage(masterSecretUnion, envelope, optionalSmsMessageId);
-    database.delete(messageId);
+    updatedThreads      = new HashSet<>();
+    refreshNotification = false;
+    refreshPreKeys      = false;
+
+    if (smsMessageId > 0) {
+      handleEnvelope(masterSecretUnion, database, createCipher(),
+                     new DecryptedEnvelope(messageId, database.get(messageId)), Optional.of(smsMessageId));
+    } else {
+      handleBatch(masterSecretUnion, database);
+    }
+
+    if (refreshPreKeys) {
+      ApplicationContext.getInstance(context).getJobManager().add(new RefreshPreKeysJob(context));
+    }
+
+    if (!updatedThreads.isEmpty()) {
+      MessageNotifier.updateNotification(context, masterSecret, updatedThreads);
+    } else if (refreshNotification) {
+      MessageNotifier.updateNotification(context, masterSecret);
+    }
   }
 
   @Override
@@ -126,13 +152,93 @@ public class PushDecryptJob extends ContextJob {
 
   }
 
-  private void handleMessage(MasterSecretUnion masterSecret, TextSecureEnvelope envelope, Optional<Long> smsMessageId) {
+  /**
+   * Handles the queued envelopes from this job's onwards, up to {@link #BATCH_SIZE} of
+   * them, in arrival order.  The jobs for the other envelopes in the batch find them
+   * gone and have nothing left to do.
+   */
+  private void handleBatch(MasterSecretUnion masterSecret, PushDatabase database) {
+    List<DecryptedEnvelope> batch  = new LinkedList<>();
+    Cursor                  cursor = null;
+
+    try {
+      cursor = database.getPendingBatch(messageId, BATCH_SIZE);
+
+      PushDatabase.Reader reader = database.readerFor(cursor);
+      TextSecureEnvelope  envelope;
+
+      while ((envelope = reader.getNext()) != null) {
+        batch.add(new DecryptedEnvelope(cursor.getLong(cursor.getColumnIndexOrThrow(PushDatabase.ID)), envelope));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    if (batch.isEmpty() || batch.get(0).pushId != messageId) {
+      Log.w(TAG, "Envelope " + messageId + " was already handled in an earlier batch.");
+      return;
+    }
+
+    Log.w(TAG, "Handling batch of " + batch.size());
+
+    TextSecureCipher cipher = createCipher();
+
+    for (DecryptedEnvelope decrypted : batch) {
+      handleEnvelope(masterSecret, database, cipher, decrypted, Optional.<Long>absent());
+    }
+  }
+
+  /**
+   * Decrypting an envelope advances its session on disk, so each envelope is stored and
+   * dequeued before the next one is decrypted.  Otherwise a failure would leave queued
+   * envelopes whose keys have already been used up.
+   */
+  private void handleEnvelope(MasterSecretUnion masterSecret, PushDatabase database,
+                              TextSecureCipher cipher, DecryptedEnvelope decrypted,
+                              Optional<Long> smsMessageId)
+  {
+    decrypt(cipher, decrypted);
+
+    SQLiteDatabase transaction = database.beginTransaction();
+
+    try {
+      handleMessage(masterSecret, decrypted, smsMessageId);
+      database.delete(decrypted.pushId);
+      transaction.setTransactionSuccessful();
+    } finally {
+      database.endTransaction(transaction);
+    }
+  }
+
+  private TextSecureCipher createCipher() {
+    AxolotlStore      axolotlStore = new TextSecureAxolotlStore(context);
+    TextSecureAddress localAddress = new TextSecureAddress(TextSecurePreferences.getLocalNumber(context));
+
+    return new TextSecureCipher(localAddress, axolotlStore);
+  }
+
+  private void decrypt(TextSecureCipher cipher, DecryptedEnvelope decrypted) {
     try {
-      AxolotlStore      axolotlStore = new TextSecureAxolotlStore(context);
-      TextSecureAddress localAddress = new TextSecureAddress(TextSecurePreferences.getLocalNumber(context));
-      TextSecureCipher  cipher       = new TextSecureCipher(localAddress, axolotlStore);
+      decrypted.content = cipher.decrypt(decrypted.envelope);
+    } catch (InvalidVersionException | InvalidMessageException | InvalidKeyIdException |
+             InvalidKeyException | NoSessionException | LegacyMessageException |
+             DuplicateMessageException | UntrustedIdentityException e)
+    {
+      decrypted.failure = e;
+    }
+  }
 
-      TextSecureContent content = cipher.decrypt(envelope);
+  private void handleMessage(MasterSecretUnion masterSecret, DecryptedEnvelope decrypted, Optional<Long> smsMessageId) {
+    TextSecureEnvelope envelope = decrypted.envelope;
+
+    if (decrypted.failure != null) {
+      handleDecryptionFailure(masterSecret, envelope, decrypted.failure, smsMessageId);
+      return;
+    }
+
+    try {
+      TextSecureContent content = decrypted.content;
 
       if (content.getDataMessage().isPresent()) {
         TextSecureDataMessage message = content.getDataMessage().get();
@@ -149,29 +255,29 @@ public class PushDecryptJob extends ContextJob {
       }
 
       if (envelope.isPreKeyWhisperMessage()) {
-        ApplicationContext.getInstance(context).getJobManager().add(new RefreshPreKeysJob(context));
+        refreshPreKeys = true;
       }
-    } catch (InvalidVersionException e) {
-      Log.w(TAG, e);
-      handleInvalidVersionMessage(masterSecret, envelope, smsMessageId);
-    } catch (InvalidMessageException | InvalidKeyIdException | InvalidKeyException | MmsException e) {
+    } catch (MmsException e) {
       Log.w(TAG, e);
       handleCorruptMessage(masterSecret, envelope, smsMessageId);
-    } catch (NoSessionException e) {
-      Log.w(TAG, e);
-      handleNoSessionMessage(masterSecret, envelope, smsMessageId);
-    } catch (LegacyMessageException e) {
-      Log.w(TAG, e);
-      handleLegacyMessage(masterSecret, envelope, smsMessageId);
-    } catch (DuplicateMessageException e) {
-      Log.w(TAG, e);
-      handleDuplicateMessage(masterSecret, envelope, smsMessageId);
-    } catch (UntrustedIdentityException e) {
-      Log.w(TAG, e);
-      handleUntrustedIdentityMessage(masterSecret, envelope, smsMessageId);
     }
   }
 
+  private void handleDecryptionFailure(@NonNull MasterSecretUnion  masterSecret,
+                                       @NonNull TextSecureEnvelope envelope,
+                                       @NonNull Exception          failure,
+                                       @NonNull Optional<Long>     smsMessageId)
+  {
+    Log.w(TAG, failure);
+
+    if      (failure instanceof InvalidVersionException)    handleInvalidVersionMessage(masterSecret, envelope, smsMessageId);
+    else if (failure instanceof NoSessionException)         handleNoSessionMessage(masterSecret, envelope, smsMessageId);
+    else if (failure instanceof LegacyMessageException)     handleLegacyMessage(masterSecret, envelope, smsMessageId);
+    else if (failure instanceof DuplicateMessageException)  handleDuplicateMessage(masterSecret, envelope, smsMessageId);
+    else if (failure instanceof UntrustedIdentityException) handleUntrustedIdentityMessage(masterSecret, envelope, smsMessageId);
+    else                                                    handleCorruptMessage(masterSecret, envelope, smsMessageId);
+  }
+
   private void handleEndSessionMessage(@NonNull MasterSecretUnion     masterSecret,
                                        @NonNull TextSecureEnvelope    envelope,
                                        @NonNull TextSecureDataMessage message,
@@ -199,7 +305,7 @@ public class PushDecryptJob extends ContextJob {
     sessionStore.deleteAllSessions(envelope.getSource());
 
     SecurityEvent.broadcastSecurityUpdateEvent(context);
-    MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), threadId);
+    updatedThreads.add(threadId);
   }
 
   private void handleGroupMessage(@NonNull MasterSecretUnion masterSecret,
@@ -232,7 +338,7 @@ public class PushDecryptJob extends ContextJob {
 
     if (threadId != null) {
       DatabaseFactory.getThreadDatabase(getContext()).setRead(threadId);
-      MessageNotifier.updateNotification(getContext(), masterSecret.getMasterSecret().orNull());
+      refreshNotification = true;
     }
   }
 
@@ -281,7 +387,7 @@ public class PushDecryptJob extends ContextJob {
       DatabaseFactory.getSmsDatabase(context).deleteMessage(smsMessageId.get());
     }
 
-    MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+    updatedThreads.add(messageAndThreadId.second);
   }
 
   private long handleSynchronizeSentMediaMessage(@NonNull MasterSecretUnion masterSecret,
@@ -340,7 +446,7 @@ public class PushDecryptJob extends ContextJob {
       if (smsMessageId.isPresent()) database.deleteMessage(smsMessageId.get());
     }
 
-    MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+    updatedThreads.add(messageAndThreadId.second);
   }
 
   private long handleSynchronizeSentTextMessage(@NonNull MasterSecretUnion masterSecret,
@@ -375,7 +481,7 @@ public class PushDecryptJob extends ContextJob {
     if (!smsMessageId.isPresent()) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(envelope);
       smsDatabase.markAsInvalidVersionKeyExchange(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+      updatedThreads.add(messageAndThreadId.second);
     } else {
       smsDatabase.markAsInvalidVersionKeyExchange(smsMessageId.get());
     }
@@ -390,7 +496,7 @@ public class PushDecryptJob extends ContextJob {
     if (!smsMessageId.isPresent()) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(envelope);
       smsDatabase.markAsDecryptFailed(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+      updatedThreads.add(messageAndThreadId.second);
     } else {
       smsDatabase.markAsDecryptFailed(smsMessageId.get());
     }
@@ -405,7 +511,7 @@ public class PushDecryptJob extends ContextJob {
     if (!smsMessageId.isPresent()) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(envelope);
       smsDatabase.markAsNoSession(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+      updatedThreads.add(messageAndThreadId.second);
     } else {
       smsDatabase.markAsNoSession(smsMessageId.get());
     }
@@ -420,7 +526,7 @@ public class PushDecryptJob extends ContextJob {
     if (!smsMessageId.isPresent()) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(envelope);
       smsDatabase.markAsLegacyVersion(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+      updatedThreads.add(messageAndThreadId.second);
     } else {
       smsDatabase.markAsLegacyVersion(smsMessageId.get());
     }
@@ -462,7 +568,7 @@ public class PushDecryptJob extends ContextJob {
         Pair<Long, Long>            messageAndThreadId = database.insertMessageInbox(masterSecret, bundleMessage);
 
         database.setMismatchedIdentity(messageAndThreadId.first, recipientId, identityKey);
-        MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+        updatedThreads.add(messageAndThreadId.second);
       } else {
         database.updateMessageBody(masterSecret, smsMessageId.get(), encoded);
         database.markAsPreKeyBundle(smsMessageId.get());
@@ -490,4 +596,17 @@ public class PushDecryptJob extends ContextJob {
       return RecipientFactory.getRecipientsFromString(context, message.getDestination().get(), false);
     }
   }
+
+  private static class DecryptedEnvelope {
+    private final long               pushId;
+    private final TextSecureEnvelope envelope;
+
+    private TextSecureContent content;
+    private Exception         failure;
+
+    private DecryptedEnvelope(long pushId, TextSecureEnvelope envelope) {
+      this.pushId   = pushId;
+      this.envelope = envelope;
+    }
+  }
 }
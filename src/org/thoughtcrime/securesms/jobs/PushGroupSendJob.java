@@ -7,6 +7,7 @@ import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.NoSuchMessageException;
+import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch;
 import org.thoughtcrime.securesms.database.documents.NetworkFailure;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
@@ -32,8 +33,10 @@ import org.whispersystems.textsecure.api.util.InvalidNumberException;
 import org.whispersystems.textsecure.internal.push.TextSecureProtos.GroupContext;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 
@@ -75,15 +78,14 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
   public void onSend(MasterSecret masterSecret)
       throws MmsException, IOException, NoSuchMessageException
   {
-    MmsDatabase          database = DatabaseFactory.getMmsDatabase(context);
-    OutgoingMediaMessage message  = database.getOutgoingMessage(masterSecret, messageId);
+    MmsDatabase            database     = DatabaseFactory.getMmsDatabase(context);
+    OutgoingMediaMessage   message      = database.getOutgoingMessage(masterSecret, messageId);
+    Map<String, Recipient> destinations = new HashMap<>();
 
     try {
-      deliver(masterSecret, message, filterRecipientId);
+      deliver(masterSecret, message, filterRecipientId, destinations);
 
-      database.markAsPush(messageId);
-      database.markAsSecure(messageId);
-      database.markAsSent(messageId);
+      database.markAsPushSent(messageId);
       markAttachmentsUploaded(messageId, message.getAttachments());
     } catch (InvalidNumberException | RecipientFormattingException | UndeliverableMessageException e) {
       Log.w(TAG, e);
@@ -91,21 +93,20 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
       notifyMediaMessageDeliveryFailed(context, messageId);
     } catch (EncapsulatedExceptions e) {
       Log.w(TAG, e);
-      List<NetworkFailure> failures = new LinkedList<>();
+      List<NetworkFailure>      failures   = new LinkedList<>();
+      List<IdentityKeyMismatch> mismatches = new LinkedList<>();
 
       for (NetworkFailureException nfe : e.getNetworkExceptions()) {
-        Recipient recipient = RecipientFactory.getRecipientsFromString(context, nfe.getE164number(), false).getPrimaryRecipient();
+        Recipient recipient = getDestination(destinations, nfe.getE164number());
         failures.add(new NetworkFailure(recipient.getRecipientId()));
       }
 
       for (UntrustedIdentityException uie : e.getUntrustedIdentityExceptions()) {
-        Recipient recipient = RecipientFactory.getRecipientsFromString(context, uie.getE164Number(), false).getPrimaryRecipient();
-        database.addMismatchedIdentity(messageId, recipient.getRecipientId(), uie.getIdentityKey());
+        Recipient recipient = getDestination(destinations, uie.getE164Number());
+        mismatches.add(new IdentityKeyMismatch(recipient.getRecipientId(), uie.getIdentityKey()));
       }
 
-      database.addFailures(messageId, failures);
-      database.markAsSentFailed(messageId);
-      database.markAsPush(messageId);
+      database.markAsPushSentFailed(messageId, failures, mismatches);
 
       notifyMediaMessageDeliveryFailed(context, messageId);
     }
@@ -122,7 +123,8 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
     DatabaseFactory.getMmsDatabase(context).markAsSentFailed(messageId);
   }
 
-  private void deliver(MasterSecret masterSecret, OutgoingMediaMessage message, long filterRecipientId)
+  private void deliver(MasterSecret masterSecret, OutgoingMediaMessage message, long filterRecipientId,
+                       Map<String, Recipient> destinations)
       throws IOException, RecipientFormattingException, InvalidNumberException,
       EncapsulatedExceptions, UndeliverableMessageException
   {
@@ -132,8 +134,8 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
     List<TextSecureAttachment> attachments   = getAttachmentsFor(masterSecret, message.getAttachments());
     List<TextSecureAddress>    addresses;
 
-    if (filterRecipientId >= 0) addresses = getPushAddresses(filterRecipientId);
-    else                        addresses = getPushAddresses(recipients);
+    if (filterRecipientId >= 0) addresses = getPushAddresses(filterRecipientId, destinations);
+    else                        addresses = getPushAddresses(recipients, destinations);
 
     if (message.isGroup()) {
       OutgoingGroupMediaMessage groupMessage     = (OutgoingGroupMediaMessage) message;
@@ -152,20 +154,42 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
     }
   }
 
-  private List<TextSecureAddress> getPushAddresses(Recipients recipients) throws InvalidNumberException {
+  private List<TextSecureAddress> getPushAddresses(Recipients recipients, Map<String, Recipient> destinations)
+      throws InvalidNumberException
+  {
     List<TextSecureAddress> addresses = new LinkedList<>();
 
     for (Recipient recipient : recipients.getRecipientsList()) {
-      addresses.add(getPushAddress(recipient.getNumber()));
+      addresses.add(getPushAddress(recipient, destinations));
     }
 
     return addresses;
   }
 
-  private List<TextSecureAddress> getPushAddresses(long filterRecipientId) throws InvalidNumberException {
+  private List<TextSecureAddress> getPushAddresses(long filterRecipientId, Map<String, Recipient> destinations)
+      throws InvalidNumberException
+  {
     List<TextSecureAddress> addresses = new LinkedList<>();
-    addresses.add(getPushAddress(RecipientFactory.getRecipientForId(context, filterRecipientId, false).getNumber()));
+    addresses.add(getPushAddress(RecipientFactory.getRecipientForId(context, filterRecipientId, false), destinations));
     return addresses;
   }
 
+  private TextSecureAddress getPushAddress(Recipient recipient, Map<String, Recipient> destinations)
+      throws InvalidNumberException
+  {
+    TextSecureAddress address = getPushAddress(recipient.getNumber());
+    destinations.put(address.getNumber(), recipient);
+    return address;
+  }
+
+  private Recipient getDestination(Map<String, Recipient> destinations, String e164number) {
+    Recipient recipient = destinations.get(e164number);
+
+    if (recipient == null) {
+      recipient = RecipientFactory.getRecipientsFromString(context, e164number, false).getPrimaryRecipient();
+    }
+
+    return recipient;
+  }
+
 }
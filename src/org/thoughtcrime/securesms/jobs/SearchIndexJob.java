@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
+import org.whispersystems.jobqueue.JobParameters;
+
+/**
+ * Adds any messages written while the master secret was unavailable (or from before
+ * the search index existed) to the search index.
+ */
+public class SearchIndexJob extends MasterSecretJob {
+
+  private static final long serialVersionUID = 1L;
+
+  public SearchIndexJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .withGroupId(SearchIndexJob.class.getSimpleName())
+                                .create());
+  }
+
+  @Override
+  public void onRun(MasterSecret masterSecret) {
+    DatabaseFactory.getSearchDatabase(context).indexPending(masterSecret);
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onAdded() {
+
+  }
+
+  @Override
+  public void onCanceled() {
+
+  }
+}
@@ -10,6 +10,7 @@ import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.jobs.AttachmentDownloadScheduler;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.ServiceUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
@@ -41,31 +42,47 @@ public class MediaNetworkRequirement implements Requirement, ContextDependent {
     this.context = context;
   }
 
-  private NetworkInfo getNetworkInfo() {
+  private static NetworkInfo getNetworkInfo(Context context) {
     return ServiceUtil.getConnectivityManager(context).getActiveNetworkInfo();
   }
 
   public boolean isConnectedWifi() {
-    final NetworkInfo info = getNetworkInfo();
-    return info != null && info.isConnected() && info.getType() == ConnectivityManager.TYPE_WIFI;
+    return isConnectedWifi(context);
   }
 
   public boolean isConnectedMobile() {
-    final NetworkInfo info = getNetworkInfo();
-    return info != null && info.isConnected() && info.getType() == ConnectivityManager.TYPE_MOBILE;
+    return isConnectedMobile(context);
   }
 
   public boolean isConnectedRoaming() {
-    final NetworkInfo info = getNetworkInfo();
+    return isConnectedRoaming(context);
+  }
+
+  private static boolean isConnectedWifi(Context context) {
+    final NetworkInfo info = getNetworkInfo(context);
+    return info != null && info.isConnected() && info.getType() == ConnectivityManager.TYPE_WIFI;
+  }
+
+  private static boolean isConnectedMobile(Context context) {
+    final NetworkInfo info = getNetworkInfo(context);
+    return info != null && info.isConnected() && info.getType() == ConnectivityManager.TYPE_MOBILE;
+  }
+
+  private static boolean isConnectedRoaming(Context context) {
+    final NetworkInfo info = getNetworkInfo(context);
     return info != null && info.isConnected() && info.isRoaming() && info.getType() == ConnectivityManager.TYPE_MOBILE;
   }
 
-  private @NonNull Set<String> getAllowedAutoDownloadTypes() {
-    if (isConnectedWifi()) {
+  /**
+   * @return The discrete media types (image, audio, video) the user allows to download
+   * automatically on the current network.
+   */
+  public static @NonNull Set<String> getAllowedAutoDownloadTypes(Context context) {
+    if (isConnectedWifi(context)) {
       return TextSecurePreferences.getWifiMediaDownloadAllowed(context);
-    } else if (isConnectedRoaming()) {
+    } else if (isConnectedRoaming(context)) {
       return TextSecurePreferences.getRoamingMediaDownloadAllowed(context);
-    } else if (isConnectedMobile()) {
+    } else if (isConnectedMobile(context)) {
       return TextSecurePreferences.getMobileMediaDownloadAllowed(context);
     } else {
       return Collections.emptySet();
@@ -86,15 +103,19 @@ public class MediaNetworkRequirement implements Requirement, ContextDependent {
     Log.w(TAG, "part transfer progress is " + attachment.getTransferState());
     switch (attachment.getTransferState()) {
     case AttachmentDatabase.TRANSFER_PROGRESS_STARTED:
-      return true;
+      return AttachmentDownloadScheduler.getInstance().canStart(context, attachmentId);
     case AttachmentDatabase.TRANSFER_PROGRESS_AUTO_PENDING:
-      final Set<String> allowedTypes = getAllowedAutoDownloadTypes();
+      final Set<String> allowedTypes = getAllowedAutoDownloadTypes(context);
       final boolean     isAllowed    = allowedTypes.contains(MediaUtil.getDiscreteMimeType(attachment.getContentType()));
 
       /// XXX WTF -- This is *hella* gross. A requirement shouldn't have the side effect of
       // *modifying the database* just by calling isPresent().
       if (isAllowed) db.setTransferState(messageId, attachmentId, AttachmentDatabase.TRANSFER_PROGRESS_STARTED);
-      return isAllowed;
+      return isAllowed && AttachmentDownloadScheduler.getInstance().canStart(context, attachmentId);
+    case AttachmentDatabase.TRANSFER_PROGRESS_DONE:
+    case AttachmentDatabase.TRANSFER_PROGRESS_FAILED:
+      // Finished, possibly by another job in this one's place, so let it run and exit.
+      return true;
     default:
       return false;
     }
@@ -53,7 +53,7 @@ public class PartAuthority {
       case PERSISTENT_ROW:
         return PersistentBlobProvider.getInstance(context).getStream(masterSecret, ContentUris.parseId(uri));
       case SINGLE_USE_ROW:
-        return SingleUseBlobProvider.getInstance().getStream(ContentUris.parseId(uri));
+        return SingleUseBlobProvider.getInstance(context).getStream(ContentUris.parseId(uri));
       default:
         return context.getContentResolver().openInputStream(uri);
       }
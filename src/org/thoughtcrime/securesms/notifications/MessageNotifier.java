@@ -35,7 +35,6 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.Spannable;
 import android.text.SpannableString;
-import android.text.TextUtils;
 import android.text.style.StyleSpan;
 import android.util.Log;
 
@@ -43,24 +42,21 @@ import org.thoughtcrime.securesms.ConversationActivity;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
-import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.PushDatabase;
-import org.thoughtcrime.securesms.database.SmsDatabase;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
-import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
-import org.thoughtcrime.securesms.database.model.MessageRecord;
-import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.service.KeyCachingService;
-import org.thoughtcrime.securesms.util.SpanUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import me.leolin.shortcutbadger.ShortcutBadger;
@@ -79,8 +75,15 @@ public class MessageNotifier {
 
   public static final int NOTIFICATION_ID = 1338;
 
+  private static final long UPDATE_WINDOW_MILLIS = 250;
+
+  private static final ScheduledExecutorService updateExecutor = Executors.newSingleThreadScheduledExecutor();
+  private static final NotificationStateCache   stateCache     = new NotificationStateCache();
+
   private volatile static long visibleThread = -1;
 
+  private static PendingUpdate pendingUpdate = null;
+
   public static final String EXTRA_VOICE_REPLY = "extra_voice_reply";
 
   public static void setVisibleThread(long threadId) {
@@ -145,20 +148,94 @@ public class MessageNotifier {
     }
   }
 
+  /**
+   * Like {@link #updateNotification(Context, MasterSecret, long)} for messages that
+   * arrived in several threads at once, but rebuilds the notification only once.
+   */
+  public static void updateNotification(@NonNull  Context context,
+                                        @Nullable MasterSecret masterSecret,
+                                        @NonNull  Collection<Long> threadIds)
+  {
+    ThreadDatabase threads = DatabaseFactory.getThreadDatabase(context);
+    boolean        signal  = false;
+
+    for (long threadId : threadIds) {
+      boolean    isVisible  = visibleThread == threadId;
+      Recipients recipients = threads.getRecipientsForThreadId(threadId);
+
+      if (isVisible) {
+        threads.setRead(threadId);
+      }
+
+      if (!TextSecurePreferences.isNotificationsEnabled(context) ||
+          (recipients != null && recipients.isMuted()))
+      {
+        continue;
+      }
+
+      if (isVisible) sendInThreadNotification(context, recipients);
+      else           signal = true;
+    }
+
+    if (signal) {
+      updateNotification(context, masterSecret, true, false, 0);
+    }
+  }
+
+  /**
+   * Requests for a rebuild that arrive within {@link #UPDATE_WINDOW_MILLIS} of each
+   * other are coalesced into one, which signals if any of them asked to.
+   */
   private static void updateNotification(@NonNull  Context context,
                                          @Nullable MasterSecret masterSecret,
                                          boolean signal,
                                          boolean includePushDatabase,
                                          int     reminderCount)
   {
-    Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
+    synchronized (MessageNotifier.class) {
+      if (pendingUpdate != null) {
+        pendingUpdate.merge(masterSecret, signal, includePushDatabase, reminderCount);
+        return;
+      }
+
+      pendingUpdate = new PendingUpdate(context.getApplicationContext(), masterSecret,
+                                        signal, includePushDatabase, reminderCount);
+    }
+
+    updateExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        PendingUpdate update;
+
+        synchronized (MessageNotifier.class) {
+          update        = pendingUpdate;
+          pendingUpdate = null;
+        }
+
+        try {
+          performUpdate(update.context, update.masterSecret, update.signal,
+                        update.includePushDatabase, update.reminderCount);
+        } catch (Exception e) {
+          Log.w(TAG, e);
+        }
+      }
+    }, UPDATE_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private static void performUpdate(@NonNull  Context context,
+                                    @Nullable MasterSecret masterSecret,
+                                    boolean signal,
+                                    boolean includePushDatabase,
+                                    int     reminderCount)
+  {
+    Cursor pushCursor = null;
 
     try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
-      pushCursor  = DatabaseFactory.getPushDatabase(context).getPending();
+      NotificationState notificationState = stateCache.getNotificationState(context, masterSecret);
 
-      if ((telcoCursor == null || telcoCursor.isAfterLast()) &&
+      pushCursor = DatabaseFactory.getPushDatabase(context).getPending();
+
+      if (notificationState.getMessageCount() == 0 &&
           (pushCursor == null || pushCursor.isAfterLast()))
       {
         ((NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE))
@@ -168,8 +245,6 @@ public class MessageNotifier {
         return;
       }
 
-      NotificationState notificationState = constructNotificationState(context, masterSecret, telcoCursor);
-
       if (includePushDatabase) {
         appendPushNotificationState(context, notificationState, pushCursor);
       }
@@ -186,8 +261,7 @@ public class MessageNotifier {
         scheduleReminder(context, reminderCount);
       }
     } finally {
-      if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
+      if (pushCursor != null) pushCursor.close();
     }
   }
 
@@ -331,52 +405,6 @@ public class MessageNotifier {
     }
   }
 
-  private static NotificationState constructNotificationState(@NonNull  Context context,
-                                                              @Nullable MasterSecret masterSecret,
-                                                              @NonNull  Cursor cursor)
-  {
-    NotificationState notificationState = new NotificationState();
-    MessageRecord record;
-    MmsSmsDatabase.Reader reader;
-
-    if (masterSecret == null) reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
-    else                      reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor, masterSecret);
-
-    while ((record = reader.getNext()) != null) {
-      Recipient    recipient        = record.getIndividualRecipient();
-      Recipients   recipients       = record.getRecipients();
-      long         threadId         = record.getThreadId();
-      CharSequence body             = record.getDisplayBody();
-      Recipients   threadRecipients = null;
-      SlideDeck    slideDeck        = null;
-      long         timestamp        = record.getTimestamp();
-      
-
-      if (threadId != -1) {
-        threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
-      }
-
-      if (SmsDatabase.Types.isDecryptInProgressType(record.getType()) || !record.getBody().isPlaintext()) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
-      } else if (record.isMms() && TextUtils.isEmpty(body)) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      } else if (record.isMms() && !record.isMmsNotification()) {
-        String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
-        int    italicLength = message.length() - body.length();
-        body = SpanUtil.italic(message, italicLength);
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      }
-
-      if (threadRecipients == null || !threadRecipients.isMuted()) {
-        notificationState.addNotification(new NotificationItem(recipient, recipients, threadRecipients, threadId, body, timestamp, slideDeck));
-      }
-    }
-
-    reader.close();
-    return notificationState;
-  }
-
   private static void updateBadge(Context context, int count) {
     try {
       ShortcutBadger.setBadge(context.getApplicationContext(), count);
@@ -409,6 +437,37 @@ public class MessageNotifier {
     alarmManager.cancel(pendingIntent);
   }
 
+  private static class PendingUpdate {
+    private final Context context;
+
+    private MasterSecret masterSecret;
+    private boolean      signal;
+    private boolean      includePushDatabase;
+    private int          reminderCount;
+
+    private PendingUpdate(Context context, MasterSecret masterSecret, boolean signal,
+                          boolean includePushDatabase, int reminderCount)
+    {
+      this.context             = context;
+      this.masterSecret        = masterSecret;
+      this.signal              = signal;
+      this.includePushDatabase = includePushDatabase;
+      this.reminderCount       = reminderCount;
+    }
+
+    private void merge(MasterSecret masterSecret, boolean signal,
+                       boolean includePushDatabase, int reminderCount)
+    {
+      if (signal) {
+        this.reminderCount = this.signal ? Math.min(this.reminderCount, reminderCount) : reminderCount;
+      }
+
+      this.masterSecret         = masterSecret;
+      this.signal              |= signal;
+      this.includePushDatabase |= includePushDatabase;
+    }
+  }
+
   public static class ReminderReceiver extends BroadcastReceiver {
 
     public static final String REMINDER_ACTION = "org.thoughtcrime.securesms.MessageNotifier.REMINDER_ACTION";
@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.notifications;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsColumns;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.SmsDatabase;
+import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.mms.SlideDeck;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.Recipients;
+import org.thoughtcrime.securesms.util.SpanUtil;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the notification items for unread messages between notification updates, so
+ * that an update only has to read and decrypt the messages that arrived (or changed
+ * type) since the last one.  Messages that have been read simply drop out.
+ *
+ * Everything is rebuilt from scratch on the first update and whenever the master
+ * secret changes, since items built while locked have placeholder bodies.  Not
+ * thread safe; {@link MessageNotifier} only touches it from its update thread.
+ */
+class NotificationStateCache {
+
+  private static final String TAG = NotificationStateCache.class.getSimpleName();
+
+  private Map<String, CachedItem> items        = new HashMap<>();
+  private MasterSecret            masterSecret = null;
+  private boolean                 initialized  = false;
+
+  public @NonNull NotificationState getNotificationState(@NonNull Context context, @Nullable MasterSecret masterSecret) {
+    if (!initialized || this.masterSecret != masterSecret) {
+      this.items        = new HashMap<>();
+      this.masterSecret = masterSecret;
+      this.initialized  = true;
+    }
+
+    Map<String, String>     unread  = getUnreadKeys(context);
+    Map<String, CachedItem> current = new HashMap<>(unread.size());
+    Map<String, String>     missing = new HashMap<>();
+
+    for (Map.Entry<String, String> entry : unread.entrySet()) {
+      CachedItem item = items.get(entry.getValue());
+
+      if (item != null) current.put(entry.getValue(), item);
+      else              missing.put(entry.getKey(), entry.getValue());
+    }
+
+    if (!missing.isEmpty()) {
+      Log.w(TAG, "Reading " + missing.size() + " of " + unread.size() + " unread messages");
+      current.putAll(readItems(context, masterSecret, missing));
+    }
+
+    items = current;
+
+    NotificationState notificationState = new NotificationState();
+
+    for (String key : unread.values()) {
+      CachedItem item = items.get(key);
+
+      if (item != null && (item.threadRecipients == null || !item.threadRecipients.isMuted())) {
+        notificationState.addNotification(item.notificationItem);
+      }
+    }
+
+    return notificationState;
+  }
+
+  /**
+   * @return Unique row ids of the unread messages mapped to their cache keys, oldest first.
+   */
+  private @NonNull Map<String, String> getUnreadKeys(@NonNull Context context) {
+    Map<String, String> keys   = new LinkedHashMap<>();
+    Cursor              cursor = null;
+
+    try {
+      cursor = DatabaseFactory.getMmsSmsDatabase(context).getUnreadKeys();
+
+      int rowIdColumn      = cursor.getColumnIndexOrThrow(MmsSmsColumns.UNIQUE_ROW_ID);
+      int typeColumn       = cursor.getColumnIndexOrThrow(SmsDatabase.TYPE);
+      int messageBoxColumn = cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX);
+
+      while (cursor.moveToNext()) {
+        String uniqueRowId = cursor.getString(rowIdColumn);
+        keys.put(uniqueRowId, uniqueRowId + "::" + cursor.getString(typeColumn) + "::" + cursor.getString(messageBoxColumn));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return keys;
+  }
+
+  private @NonNull Map<String, CachedItem> readItems(@NonNull  Context context,
+                                                     @Nullable MasterSecret masterSecret,
+                                                     @NonNull  Map<String, String> keys)
+  {
+    Map<String, CachedItem> results          = new HashMap<>(keys.size());
+    Map<Long, Recipients>   threadRecipients = new HashMap<>();
+    MmsSmsDatabase          database         = DatabaseFactory.getMmsSmsDatabase(context);
+    Cursor                  cursor           = database.getUnread(keys.keySet());
+    MmsSmsDatabase.Reader   reader;
+    MessageRecord           record;
+
+    if (masterSecret == null) reader = database.readerFor(cursor);
+    else                      reader = database.readerFor(cursor, masterSecret);
+
+    int rowIdColumn = cursor.getColumnIndexOrThrow(MmsSmsColumns.UNIQUE_ROW_ID);
+
+    try {
+      while ((record = reader.getNext()) != null) {
+        String key = keys.get(cursor.getString(rowIdColumn));
+        if (key == null) continue;
+
+        long       threadId   = record.getThreadId();
+        Recipients recipients = null;
+
+        if (threadId != -1) {
+          if (threadRecipients.containsKey(threadId)) {
+            recipients = threadRecipients.get(threadId);
+          } else {
+            recipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
+            threadRecipients.put(threadId, recipients);
+          }
+        }
+
+        results.put(key, new CachedItem(createNotificationItem(context, record, recipients), recipients));
+      }
+    } finally {
+      reader.close();
+    }
+
+    return results;
+  }
+
+  private @NonNull NotificationItem createNotificationItem(@NonNull  Context context,
+                                                           @NonNull  MessageRecord record,
+                                                           @Nullable Recipients threadRecipients)
+  {
+    Recipient    recipient  = record.getIndividualRecipient();
+    Recipients   recipients = record.getRecipients();
+    long         threadId   = record.getThreadId();
+    CharSequence body       = record.getDisplayBody();
+    SlideDeck    slideDeck  = null;
+    long         timestamp  = record.getTimestamp();
+
+    if (SmsDatabase.Types.isDecryptInProgressType(record.getType()) || !record.getBody().isPlaintext()) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
+    } else if (record.isMms() && TextUtils.isEmpty(body)) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    } else if (record.isMms() && !record.isMmsNotification()) {
+      String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
+      int    italicLength = message.length() - body.length();
+      body = SpanUtil.italic(message, italicLength);
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    }
+
+    return new NotificationItem(recipient, recipients, threadRecipients, threadId, body, timestamp, slideDeck);
+  }
+
+  private static class CachedItem {
+    private final @NonNull  NotificationItem notificationItem;
+    private final @Nullable Recipients       threadRecipients;
+
+    private CachedItem(@NonNull NotificationItem notificationItem, @Nullable Recipients threadRecipients) {
+      this.notificationItem = notificationItem;
+      this.threadRecipients = threadRecipients;
+    }
+  }
+}
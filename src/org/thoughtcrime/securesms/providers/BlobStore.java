@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.providers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.DecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.EncryptingPartOutputStream;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.util.ThreadUtil;
+import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.VisibleForTesting;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps blobs in memory up to a total byte budget, backed by encrypted files.
+ *
+ * A blob is either written behind on a small shared pool of writers, or only written
+ * once it is evicted.  Whenever the budget is exceeded, the oldest blobs are written out
+ * on the same writers, so that callers on the UI thread never encrypt or touch the disk.
+ * A blob stays readable from memory until its file is complete, and one whose write
+ * fails stays in memory until a later eviction manages to write it.
+ *
+ * Blobs are written to a temporary file that only takes the blob's name if the blob is
+ * still the one stored under its id, so a write that lost a race with a delete or a
+ * replacement never clobbers the current file.  Streams are copied on their own
+ * threads, since they can block for as long as their source does.
+ */
+class BlobStore {
+
+  private static final String TAG = BlobStore.class.getSimpleName();
+
+  private static final int MAX_WRITERS = 2;
+
+  private static final ExecutorService sharedWriters = ThreadUtil.newDynamicFixedThreadPool(MAX_WRITERS);
+  private static final ExecutorService streamCopiers = Executors.newCachedThreadPool();
+
+  private final File             directory;
+  private final String           extension;
+  private final long             maxBytes;
+  private final Executor         writers;
+  private final Map<Long, Entry> entries = new LinkedHashMap<>();
+
+  private long    memoryBytes;
+  private boolean evictionScheduled;
+
+  public BlobStore(@NonNull File directory, @NonNull String extension, long maxBytes) {
+    this(directory, extension, maxBytes, sharedWriters);
+  }
+
+  @VisibleForTesting
+  BlobStore(@NonNull File directory, @NonNull String extension, long maxBytes,
+            @NonNull Executor writers)
+  {
+    this.directory = directory;
+    this.extension = extension;
+    this.maxBytes  = maxBytes;
+    this.writers   = writers;
+  }
+
+  /**
+   * Adds a blob, writing it out on the shared writers if writeBehind is set, and
+   * otherwise only if it has to be evicted.  A blob already stored under the same id
+   * is replaced.
+   */
+  public void put(@NonNull MasterSecret masterSecret, long id, @NonNull byte[] blob, boolean writeBehind) {
+    final Entry entry = new Entry(masterSecret, blob);
+
+    synchronized (this) {
+      Entry replaced = entries.put(id, entry);
+      if (replaced != null) memoryBytes -= replaced.blob.length;
+      memoryBytes += blob.length;
+    }
+
+    if (writeBehind) {
+      final long entryId = id;
+
+      writers.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (claim(entry)) write(entryId, entry);
+        }
+      });
+    }
+
+    scheduleEviction();
+  }
+
+  /**
+   * Writes a stream straight to disk on a thread of its own, without holding it in memory.
+   */
+  public void put(@NonNull final MasterSecret masterSecret, final long id, @NonNull final InputStream input) {
+    streamCopiers.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Log.w(TAG, "Starting stream copy....");
+          Util.copy(input, new EncryptingPartOutputStream(getFile(id), masterSecret));
+          Log.w(TAG, "Stream copy finished...");
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+      }
+    });
+  }
+
+  public @NonNull InputStream getStream(@NonNull MasterSecret masterSecret, long id) throws IOException {
+    synchronized (this) {
+      Entry entry = entries.get(id);
+
+      if (entry != null) {
+        return new ByteArrayInputStream(entry.blob);
+      }
+    }
+
+    File file = getFile(id);
+
+    if (!file.exists()) {
+      throw new IOException("ID not found: " + id);
+    }
+
+    return new DecryptingPartInputStream(file, masterSecret);
+  }
+
+  public boolean delete(long id) {
+    synchronized (this) {
+      Entry entry = entries.remove(id);
+      if (entry != null) memoryBytes -= entry.blob.length;
+
+      return getFile(id).delete();
+    }
+  }
+
+  public void clear() {
+    synchronized (this) {
+      entries.clear();
+      memoryBytes = 0;
+    }
+
+    File[] files = directory.listFiles();
+
+    if (files != null) {
+      for (File file : files) {
+        if (!file.delete()) Log.w(TAG, "Failed to delete " + file.getName());
+      }
+    }
+  }
+
+  public @NonNull File getFile(long id) {
+    return new File(directory, id + extension);
+  }
+
+  @VisibleForTesting
+  synchronized long getMemoryBytes() {
+    return memoryBytes;
+  }
+
+  private void scheduleEviction() {
+    synchronized (this) {
+      if (evictionScheduled || memoryBytes <= maxBytes) return;
+      evictionScheduled = true;
+    }
+
+    writers.execute(new Runnable() {
+      @Override
+      public void run() {
+        evictOverBudget();
+      }
+    });
+  }
+
+  private void evictOverBudget() {
+    Map.Entry<Long, Entry> eldest;
+
+    while ((eldest = claimEldestOverBudget()) != null) {
+      Log.w(TAG, "Over budget, evicting " + eldest.getKey());
+
+      if (!write(eldest.getKey(), eldest.getValue())) {
+        synchronized (this) {
+          evictionScheduled = false;
+        }
+
+        return;
+      }
+    }
+  }
+
+  private synchronized @Nullable Map.Entry<Long, Entry> claimEldestOverBudget() {
+    if (memoryBytes <= maxBytes) {
+      evictionScheduled = false;
+      return null;
+    }
+
+    Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+
+    while (iterator.hasNext()) {
+      Map.Entry<Long, Entry> eldest = iterator.next();
+
+      if (claim(eldest.getValue())) {
+        return eldest;
+      }
+    }
+
+    evictionScheduled = false;
+    return null;
+  }
+
+  private synchronized boolean claim(@NonNull Entry entry) {
+    if (entry.claimed) return false;
+
+    entry.claimed = true;
+    return true;
+  }
+
+  private synchronized void unclaim(@NonNull Entry entry) {
+    entry.claimed = false;
+  }
+
+  /**
+   * @return false if the blob couldn't be written, in which case it's unclaimed and
+   * left in memory.
+   */
+  private boolean write(long id, @NonNull Entry entry) {
+    File temp = null;
+
+    try {
+      temp = File.createTempFile(id + "-", ".tmp", directory);
+      Util.copy(new ByteArrayInputStream(entry.blob), new EncryptingPartOutputStream(temp, entry.masterSecret));
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      if (temp != null && !temp.delete()) Log.w(TAG, "Failed to delete partial file for " + id);
+      unclaim(entry);
+      return false;
+    }
+
+    synchronized (this) {
+      if (entries.get(id) == entry) {
+        if (!temp.renameTo(getFile(id))) {
+          Log.w(TAG, "Failed to rename file for blob " + id);
+          if (!temp.delete()) Log.w(TAG, "Failed to delete partial file for " + id);
+          entry.claimed = false;
+          return false;
+        }
+
+        entries.remove(id);
+        memoryBytes -= entry.blob.length;
+        return true;
+      }
+    }
+
+    if (!temp.delete()) {
+      Log.w(TAG, "Failed to delete file for removed blob " + id);
+    }
+
+    return true;
+  }
+
+  private static class Entry {
+    private final MasterSecret masterSecret;
+    private final byte[]       blob;
+
+    private boolean claimed;
+
+    private Entry(@NonNull MasterSecret masterSecret, @NonNull byte[] blob) {
+      this.masterSecret = masterSecret;
+      this.blob         = blob;
+    }
+  }
+}
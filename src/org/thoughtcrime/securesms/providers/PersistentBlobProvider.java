@@ -5,25 +5,14 @@ import android.content.Context;
 import android.content.UriMatcher;
 import android.net.Uri;
 import android.support.annotation.NonNull;
-import android.util.Log;
 
-import org.thoughtcrime.securesms.crypto.DecryptingPartInputStream;
-import org.thoughtcrime.securesms.crypto.EncryptingPartOutputStream;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.recipients.Recipients;
-import org.thoughtcrime.securesms.util.Util;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class PersistentBlobProvider {
 
@@ -51,50 +40,46 @@ public class PersistentBlobProvider {
     return instance;
   }
 
-  private final Context context;
-  private final Map<Long, byte[]> cache    = Collections.synchronizedMap(new HashMap<Long, byte[]>());
-  private final ExecutorService   executor = Executors.newCachedThreadPool();
+  private static final long MAX_CACHE_BYTES = 8 * 1024 * 1024;
+
+  private final Context   context;
+  private final BlobStore store;
+
+  private long lastId;
 
   private PersistentBlobProvider(Context context) {
     this.context = context.getApplicationContext();
+    this.store   = new BlobStore(context.getDir("captures", Context.MODE_PRIVATE), ".jpg", MAX_CACHE_BYTES);
   }
 
   public Uri create(@NonNull MasterSecret masterSecret,
                     @NonNull byte[] imageBytes)
   {
-    final long id = System.currentTimeMillis();
-    cache.put(id, imageBytes);
-    return create(masterSecret, new ByteArrayInputStream(imageBytes), id);
+    final long id = nextId();
+    store.put(masterSecret, id, imageBytes, true);
+    return getUri(id);
   }
 
   public Uri create(@NonNull MasterSecret masterSecret,
                     @NonNull InputStream input)
   {
-    return create(masterSecret, input, System.currentTimeMillis());
+    final long id = nextId();
+    store.put(masterSecret, id, input);
+    return getUri(id);
   }
 
-  private Uri create(MasterSecret masterSecret, InputStream input, long id) {
-    persistToDisk(masterSecret, id, input);
-    final Uri uniqueUri = Uri.withAppendedPath(CONTENT_URI, String.valueOf(System.currentTimeMillis()));
-    return ContentUris.withAppendedId(uniqueUri, id);
+  /**
+   * Ids are capture times, bumped past the last one handed out so that a burst of
+   * captures within the same millisecond doesn't reuse one.
+   */
+  private synchronized long nextId() {
+    lastId = Math.max(System.currentTimeMillis(), lastId + 1);
+    return lastId;
   }
 
-  private void persistToDisk(final MasterSecret masterSecret, final long id, final InputStream input) {
-    executor.submit(new Runnable() {
-      @Override
-      public void run() {
-        try {
-          OutputStream output = new EncryptingPartOutputStream(getFile(id), masterSecret);
-          Log.w(TAG, "Starting stream copy....");
-          Util.copy(input, output);
-          Log.w(TAG, "Stream copy finished...");
-        } catch (IOException e) {
-          Log.w(TAG, e);
-        }
-
-        cache.remove(id);
-      }
-    });
+  private Uri getUri(long id) {
+    final Uri uniqueUri = Uri.withAppendedPath(CONTENT_URI, String.valueOf(System.currentTimeMillis()));
+    return ContentUris.withAppendedId(uniqueUri, id);
   }
 
   public Uri createForExternal() throws IOException {
@@ -106,22 +91,14 @@ public class PersistentBlobProvider {
   public boolean delete(@NonNull Uri uri) {
     switch (MATCHER.match(uri)) {
     case MATCH:
-      long id = ContentUris.parseId(uri);
-      cache.remove(id);
-      return getFile(ContentUris.parseId(uri)).delete();
+      return store.delete(ContentUris.parseId(uri));
     default:
       return new File(uri.getPath()).delete();
     }
   }
 
   public @NonNull InputStream getStream(MasterSecret masterSecret, long id) throws IOException {
-    final byte[] cached = cache.get(id);
-    return cached != null ? new ByteArrayInputStream(cached)
-                          : new DecryptingPartInputStream(getFile(id), masterSecret);
-  }
-
-  private File getFile(long id) {
-    return new File(context.getDir("captures", Context.MODE_PRIVATE), id + ".jpg");
+    return store.getStream(masterSecret, id);
   }
 
   private static @NonNull File getExternalDir(Context context) throws IOException {
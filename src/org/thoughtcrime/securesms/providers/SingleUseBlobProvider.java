@@ -8,22 +8,18 @@ import android.os.AsyncTask;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
-import org.thoughtcrime.securesms.crypto.DecryptingPartInputStream;
-import org.thoughtcrime.securesms.crypto.EncryptingPartOutputStream;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.recipients.Recipients;
-import org.thoughtcrime.securesms.util.Util;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.SecretKeySpec;
 
 public class SingleUseBlobProvider {
 
@@ -33,20 +29,40 @@ public class SingleUseBlobProvider {
   public  static final String PATH        = "memory/*/#";
   private static final Uri    CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/memory");
 
-  private final Map<Long, byte[]> cache = new HashMap<>();
+  private static final long MAX_CACHE_BYTES = 4 * 1024 * 1024;
 
-  private static final SingleUseBlobProvider instance = new SingleUseBlobProvider();
+  private static volatile SingleUseBlobProvider instance;
 
-  public static SingleUseBlobProvider getInstance() {
+  public static SingleUseBlobProvider getInstance(Context context) {
+    if (instance == null) {
+      synchronized (SingleUseBlobProvider.class) {
+        if (instance == null) {
+          instance = new SingleUseBlobProvider(context);
+        }
+      }
+    }
     return instance;
   }
 
-  private SingleUseBlobProvider() {}
+  private final BlobStore    store;
+  private final MasterSecret spillSecret;
+
+  /**
+   * Blobs that don't fit in memory are spilled to disk under a key that only lives as
+   * long as the process, so anything left behind by an earlier process is unreadable
+   * and is cleared out here.
+   */
+  private SingleUseBlobProvider(Context context) {
+    this.store       = new BlobStore(context.getApplicationContext().getDir("single_use", Context.MODE_PRIVATE), ".blob", MAX_CACHE_BYTES);
+    this.spillSecret = generateSpillSecret();
 
-  public synchronized Uri createUri(@NonNull byte[] blob) {
+    store.clear();
+  }
+
+  public Uri createUri(@NonNull byte[] blob) {
     try {
       long id = Math.abs(SecureRandom.getInstance("SHA1PRNG").nextLong());
-      cache.put(id, blob);
+      store.put(spillSecret, id, blob, false);
 
       Uri uniqueUri = Uri.withAppendedPath(CONTENT_URI, String.valueOf(System.currentTimeMillis()));
       return ContentUris.withAppendedId(uniqueUri, id);
@@ -56,12 +72,24 @@ public class SingleUseBlobProvider {
   }
 
   public synchronized @NonNull InputStream getStream(long id) throws IOException {
-    byte[] cached = cache.get(id);
-    cache.remove(id);
+    InputStream stream = store.getStream(spillSecret, id);
+    store.delete(id);
+
+    return stream;
+  }
+
+  private static @NonNull MasterSecret generateSpillSecret() {
+    try {
+      KeyGenerator encryptionGenerator = KeyGenerator.getInstance("AES");
+      KeyGenerator macGenerator        = KeyGenerator.getInstance("HmacSHA1");
 
-    if (cached != null) return new ByteArrayInputStream(cached);
-    else                throw new IOException("ID not found: " + id);
+      encryptionGenerator.init(128);
 
+      return new MasterSecret(new SecretKeySpec(encryptionGenerator.generateKey().getEncoded(), "AES"),
+                              new SecretKeySpec(macGenerator.generateKey().getEncoded(), "HmacSHA1"));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
   }
 
 }
@@ -0,0 +1,272 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.push;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.thoughtcrime.securesms.util.Base64;
+import org.thoughtcrime.securesms.util.JsonUtils;
+import org.whispersystems.textsecure.api.messages.TextSecureAttachment.ProgressListener;
+import org.whispersystems.textsecure.api.push.TrustStore;
+import org.whispersystems.textsecure.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
+import org.whispersystems.textsecure.api.util.CredentialsProvider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Downloads attachment ciphertext into a partial file, picking up from the end of
+ * whatever an earlier attempt left there with an HTTP Range request.
+ *
+ * The message receiver always downloads from the first byte, so this resolves the
+ * attachment's location itself and fetches it directly.  The caller verifies the
+ * completed file.
+ */
+public class ResumableAttachmentDownloader {
+
+  private static final String TAG = ResumableAttachmentDownloader.class.getSimpleName();
+
+  private static final String ATTACHMENT_PATH = "/v1/attachments/%d";
+
+  private static final int HTTP_OK                    = 200;
+  private static final int HTTP_PARTIAL_CONTENT       = 206;
+  private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+  private final String              serviceUrl;
+  private final CredentialsProvider credentialsProvider;
+  private final OkHttpClient        serviceClient;
+  private final OkHttpClient        downloadClient;
+
+  public ResumableAttachmentDownloader(@NonNull String serviceUrl,
+                                       @NonNull TrustStore trustStore,
+                                       @NonNull CredentialsProvider credentialsProvider)
+  {
+    try {
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, getTrustManagers(trustStore), null);
+
+      this.serviceUrl          = serviceUrl;
+      this.credentialsProvider = credentialsProvider;
+      this.serviceClient       = new OkHttpClient().setSslSocketFactory(context.getSocketFactory());
+      this.downloadClient      = new OkHttpClient();
+    } catch (NoSuchAlgorithmException | KeyManagementException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Appends the rest of the attachment to the destination.  A network failure leaves
+   * what was received so far in place for the next attempt.  If the server resumes
+   * from anywhere other than the end of the destination, it's truncated and the
+   * download starts over.
+   */
+  public void download(long attachmentId, @Nullable String relay, @NonNull File destination,
+                       @Nullable ProgressListener listener)
+      throws IOException
+  {
+    String   location = getLocation(attachmentId, relay);
+    long     offset   = destination.length();
+    Response response = requestFrom(location, offset);
+
+    if (response.code() == HTTP_PARTIAL_CONTENT && getRangeStart(response) != offset && offset > 0) {
+      Log.w(TAG, "Asked to resume at " + offset + ", got " + response.header("Content-Range") + ", restarting");
+      response.body().close();
+
+      new FileOutputStream(destination, false).close();
+      offset   = 0;
+      response = requestFrom(location, offset);
+    }
+
+    try {
+      switch (response.code()) {
+      case HTTP_PARTIAL_CONTENT:
+        if (getRangeStart(response) != offset) {
+          throw new NonSuccessfulResponseCodeException("Unexpected range: " + response.header("Content-Range"));
+        }
+
+        Log.w(TAG, "Resuming download at " + offset);
+        break;
+      case HTTP_OK:
+        offset = 0;
+        break;
+      case HTTP_RANGE_NOT_SATISFIABLE:
+        if (offset > 0) {
+          Log.w(TAG, "Nothing left to download past " + offset);
+          return;
+        }
+
+        throw new NonSuccessfulResponseCodeException("Bad response: " + response.code());
+      default:
+        throw new NonSuccessfulResponseCodeException("Bad response: " + response.code());
+      }
+
+      long         length = response.body().contentLength();
+      long         total  = length < 0 ? -1 : offset + length;
+      InputStream  in     = response.body().byteStream();
+      OutputStream out    = new FileOutputStream(destination, offset > 0);
+
+      try {
+        copy(in, out, offset, total, listener);
+      } finally {
+        out.close();
+      }
+    } finally {
+      response.body().close();
+    }
+  }
+
+  private @NonNull Response requestFrom(@NonNull String location, long offset) throws PushNetworkException {
+    Request request = new Request.Builder().url(location)
+                                           .header("Range", "bytes=" + offset + "-")
+                                           .build();
+
+    return execute(downloadClient, request);
+  }
+
+  /**
+   * @return The first byte of a partial response, from its "bytes first-last/total"
+   * Content-Range header, or -1 if it doesn't have one.
+   */
+  private static long getRangeStart(@NonNull Response response) {
+    String contentRange = response.header("Content-Range");
+
+    if (contentRange == null || !contentRange.startsWith("bytes ")) {
+      return -1;
+    }
+
+    int dash = contentRange.indexOf('-');
+
+    if (dash < 0) {
+      return -1;
+    }
+
+    try {
+      return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+    } catch (NumberFormatException e) {
+      Log.w(TAG, e);
+      return -1;
+    }
+  }
+
+  private @NonNull String getLocation(long attachmentId, @Nullable String relay) throws IOException {
+    String path = String.format(ATTACHMENT_PATH, attachmentId);
+
+    if (!TextUtils.isEmpty(relay)) {
+      path += "?relay=" + relay;
+    }
+
+    String   credentials = credentialsProvider.getUser() + ":" + credentialsProvider.getPassword();
+    Request  request     = new Request.Builder().url(serviceUrl + path)
+                                                .header("Authorization", "Basic " + Base64.encodeBytes(credentials.getBytes()))
+                                                .build();
+    Response response    = execute(serviceClient, request);
+
+    if (!response.isSuccessful()) {
+      throw new NonSuccessfulResponseCodeException("Bad response: " + response.code());
+    }
+
+    AttachmentDescriptor descriptor = JsonUtils.fromJson(response.body().string(), AttachmentDescriptor.class);
+
+    if (TextUtils.isEmpty(descriptor.getLocation())) {
+      throw new NonSuccessfulResponseCodeException("No attachment location");
+    }
+
+    return descriptor.getLocation();
+  }
+
+  private static @NonNull Response execute(@NonNull OkHttpClient client, @NonNull Request request)
+      throws PushNetworkException
+  {
+    try {
+      return client.newCall(request).execute();
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    }
+  }
+
+  private static void copy(@NonNull InputStream in, @NonNull OutputStream out, long offset, long total,
+                           @Nullable ProgressListener listener)
+      throws IOException
+  {
+    byte[] buffer   = new byte[4096];
+    long   progress = offset;
+    int    read;
+
+    while ((read = readNetwork(in, buffer)) != -1) {
+      out.write(buffer, 0, read);
+      progress += read;
+
+      if (listener != null) {
+        listener.onAttachmentProgress(total, progress);
+      }
+    }
+  }
+
+  private static int readNetwork(@NonNull InputStream in, @NonNull byte[] buffer) throws PushNetworkException {
+    try {
+      return in.read(buffer);
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    }
+  }
+
+  private static TrustManager[] getTrustManagers(@NonNull TrustStore trustStore) {
+    try {
+      InputStream keyStoreInputStream = trustStore.getKeyStoreInputStream();
+      KeyStore    keyStore            = KeyStore.getInstance("BKS");
+
+      keyStore.load(keyStoreInputStream, trustStore.getKeyStorePassword().toCharArray());
+
+      TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("X509");
+      trustManagerFactory.init(keyStore);
+
+      return trustManagerFactory.getTrustManagers();
+    } catch (KeyStoreException | CertificateException | IOException | NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static class AttachmentDescriptor {
+    @JsonProperty
+    private String location;
+
+    public String getLocation() {
+      return location;
+    }
+  }
+}
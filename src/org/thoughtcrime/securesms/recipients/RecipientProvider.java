@@ -19,6 +19,8 @@ package org.thoughtcrime.securesms.recipients;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 import android.support.annotation.NonNull;
@@ -34,28 +36,38 @@ import org.thoughtcrime.securesms.database.CanonicalAddressDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.RecipientPreferenceDatabase.RecipientsPreferences;
+import org.thoughtcrime.securesms.util.ClockCache;
 import org.thoughtcrime.securesms.util.GroupUtil;
-import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.LinkedBlockingLifoQueue;
 import org.thoughtcrime.securesms.util.ListenableFutureTask;
 import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libaxolotl.util.guava.Optional;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class RecipientProvider {
 
   private static final String TAG = RecipientProvider.class.getSimpleName();
 
-  private static final RecipientCache  recipientCache         = new RecipientCache();
-  private static final RecipientsCache recipientsCache        = new RecipientsCache();
-  private static final ExecutorService asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final int RESOLVER_THREADS = 3;
+  private static final int BATCH_SIZE       = 20;
+
+  private static final ClockCache<Long, Recipient>          recipientCache         = new ClockCache<>(1000);
+  private static final ClockCache<RecipientIds, Recipients> recipientsCache        = new ClockCache<>(2000);
+  private static final BlockingQueue<RecipientDetailsTask>  pendingDetails         = new LinkedBlockingLifoQueue<>();
+  private static final ExecutorService                      asyncRecipientResolver = newResolver();
 
   private static final String[] CALLER_ID_PROJECTION = new String[] {
     PhoneLookup.DISPLAY_NAME,
@@ -64,6 +76,14 @@ public class RecipientProvider {
     PhoneLookup.NUMBER
   };
 
+  private static final String[] BATCH_CALLER_ID_PROJECTION = new String[] {
+    Phone.DISPLAY_NAME,
+    Phone.LOOKUP_KEY,
+    Phone.CONTACT_ID,
+    Phone.NUMBER,
+    Phone.NORMALIZED_NUMBER
+  };
+
   private static final Map<String, RecipientDetails> STATIC_DETAILS = new HashMap<String, RecipientDetails>() {{
     put("262966", new RecipientDetails("Amazon", "262966", null,
                                        ContactPhotoFactory.getResourceContactPhoto(R.drawable.ic_amazon),
@@ -82,7 +102,7 @@ public class RecipientProvider {
       cachedRecipient = new Recipient(recipientId, getRecipientDetailsSync(context, recipientId, number));
     }
 
-    recipientCache.set(recipientId, cachedRecipient);
+    recipientCache.put(recipientId, cachedRecipient);
     return cachedRecipient;
   }
 
@@ -99,29 +119,124 @@ public class RecipientProvider {
     if (asynchronous) cachedRecipients = new Recipients(recipientList, cachedRecipients, getRecipientsPreferencesAsync(context, recipientIds));
     else              cachedRecipients = new Recipients(recipientList, getRecipientsPreferencesSync(context, recipientIds));
 
-    recipientsCache.set(new RecipientIds(recipientIds), cachedRecipients);
+    recipientsCache.put(new RecipientIds(recipientIds), cachedRecipients, Math.max(recipientIds.length, 1));
     return cachedRecipients;
   }
 
   void clearCache() {
-    recipientCache.reset();
-    recipientsCache.reset();
+    for (Recipient recipient : recipientCache.values()) {
+      recipient.setStale();
+    }
+
+    for (Recipients recipients : recipientsCache.values()) {
+      recipients.setStale();
+    }
   }
 
   private @NonNull ListenableFutureTask<RecipientDetails> getRecipientDetailsAsync(final Context context,
                                                                                    final long recipientId,
                                                                                    final @NonNull String number)
   {
-    Callable<RecipientDetails> task = new Callable<RecipientDetails>() {
+    Callable<RecipientDetails> callable = new Callable<RecipientDetails>() {
       @Override
       public RecipientDetails call() throws Exception {
         return getRecipientDetailsSync(context, recipientId, number);
       }
     };
 
-    ListenableFutureTask<RecipientDetails> future = new ListenableFutureTask<>(task);
-    asyncRecipientResolver.submit(future);
-    return future;
+    RecipientDetailsTask task = new RecipientDetailsTask(callable, context, recipientId, number);
+
+    pendingDetails.add(task);
+    asyncRecipientResolver.execute(new Runnable() {
+      @Override
+      public void run() {
+        resolvePendingDetails();
+      }
+    });
+
+    return task;
+  }
+
+  /**
+   * Takes up to {@link #BATCH_SIZE} of the most recently requested recipients that
+   * haven't been picked up by another resolver thread yet, and looks up all of the
+   * individual (non-group) ones with a single contacts query.
+   */
+  private void resolvePendingDetails() {
+    List<RecipientDetailsTask> batch       = new LinkedList<>();
+    List<RecipientDetailsTask> individuals = new LinkedList<>();
+
+    pendingDetails.drainTo(batch, BATCH_SIZE);
+
+    for (RecipientDetailsTask task : batch) {
+      if (GroupUtil.isEncodedGroup(task.number)) {
+        task.run();
+      } else {
+        individuals.add(task);
+      }
+    }
+
+    if (individuals.isEmpty()) return;
+
+    Map<String, RecipientDetails> details = getIndividualRecipientDetails(individuals.get(0).context, individuals);
+
+    for (RecipientDetailsTask task : individuals) {
+      RecipientDetails result = details.get(task.number);
+
+      if (result != null) task.complete(result);
+      else                task.run();
+    }
+  }
+
+  /**
+   * Looks up the contacts for several numbers at once by their normalized form.  Numbers
+   * that aren't matched this way are left out of the result, and get resolved one at a
+   * time through {@link PhoneLookup}, which can match less strictly.
+   */
+  private @NonNull Map<String, RecipientDetails> getIndividualRecipientDetails(Context context, List<RecipientDetailsTask> tasks) {
+    Map<String, RecipientDetails> results = new HashMap<>();
+
+    if (Build.VERSION.SDK_INT < 16 || tasks.size() < 2) {
+      return results;
+    }
+
+    Map<String, RecipientDetailsTask> byNumber = new HashMap<>();
+
+    for (RecipientDetailsTask task : tasks) {
+      byNumber.put(task.number, task);
+    }
+
+    String[] numbers   = byNumber.keySet().toArray(new String[byNumber.size()]);
+    String   selection = Phone.NORMALIZED_NUMBER + " IN (" + Util.join(Collections.nCopies(numbers.length, "?"), ",") + ")";
+    Cursor   cursor    = null;
+
+    try {
+      cursor = context.getContentResolver().query(Phone.CONTENT_URI, BATCH_CALLER_ID_PROJECTION, selection, numbers, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        String               normalizedNumber = cursor.getString(4);
+        RecipientDetailsTask task             = byNumber.get(normalizedNumber);
+
+        if (task == null || results.containsKey(normalizedNumber)) {
+          continue;
+        }
+
+        Optional<RecipientsPreferences> preferences  = DatabaseFactory.getRecipientPreferenceDatabase(context).getRecipientsPreferences(new long[]{task.recipientId});
+        MaterialColor                   color        = preferences.isPresent() ? preferences.get().getColor() : null;
+        Uri                             contactUri   = Contacts.getLookupUri(cursor.getLong(2), cursor.getString(1));
+        String                          name         = cursor.getString(3).equals(cursor.getString(0)) ? null : cursor.getString(0);
+        ContactPhoto                    contactPhoto = ContactPhotoFactory.getContactPhoto(context,
+                                                                                           Uri.withAppendedPath(Contacts.CONTENT_URI, cursor.getLong(2) + ""),
+                                                                                           name);
+
+        results.put(normalizedNumber, new RecipientDetails(cursor.getString(0), cursor.getString(3), contactUri, contactPhoto, color));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return results;
   }
 
   private @NonNull RecipientDetails getRecipientDetailsSync(Context context, long recipientId, @NonNull String number) {
@@ -227,46 +342,38 @@ public class RecipientProvider {
     }
   }
 
-  private static class RecipientCache {
+  private static class RecipientDetailsTask extends ListenableFutureTask<RecipientDetails> {
 
-    private final Map<Long,Recipient> cache = new LRUCache<>(1000);
+    private final Context context;
+    private final long    recipientId;
+    private final String  number;
 
-    public synchronized Recipient get(long recipientId) {
-      return cache.get(recipientId);
-    }
+    private RecipientDetailsTask(Callable<RecipientDetails> callable, Context context,
+                                 long recipientId, @NonNull String number)
+    {
+      super(callable);
 
-    public synchronized void set(long recipientId, Recipient recipient) {
-      cache.put(recipientId, recipient);
+      this.context     = context;
+      this.recipientId = recipientId;
+      this.number      = number;
     }
 
-    public synchronized void reset() {
-      for (Recipient recipient : cache.values()) {
-        recipient.setStale();
-      }
+    private void complete(RecipientDetails details) {
+      set(details);
     }
-
   }
 
-  private static class RecipientsCache {
-
-    private final Map<RecipientIds,Recipients> cache = new LRUCache<>(1000);
-
-    public synchronized Recipients get(RecipientIds ids) {
-      return cache.get(ids);
-    }
-
-    public synchronized void set(RecipientIds ids, Recipients recipients) {
-      cache.put(ids, recipients);
-    }
-
-    public synchronized void reset() {
-      for (Recipients recipients : cache.values()) {
-        recipients.setStale();
-      }
-    }
-
+  private static ExecutorService newResolver() {
+    return new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS,
+                                  0L, TimeUnit.MILLISECONDS,
+                                  new LinkedBlockingLifoQueue<Runnable>(),
+                                  new ThreadFactory() {
+                                    @Override
+                                    public Thread newThread(@NonNull Runnable runnable) {
+                                      Thread thread = new Thread(runnable, "RecipientResolver");
+                                      thread.setPriority(Thread.MIN_PRIORITY);
+                                      return thread;
+                                    }
+                                  });
   }
-
-
-
-}
\ No newline at end of file
+}
@@ -41,7 +41,9 @@ import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.crypto.InvalidPassphraseException;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.crypto.MasterSecretUtil;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.jobs.MasterSecretDecryptJob;
+import org.thoughtcrime.securesms.jobs.SearchIndexJob;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.util.DynamicLanguage;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
@@ -107,6 +109,8 @@ public class KeyCachingService extends Service {
         ApplicationContext.getInstance(this).getJobManager().add(new MasterSecretDecryptJob(this));
       }
 
+      ApplicationContext.getInstance(this).getJobManager().add(new SearchIndexJob(this));
+
       new AsyncTask<Void, Void, Void>() {
         @Override
         protected Void doInBackground(Void... params) {
@@ -191,6 +195,7 @@ public class KeyCachingService extends Service {
   private void handleClearKey() {
     Log.w("KeyCachingService", "handleClearKey()");
     KeyCachingService.masterSecret = null;
+    DatabaseFactory.getMessageRecordCache(this).clear();
     stopForeground(true);
 
     Intent intent = new Intent(CLEAR_KEY_EVENT);
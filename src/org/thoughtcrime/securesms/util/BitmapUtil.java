@@ -30,6 +30,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -39,38 +40,100 @@ public class BitmapUtil {
   private static final int MAX_COMPRESSION_QUALITY  = 80;
   private static final int MIN_COMPRESSION_QUALITY  = 45;
   private static final int MAX_COMPRESSION_ATTEMPTS = 4;
+  private static final int TRIAL_SCALE              = 2;
+  private static final int MIN_TRIAL_DIMENSION      = 64;
 
+  /**
+   * Scales and JPEG encodes an image to fit within the given constraints.
+   *
+   * The quality is predicted from a trial encode of a downsampled copy, so most images
+   * only need one full size encode.  Every encode reuses the same output buffer.  This
+   * blocks, and gives up with an {@link InterruptedIOException} between encodes if the
+   * calling thread is interrupted.
+   */
   public static <T> byte[] createScaledBytes(Context context, T model, MediaConstraints constraints)
       throws ExecutionException, IOException
   {
-    int    quality  = MAX_COMPRESSION_QUALITY;
-    int    attempts = 0;
-    byte[] bytes;
     Bitmap scaledBitmap = createScaledBitmap(context,
                                              model,
                                              constraints.getImageMaxWidth(context),
                                              constraints.getImageMaxHeight(context));
     try {
-      do {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        scaledBitmap.compress(CompressFormat.JPEG, quality, baos);
-        bytes = baos.toByteArray();
-
-        Log.w(TAG, "iteration with quality " + quality + " size " + (bytes.length / 1024) + "kb");
-        if (quality == MIN_COMPRESSION_QUALITY) break;
-        quality = Math.max((quality * constraints.getImageMaxSize()) / bytes.length, MIN_COMPRESSION_QUALITY);
-      }
-      while (bytes.length > constraints.getImageMaxSize() && attempts++ < MAX_COMPRESSION_ATTEMPTS);
-      if (bytes.length > constraints.getImageMaxSize()) {
-        throw new IOException("Unable to scale image below: " + bytes.length);
+      int                   maxSize  = constraints.getImageMaxSize();
+      ByteArrayOutputStream output   = new ByteArrayOutputStream(maxSize);
+      int                   quality  = predictQuality(scaledBitmap, maxSize, output);
+      int                   attempts = 0;
+
+      while (true) {
+        checkInterrupted();
+
+        output.reset();
+        scaledBitmap.compress(CompressFormat.JPEG, quality, output);
+        attempts++;
+
+        Log.w(TAG, "iteration with quality " + quality + " size " + (output.size() / 1024) + "kb");
+
+        if (output.size() <= maxSize) {
+          break;
+        }
+
+        if (quality == MIN_COMPRESSION_QUALITY || attempts >= MAX_COMPRESSION_ATTEMPTS) {
+          throw new IOException("Unable to scale image below: " + output.size());
+        }
+
+        quality = Math.max(Math.min((quality * maxSize) / output.size(), quality - 1), MIN_COMPRESSION_QUALITY);
       }
-      Log.w(TAG, "createScaledBytes(" + model.toString() + ") -> quality " + Math.min(quality, MAX_COMPRESSION_QUALITY) + ", " + attempts + " attempt(s)");
-      return bytes;
+
+      Log.w(TAG, "createScaledBytes(" + model.toString() + ") -> quality " + quality + ", " + attempts + " attempt(s)");
+      return output.toByteArray();
     } finally {
       if (scaledBitmap != null) scaledBitmap.recycle();
     }
   }
 
+  /**
+   * Encodes a copy of the bitmap with a quarter of its pixels at the maximum quality, and
+   * scales the quality down by how far the full size encode is expected to overshoot.
+   * Encoded size grows a little slower than pixel count, so the estimate errs large.
+   */
+  private static int predictQuality(@NonNull Bitmap bitmap, int maxSize, @NonNull ByteArrayOutputStream output)
+      throws IOException
+  {
+    int width  = bitmap.getWidth()  / TRIAL_SCALE;
+    int height = bitmap.getHeight() / TRIAL_SCALE;
+
+    if (width < MIN_TRIAL_DIMENSION || height < MIN_TRIAL_DIMENSION) {
+      return MAX_COMPRESSION_QUALITY;
+    }
+
+    checkInterrupted();
+
+    Bitmap trial = Bitmap.createScaledBitmap(bitmap, width, height, true);
+
+    try {
+      output.reset();
+      trial.compress(CompressFormat.JPEG, MAX_COMPRESSION_QUALITY, output);
+    } finally {
+      if (trial != bitmap) trial.recycle();
+    }
+
+    long estimate = (long)output.size() * bitmap.getWidth() * bitmap.getHeight() / (width * height);
+
+    Log.w(TAG, "trial encode " + (output.size() / 1024) + "kb, estimated " + (estimate / 1024) + "kb");
+
+    if (estimate <= maxSize) {
+      return MAX_COMPRESSION_QUALITY;
+    }
+
+    return (int)Math.max((MAX_COMPRESSION_QUALITY * maxSize) / estimate, MIN_COMPRESSION_QUALITY);
+  }
+
+  private static void checkInterrupted() throws InterruptedIOException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("Image compression interrupted");
+    }
+  }
+
   public static <T> Bitmap createScaledBitmap(Context context, T model, int maxWidth, int maxHeight)
       throws ExecutionException
   {
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A weight-bounded cache that can be read and written from many threads without
+ * locking.  Unlike an {@link LRUCache}, a read doesn't reorder anything; it only
+ * marks the entry as referenced.  When the total weight passes the maximum, entries
+ * are evicted in insertion order, except that referenced entries get their mark
+ * cleared and a second chance (the CLOCK approximation of LRU).
+ *
+ * Replacing or removing an entry leaves its old node in the clock queue, to be
+ * skipped when the clock reaches it.  Once stale nodes outnumber live ones the
+ * queue is compacted, so it stays proportional to the size of the cache.
+ */
+public class ClockCache<K, V> {
+
+  private static final int MIN_COMPACT_SIZE = 64;
+
+  private final ConcurrentHashMap<K, Node<K, V>>  map    = new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<Node<K, V>> clock  = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger                     weight = new AtomicInteger(0);
+  private final AtomicInteger                     queued = new AtomicInteger(0);
+  private final int                               maxWeight;
+
+  public ClockCache(int maxWeight) {
+    this.maxWeight = maxWeight;
+  }
+
+  public @Nullable V get(@NonNull K key) {
+    Node<K, V> node = map.get(key);
+    if (node == null) return null;
+
+    node.referenced = true;
+    return node.value;
+  }
+
+  public void put(@NonNull K key, @NonNull V value) {
+    put(key, value, 1);
+  }
+
+  public void put(@NonNull K key, @NonNull V value, int weight) {
+    Node<K, V> node     = new Node<>(key, value, weight);
+    Node<K, V> previous = map.put(key, node);
+
+    this.weight.addAndGet(previous != null ? weight - previous.weight : weight);
+    enqueue(node);
+
+    evict();
+
+    if (previous != null) {
+      compactIfStale();
+    }
+  }
+
+  public void remove(@NonNull K key) {
+    Node<K, V> node = map.remove(key);
+
+    if (node != null) {
+      weight.addAndGet(-node.weight);
+      compactIfStale();
+    }
+  }
+
+  public void clear() {
+    for (K key : map.keySet()) {
+      remove(key);
+    }
+
+    compact();
+  }
+
+  public @NonNull Collection<V> values() {
+    List<V> values = new LinkedList<>();
+
+    for (Node<K, V> node : map.values()) {
+      values.add(node.value);
+    }
+
+    return values;
+  }
+
+  public int weight() {
+    return weight.get();
+  }
+
+  @VisibleForTesting
+  int queueLength() {
+    return queued.get();
+  }
+
+  private void enqueue(@NonNull Node<K, V> node) {
+    clock.add(node);
+    queued.incrementAndGet();
+  }
+
+  private void compactIfStale() {
+    if (queued.get() > Math.max(2 * map.size(), MIN_COMPACT_SIZE)) {
+      compact();
+    }
+  }
+
+  private void compact() {
+    Iterator<Node<K, V>> iterator = clock.iterator();
+    int                  live     = 0;
+
+    while (iterator.hasNext()) {
+      Node<K, V> node = iterator.next();
+
+      if (map.get(node.key) != node) iterator.remove();
+      else                           live++;
+    }
+
+    queued.set(live);
+  }
+
+  private void evict() {
+    while (weight.get() > maxWeight) {
+      Node<K, V> node = clock.poll();
+
+      if (node == null) {
+        return;
+      }
+
+      queued.decrementAndGet();
+
+      if (map.get(node.key) != node) {
+        continue;
+      }
+
+      if (node.referenced) {
+        node.referenced = false;
+        enqueue(node);
+      } else if (map.remove(node.key, node)) {
+        weight.addAndGet(-node.weight);
+      }
+    }
+  }
+
+  private static class Node<K, V> {
+    private final K   key;
+    private final V   value;
+    private final int weight;
+
+    private volatile boolean referenced;
+
+    private Node(K key, V value, int weight) {
+      this.key    = key;
+      this.value  = value;
+      this.weight = weight;
+    }
+  }
+}
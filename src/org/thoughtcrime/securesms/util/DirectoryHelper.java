@@ -32,6 +32,7 @@ import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -66,12 +67,26 @@ public class DirectoryHelper {
 
   private static final String TAG = DirectoryHelper.class.getSimpleName();
 
+  private static final long FULL_REFRESH_INTERVAL = 7 * 24 * 60 * 60 * 1000L;
+
+  /**
+   * Refreshes the directory for the system contacts that were added or removed since the
+   * last refresh, falling back to a full refresh when the last one is more than a week
+   * old so that existing contacts who joined or left are eventually picked up.
+   */
   public static void refreshDirectory(@NonNull Context context, @Nullable MasterSecret masterSecret)
       throws IOException
   {
-    List<String> newUsers = refreshDirectory(context,
-                                             TextSecureCommunicationFactory.createManager(context),
-                                             TextSecurePreferences.getLocalNumber(context));
+    TextSecureAccountManager accountManager = TextSecureCommunicationFactory.createManager(context);
+    String                   localNumber    = TextSecurePreferences.getLocalNumber(context);
+    long                     lastFull       = TextSecurePreferences.getDirectoryFullRefreshTime(context);
+    List<String>             newUsers;
+
+    if (System.currentTimeMillis() - lastFull > FULL_REFRESH_INTERVAL || lastFull > System.currentTimeMillis()) {
+      newUsers = refreshDirectory(context, accountManager, localNumber);
+    } else {
+      newUsers = refreshDirectoryDelta(context, accountManager, localNumber);
+    }
 
     if (!newUsers.isEmpty() && TextSecurePreferences.isMultiDevice(context)) {
       ApplicationContext.getInstance(context)
@@ -87,8 +102,10 @@ public class DirectoryHelper {
                                                        @NonNull String localNumber)
       throws IOException
   {
+    long                      startTime              = System.currentTimeMillis();
     TextSecureDirectory       directory              = TextSecureDirectory.getInstance(context);
-    Set<String>               eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber);
+    Set<String>               contactNumbers         = directory.getSystemContactNumbers(localNumber);
+    Set<String>               eligibleContactNumbers = directory.getPushEligibleContactNumbers(contactNumbers);
     List<ContactTokenDetails> activeTokens           = accountManager.getContacts(eligibleContactNumbers);
 
     if (activeTokens != null) {
@@ -98,12 +115,73 @@ public class DirectoryHelper {
       }
 
       directory.setNumbers(activeTokens, eligibleContactNumbers);
-      return updateContactsDatabase(context, localNumber, activeTokens, true);
+
+      List<String> newUsers = updateContactsDatabase(context, localNumber, activeTokens, true);
+
+      directory.setContactSnapshot(contactNumbers);
+      TextSecurePreferences.setDirectoryFullRefreshTime(context, startTime);
+
+      return newUsers;
     }
 
     return new LinkedList<>();
   }
 
+  private static @NonNull List<String> refreshDirectoryDelta(@NonNull Context context,
+                                                             @NonNull TextSecureAccountManager accountManager,
+                                                             @NonNull String localNumber)
+      throws IOException
+  {
+    TextSecureDirectory directory      = TextSecureDirectory.getInstance(context);
+    Set<String>         contactNumbers = directory.getSystemContactNumbers(localNumber);
+    Set<String>         snapshot       = directory.getContactSnapshot();
+    Set<String>         addedNumbers   = new HashSet<>(contactNumbers);
+    Set<String>         removedNumbers = new HashSet<>(snapshot);
+
+    addedNumbers.removeAll(snapshot);
+    removedNumbers.removeAll(contactNumbers);
+
+    Log.w(TAG, "Contacts added: " + addedNumbers.size() + ", removed: " + removedNumbers.size());
+
+    if (addedNumbers.isEmpty() && removedNumbers.isEmpty()) {
+      return new LinkedList<>();
+    }
+
+    List<ContactTokenDetails> activeTokens;
+
+    if (addedNumbers.isEmpty()) activeTokens = new LinkedList<>();
+    else                        activeTokens = accountManager.getContacts(addedNumbers);
+
+    if (activeTokens == null) {
+      return new LinkedList<>();
+    }
+
+    Set<String> inactiveNumbers = new HashSet<>(addedNumbers);
+
+    for (ContactTokenDetails activeToken : activeTokens) {
+      inactiveNumbers.remove(activeToken.getNumber());
+    }
+
+    directory.setNumbers(activeTokens, inactiveNumbers);
+
+    List<String>      newUsers = new LinkedList<>();
+    Optional<Account> account  = getOrCreateAccount(context);
+
+    if (account.isPresent()) {
+      try {
+        newUsers = DatabaseFactory.getContactsDatabase(context)
+                                  .updateRegisteredUsers(account.get(), localNumber, activeTokens, removedNumbers);
+      } catch (RemoteException | OperationApplicationException e) {
+        Log.w(TAG, e);
+        return newUsers;
+      }
+    }
+
+    directory.updateContactSnapshot(addedNumbers, removedNumbers);
+
+    return newUsers;
+  }
+
   public static UserCapabilities refreshDirectoryFor(@NonNull  Context context,
                                                      @Nullable MasterSecret masterSecret,
                                                      @NonNull  Recipients recipients,
@@ -72,6 +72,7 @@ public class TextSecurePreferences {
   private static final String PROMPTED_SHARE_PREF              = "pref_prompted_share";
   private static final String SIGNALING_KEY_PREF               = "pref_signaling_key";
   private static final String DIRECTORY_FRESH_TIME_PREF        = "pref_directory_refresh_time";
+  private static final String DIRECTORY_FULL_REFRESH_TIME_PREF = "pref_directory_full_refresh_time";
   private static final String IN_THREAD_NOTIFICATION_PREF      = "pref_key_inthread_notifications";
 
   private static final String LOCAL_REGISTRATION_ID_PREF       = "pref_local_registration_id";
@@ -208,6 +209,14 @@ public class TextSecurePreferences {
     setLongPreference(context, DIRECTORY_FRESH_TIME_PREF, value);
   }
 
+  public static long getDirectoryFullRefreshTime(Context context) {
+    return getLongPreference(context, DIRECTORY_FULL_REFRESH_TIME_PREF, 0L);
+  }
+
+  public static void setDirectoryFullRefreshTime(Context context, long value) {
+    setLongPreference(context, DIRECTORY_FULL_REFRESH_TIME_PREF, value);
+  }
+
   public static String getLocalNumber(Context context) {
     return getStringPreference(context, LOCAL_NUMBER_PREF, "No Stored Number");
   }
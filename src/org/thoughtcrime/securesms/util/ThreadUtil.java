@@ -16,4 +16,12 @@ public class ThreadUtil {
     return executor;
   }
 
+  public static ExecutorService newDynamicFixedThreadPool(int threads) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>());
+    executor.allowCoreThreadTimeOut(true);
+
+    return executor;
+  }
+
 }
@@ -4,10 +4,10 @@ import android.database.Cursor;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.thoughtcrime.securesms.database.MmsSmsColumns;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 
 import static org.junit.Assert.*;
-import static org.mockito.Matchers.anyInt;
-import static org.mockito.Matchers.anyString;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.when;
 
@@ -20,18 +20,30 @@ public class ConversationAdapterTest extends BaseUnitTest {
   public void setUp() throws Exception {
     super.setUp();
     adapter = new ConversationAdapter(context, cursor);
-    when(cursor.getColumnIndexOrThrow(anyString())).thenReturn(0);
+    when(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)).thenReturn(0);
+    when(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT)).thenReturn(1);
   }
 
   @Test
   public void testGetItemIdEquals() throws Exception {
-    when(cursor.getString(anyInt())).thenReturn("SMS::1::1");
-    long firstId = adapter.getItemId(cursor);
-    when(cursor.getString(anyInt())).thenReturn("MMS::1::1");
-    long secondId = adapter.getItemId(cursor);
-    assertNotEquals(firstId, secondId);
-    when(cursor.getString(anyInt())).thenReturn("MMS::2::1");
-    long thirdId = adapter.getItemId(cursor);
-    assertNotEquals(secondId, thirdId);
+    long smsId = getItemId(1, MmsSmsDatabase.SMS_TRANSPORT);
+    long mmsId = getItemId(1, MmsSmsDatabase.MMS_TRANSPORT);
+
+    assertNotEquals(smsId, mmsId);
+    assertNotEquals(mmsId, getItemId(2, MmsSmsDatabase.MMS_TRANSPORT));
+    assertEquals(smsId, getItemId(1, MmsSmsDatabase.SMS_TRANSPORT));
+  }
+
+  @Test
+  public void testGetItemIdPacksTransport() throws Exception {
+    assertEquals(1L << 1, getItemId(1, MmsSmsDatabase.SMS_TRANSPORT));
+    assertEquals((1L << 1) | 1, getItemId(1, MmsSmsDatabase.MMS_TRANSPORT));
+    assertEquals((12345L << 1) | 1, getItemId(12345, MmsSmsDatabase.MMS_TRANSPORT));
+  }
+
+  private long getItemId(long id, String transport) {
+    when(cursor.getLong(0)).thenReturn(id);
+    when(cursor.getString(1)).thenReturn(transport);
+    return adapter.getItemId(cursor);
   }
-}
\ No newline at end of file
+}
@@ -6,6 +6,8 @@ import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.thoughtcrime.securesms.BaseUnitTest;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 
+import static org.assertj.core.api.Assertions.assertThat;
+
 @PowerMockIgnore("javax.crypto.*")
 public class MasterCipherTest extends BaseUnitTest {
   private MasterCipher masterCipher;
@@ -21,4 +23,31 @@ public class MasterCipherTest extends BaseUnitTest {
   public void testEncryptBytesWithZeroBody() throws Exception {
     masterCipher.decryptBytes(new byte[]{});
   }
+
+  @Test
+  public void testDecryptBytesInPlace() throws Exception {
+    byte[] ciphertext = masterCipher.encryptBytes("in place".getBytes());
+    byte[] buffer     = new byte[ciphertext.length + 8];
+
+    System.arraycopy(ciphertext, 0, buffer, 4, ciphertext.length);
+
+    int length = masterCipher.decryptBytes(buffer, 4, ciphertext.length, buffer, 0);
+
+    assertThat(new String(buffer, 0, length)).isEqualTo("in place");
+    assertThat(length).isLessThanOrEqualTo(MasterCipher.getMaxPlaintextLength(ciphertext.length));
+  }
+
+  @Test
+  public void testSharedInstanceRoundTrip() throws Exception {
+    String ciphertext = masterCipher.encryptBody("body");
+    assertThat(new MasterCipher(masterSecret).decryptBody(ciphertext)).isEqualTo("body");
+  }
+
+  @Test(expected = InvalidMessageException.class)
+  public void testDecryptBytesWithBadMac() throws Exception {
+    byte[] ciphertext = masterCipher.encryptBytes("body".getBytes());
+    ciphertext[ciphertext.length - 1] ^= 0x01;
+
+    masterCipher.decryptBytes(ciphertext);
+  }
 }
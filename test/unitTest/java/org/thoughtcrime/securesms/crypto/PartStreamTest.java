@@ -0,0 +1,114 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@PowerMockIgnore("javax.crypto.*")
+public class PartStreamTest extends BaseUnitTest {
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    for (int length : new int[] {0, 1, ChunkedPartFormat.CHUNK_SIZE, 3 * ChunkedPartFormat.CHUNK_SIZE + 17}) {
+      byte[] data = randomBytes(length);
+      assertThat(readFully(new DecryptingPartInputStream(encrypt(data), masterSecret))).isEqualTo(data);
+    }
+  }
+
+  @Test
+  public void testSkipSeeksToChunk() throws Exception {
+    byte[]      data = randomBytes(3 * ChunkedPartFormat.CHUNK_SIZE + 17);
+    InputStream in   = new DecryptingPartInputStream(encrypt(data), masterSecret);
+
+    assertThat(in.skip(2 * ChunkedPartFormat.CHUNK_SIZE + 5)).isEqualTo(2 * ChunkedPartFormat.CHUNK_SIZE + 5);
+    assertThat(in.read()).isEqualTo(data[2 * ChunkedPartFormat.CHUNK_SIZE + 5] & 0xFF);
+    assertThat(in.skip(data.length)).isEqualTo(data.length - 2 * ChunkedPartFormat.CHUNK_SIZE - 6);
+    assertThat(in.read()).isEqualTo(-1);
+  }
+
+  @Test
+  public void testReadsLegacyFormat() throws Exception {
+    byte[] data = randomBytes(10000);
+    File   file = File.createTempFile("part", ".legacy");
+
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey());
+
+    Mac mac = Mac.getInstance("HmacSHA1");
+    mac.init(masterSecret.getMacKey());
+
+    byte[] iv         = cipher.getIV();
+    byte[] ciphertext = cipher.doFinal(data);
+
+    mac.update(iv);
+    mac.update(ciphertext);
+
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(iv);
+    out.write(ciphertext);
+    out.write(mac.doFinal());
+    out.close();
+
+    assertThat(readFully(new DecryptingPartInputStream(file, masterSecret))).isEqualTo(data);
+
+    InputStream in = new DecryptingPartInputStream(file, masterSecret);
+    assertThat(in.skip(5000)).isEqualTo(5000);
+    assertThat(in.read()).isEqualTo(data[5000] & 0xFF);
+  }
+
+  @Test(expected = IOException.class)
+  public void testTamperedChunk() throws Exception {
+    File file = encrypt(randomBytes(2 * ChunkedPartFormat.CHUNK_SIZE));
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(ChunkedPartFormat.getChunkOffset(1) + 40);
+    raf.write(raf.read() ^ 0x01);
+    raf.close();
+
+    InputStream in = new DecryptingPartInputStream(file, masterSecret);
+    in.skip(ChunkedPartFormat.CHUNK_SIZE);
+  }
+
+  private File encrypt(byte[] data) throws IOException {
+    File                       file = File.createTempFile("part", ".chunked");
+    EncryptingPartOutputStream out  = new EncryptingPartOutputStream(file, masterSecret);
+
+    out.write(data, 0, Math.min(data.length, 7));
+    if (data.length > 7) out.write(data, 7, data.length - 7);
+    out.close();
+
+    return file;
+  }
+
+  private byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[4093];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+
+    in.close();
+    return out.toByteArray();
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+}
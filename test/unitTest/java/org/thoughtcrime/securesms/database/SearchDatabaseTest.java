@@ -0,0 +1,62 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.SearchDatabase.Tokenizer;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@PowerMockIgnore("javax.crypto.*")
+public class SearchDatabaseTest extends BaseUnitTest {
+
+  @Test
+  public void testGetWords() {
+    assertThat(SearchDatabase.getWords("Hello, WORLD!  caf\u00e9-42")).containsExactly("hello", "world", "caf\u00e9", "42");
+    assertThat(SearchDatabase.getWords("\uff46\uff55\uff4c\uff4c width")).containsExactly("full", "width");
+    assertThat(SearchDatabase.getWords(" ... ")).isEmpty();
+  }
+
+  @Test
+  public void testTokensMatchWordsAndPrefixes() {
+    Tokenizer tokenizer = new Tokenizer(masterSecret);
+    Set<Long> tokens    = tokenizer.getTokens("Meet me at the Harbour tonight");
+
+    assertThat(tokens).contains(tokenizer.getQueryToken("me"));
+    assertThat(tokens).contains(tokenizer.getQueryToken("har"));
+    assertThat(tokens).contains(tokenizer.getQueryToken("harbou"));
+    assertThat(tokens).contains(tokenizer.getQueryToken("harbour"));
+    assertThat(tokens).contains(tokenizer.getQueryToken("tonight"));
+
+    assertThat(tokens).doesNotContain(tokenizer.getQueryToken("ha"));
+    assertThat(tokens).doesNotContain(tokenizer.getQueryToken("harbor"));
+    assertThat(tokens).doesNotContain(tokenizer.getQueryToken("morning"));
+  }
+
+  @Test
+  public void testTokensDependOnKey() {
+    MasterSecret other = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                          new SecretKeySpec(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "HmacSHA1"));
+
+    assertThat(new Tokenizer(masterSecret).getQueryToken("harbour"))
+        .isNotEqualTo(new Tokenizer(other).getQueryToken("harbour"));
+  }
+
+  @Test
+  public void testMatches() {
+    assertThat(SearchDatabase.matches("Meet me at the Harbour", Arrays.asList("harb", "me"))).isTrue();
+    assertThat(SearchDatabase.matches("Meet me at the Harbour", Arrays.asList("meet", "harbour"))).isTrue();
+    assertThat(SearchDatabase.matches("Meet me at the Harbour", Arrays.asList("at"))).isTrue();
+
+    assertThat(SearchDatabase.matches("Meet me at the Harbour", Arrays.asList("ha"))).isFalse();
+    assertThat(SearchDatabase.matches("Meet me at the Harbour", Arrays.asList("harbor"))).isFalse();
+    assertThat(SearchDatabase.matches("Meet me at the Harbour", Arrays.asList("harbour", "tonight"))).isFalse();
+    assertThat(SearchDatabase.matches(null, Arrays.asList("harbour"))).isFalse();
+  }
+}
@@ -0,0 +1,30 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import static org.junit.Assert.assertEquals;
+
+public class XmlBackupTest extends BaseUnitTest {
+
+  @Test public void testEscapeMarkup() {
+    assertEquals("a &amp; b &lt;c&gt; &quot;d&quot; &apos;e&apos;", escape("a & b <c> \"d\" 'e'"));
+  }
+
+  @Test public void testEscapeControlAndHighCharacters() {
+    assertEquals("line&#10;break&#9;tab", escape("line\nbreak\ttab"));
+    assertEquals("&#55357;&#56832;", escape("\uD83D\uDE00"));
+    assertEquals("caf\u00e9", escape("caf\u00e9"));
+  }
+
+  @Test public void testEscapeEmptyAndNull() {
+    assertEquals("", escape(""));
+    assertEquals("null", escape(null));
+  }
+
+  private String escape(String value) {
+    StringBuilder builder = new StringBuilder();
+    XmlBackup.Writer.appendEscaped(builder, value);
+    return builder.toString();
+  }
+}
@@ -0,0 +1,151 @@
+package org.thoughtcrime.securesms.providers;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@PowerMockIgnore("javax.crypto.*")
+public class BlobStoreTest extends BaseUnitTest {
+
+  private File          directory;
+  private QueueExecutor writers;
+  private BlobStore     store;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    directory = File.createTempFile("blobs", "");
+    assertThat(directory.delete()).isTrue();
+    assertThat(directory.mkdir()).isTrue();
+
+    writers = new QueueExecutor();
+    store   = new BlobStore(directory, ".blob", 10, writers);
+  }
+
+  @Test
+  public void testEvictsEldestOverBudget() throws Exception {
+    store.put(masterSecret, 1, bytes(6, 1), false);
+    assertThat(writers.size()).isEqualTo(0);
+
+    store.put(masterSecret, 2, bytes(6, 2), false);
+    assertThat(store.getMemoryBytes()).isEqualTo(12);
+
+    writers.runAll();
+
+    assertThat(store.getMemoryBytes()).isEqualTo(6);
+    assertThat(store.getFile(1).exists()).isTrue();
+    assertThat(store.getFile(2).exists()).isFalse();
+    assertThat(read(store.getStream(masterSecret, 1))).isEqualTo(bytes(6, 1));
+    assertThat(read(store.getStream(masterSecret, 2))).isEqualTo(bytes(6, 2));
+  }
+
+  @Test
+  public void testReplacingReleasesBudget() throws Exception {
+    store.put(masterSecret, 1, bytes(6, 1), false);
+    store.put(masterSecret, 1, bytes(4, 2), false);
+
+    assertThat(store.getMemoryBytes()).isEqualTo(4);
+    assertThat(read(store.getStream(masterSecret, 1))).isEqualTo(bytes(4, 2));
+  }
+
+  @Test
+  public void testFailedWriteIsRetried() throws Exception {
+    assertThat(directory.delete()).isTrue();
+
+    store.put(masterSecret, 1, bytes(6, 1), false);
+    store.put(masterSecret, 2, bytes(6, 2), false);
+    writers.runAll();
+
+    assertThat(store.getMemoryBytes()).isEqualTo(12);
+    assertThat(read(store.getStream(masterSecret, 1))).isEqualTo(bytes(6, 1));
+
+    assertThat(directory.mkdir()).isTrue();
+
+    store.put(masterSecret, 3, bytes(1, 3), false);
+    writers.runAll();
+
+    assertThat(store.getMemoryBytes()).isEqualTo(7);
+    assertThat(store.getFile(1).exists()).isTrue();
+  }
+
+  @Test
+  public void testDeleteDuringWrite() throws Exception {
+    store.put(masterSecret, 1, bytes(6, 1), true);
+    store.delete(1);
+    writers.runAll();
+
+    assertThat(store.getMemoryBytes()).isEqualTo(0);
+    assertThat(store.getFile(1).exists()).isFalse();
+    assertThat(directory.list()).isEmpty();
+
+    try {
+      store.getStream(masterSecret, 1);
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testStaleWriteKeepsReplacement() throws Exception {
+    store.put(masterSecret, 1, bytes(6, 1), true);
+    store.put(masterSecret, 1, bytes(4, 2), true);
+    writers.runAllNewestFirst();
+
+    assertThat(store.getMemoryBytes()).isEqualTo(0);
+    assertThat(directory.list()).containsOnly("1.blob");
+    assertThat(read(store.getStream(masterSecret, 1))).isEqualTo(bytes(4, 2));
+  }
+
+  private static byte[] bytes(int length, int value) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) bytes[i] = (byte) value;
+    return bytes;
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[4096];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+
+    in.close();
+    return out.toByteArray();
+  }
+
+  private static class QueueExecutor implements Executor {
+    private final LinkedList<Runnable> tasks = new LinkedList<>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    int size() {
+      return tasks.size();
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) tasks.removeFirst().run();
+    }
+
+    void runAllNewestFirst() {
+      while (!tasks.isEmpty()) tasks.removeLast().run();
+    }
+  }
+}
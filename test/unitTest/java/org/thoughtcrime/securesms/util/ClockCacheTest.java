@@ -0,0 +1,100 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class ClockCacheTest {
+
+  @Test
+  public void testEvictsOldestUnreferenced() {
+    ClockCache<String, String> cache = new ClockCache<>(3);
+
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.put("c", "3");
+
+    assertNotNull(cache.get("a"));
+
+    cache.put("d", "4");
+
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertNotNull(cache.get("d"));
+    assertEquals(3, cache.weight());
+  }
+
+  @Test
+  public void testWeightBound() {
+    ClockCache<String, String> cache = new ClockCache<>(10);
+
+    cache.put("a", "1", 4);
+    cache.put("b", "2", 4);
+    cache.put("c", "3", 4);
+
+    assertNull(cache.get("a"));
+    assertEquals(8, cache.weight());
+  }
+
+  @Test
+  public void testReplaceAdjustsWeight() {
+    ClockCache<String, String> cache = new ClockCache<>(10);
+
+    cache.put("a", "1", 4);
+    cache.put("a", "2", 2);
+
+    assertEquals("2", cache.get("a"));
+    assertEquals(2, cache.weight());
+
+    cache.put("b", "3", 8);
+
+    assertEquals("2", cache.get("a"));
+    assertEquals("3", cache.get("b"));
+    assertEquals(10, cache.weight());
+  }
+
+  @Test
+  public void testRemove() {
+    ClockCache<String, String> cache = new ClockCache<>(10);
+
+    cache.put("a", "1", 4);
+    cache.put("b", "2", 4);
+    cache.remove("a");
+
+    assertNull(cache.get("a"));
+    assertEquals(4, cache.weight());
+
+    cache.put("c", "3", 6);
+
+    assertEquals("2", cache.get("b"));
+    assertEquals("3", cache.get("c"));
+
+    cache.clear();
+
+    assertNull(cache.get("b"));
+    assertEquals(0, cache.weight());
+  }
+
+  @Test
+  public void testReplacedNodesAreCompacted() {
+    ClockCache<String, String> cache = new ClockCache<>(10);
+
+    for (int i = 0; i < 1000; i++) {
+      cache.put("a", String.valueOf(i));
+      cache.put("b", String.valueOf(i));
+    }
+
+    assertEquals("999", cache.get("a"));
+    assertEquals(2, cache.weight());
+    assertTrue(cache.queueLength() <= 64);
+
+    cache.remove("a");
+    cache.clear();
+
+    assertEquals(0, cache.queueLength());
+  }
+}